@@ -1,37 +1,64 @@
 package Server;
+import Server.nio.NioServer;
+import Server.transfer.FileSpool;
 import Server.view.ServerWindow;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.nio.channels.ServerSocketChannel;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ChatServer {// 服务器启动入口
-    public ArrayList<String> online_users = new ArrayList<String>();//维护在线用户列表
-    public ArrayList<Socket> online_sockets = new ArrayList<Socket>();
-    public Map<String,Socket> userSocketMap = new HashMap<>();
-    public Map<Socket,ServerHandler> SocketHandlerMap = new HashMap<>();
+    // 以下列表和映射会被所有连接的处理线程同时访问，使用并发容器
+    public List<String> online_users = new CopyOnWriteArrayList<>();//维护在线用户列表
+    public List<Socket> online_sockets = new CopyOnWriteArrayList<>();
+    public Map<String,Socket> userSocketMap = new ConcurrentHashMap<>();
+    public Map<Socket,ClientSession> SocketHandlerMap = new ConcurrentHashMap<>();
+    public FileSpool fileSpool;//分块文件传输的暂存和转发
     public int port = 6688;
     public String ip;
+    // 服务端核心：classic 为每个连接一个线程，nio 为 Selector 事件循环，启动时用 -Dchat.server.core=nio 选择
+    private static final String CORE = System.getProperty("chat.server.core", "classic");
+    // classic 核心的线程模型：platform 为每个连接一个平台线程，virtual 为每个连接一个虚拟线程（需要 JDK 21+）
+    private static final String THREADS = System.getProperty("chat.server.threads", "platform");
     public ChatServer() {
         try {
-            //建立服务器的Socket监听
-            ServerSocket sso = new ServerSocket(port);
             ServerWindow ServerFrame  = new ServerWindow();
             String ip = InetAddress.getLocalHost().getHostAddress();
 
             ServerFrame.setVisible(true);
             ServerFrame.setServerInfo("JAVA聊天",ip,port);
+            fileSpool = new FileSpool(ServerFrame);
+            if ("nio".equalsIgnoreCase(CORE)) {
+                int cores = Runtime.getRuntime().availableProcessors();
+                ServerFrame.appendLog("使用NIO服务端核心");
+                new NioServer(this, ServerFrame, port, Math.max(1, cores / 2), Math.max(4, cores * 2)).start();
+                return;
+            }
+            ExecutorService handlerExecutor = "virtual".equalsIgnoreCase(THREADS) ? newVirtualThreadExecutor(ServerFrame) : null;
+            //建立服务器的Socket监听，通过通道创建，使接受的Socket可以用 transferTo 直接发送文件数据
+            ServerSocket sso = ServerSocketChannel.open().socket();
+            sso.bind(new InetSocketAddress(port));
             //循环是为了解决多客户端使用
             while(true) {
                 //等待连接，阻塞实现，会得到一个客户端的连接
                 Socket socket = sso.accept();
-                ServerHandler serverHandler = new ServerHandler(socket,this,ServerFrame);//开启一个新的线程，用于服务这个连接上的用户
-                SocketHandlerMap.put(socket,serverHandler);
-                serverHandler.start();
+                ClientSession session = new ClientSession(socket,this,ServerFrame);
+                SocketHandlerMap.put(socket,session);
+                ServerHandler serverHandler = new ServerHandler(session,ServerFrame,handlerExecutor);//开启一个新的线程，用于服务这个连接上的用户
+                if (handlerExecutor != null) {
+                    handlerExecutor.execute(serverHandler);
+                } else {
+                    serverHandler.start();
+                }
 
                 ServerFrame.appendLog("服务器接受到客户端的连接：" + socket);
             }
@@ -40,6 +67,23 @@ public class ChatServer {// 服务器启动入口
         }
 
     }
+    /**
+     * 创建每个任务一个虚拟线程的执行器
+     * 通过反射调用，使服务端在 JDK 21 以下仍能编译运行，此时退回平台线程
+     * @param serverFrame 服务器窗口，用于输出日志
+     * @return 虚拟线程执行器，当前JDK不支持时返回null
+     */
+    private static ExecutorService newVirtualThreadExecutor(ServerWindow serverFrame) {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            serverFrame.appendLog("使用虚拟线程处理连接");
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            serverFrame.appendLog("当前JDK不支持虚拟线程，使用平台线程处理连接");
+            return null;
+        }
+    }
     public void add_online_user(String user){
         this.online_users.add(user);
     }
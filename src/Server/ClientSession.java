@@ -0,0 +1,135 @@
+package Server;
+import Server.view.ServerWindow;
+import Server.handler.MessageHandler;
+import Server.handler.MessageHandlerFactory;
+import info.*;
+import io.FileChunks;
+import io.IOStream;
+
+import java.io.IOException;
+import java.net.Socket;
+
+import Server.controller.ServerController;
+
+/**
+ * 一个客户端连接上的会话：当前用户、限流器和消息处理器
+ * 线程模式由 ServerHandler 读取消息后交给这里处理，NIO模式由 NioConnection 在工作线程中交给这里处理
+ */
+public final class ClientSession {
+
+    Socket socket;
+    ChatServer server;
+    ServerWindow ServerFrame;
+    ServerController controller;
+    String current_user;//标记当前会话服务的用户
+    private MessageHandlerFactory handlerFactory;
+    private final RateLimiter rateLimiter = new RateLimiter();
+
+    public ClientSession(Socket socket, ChatServer server, ServerWindow serverframe) {
+        this.socket = socket;
+        this.server = server;
+        this.ServerFrame = serverframe;
+        controller = new ServerController(socket, server,serverframe,this);
+        this.handlerFactory = new MessageHandlerFactory(controller, server, serverframe, current_user);
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * 处理一条客户端消息，线程模式和NIO模式共用
+     * @param INFO 收到的消息
+     * @return 是否继续处理后续消息，收到登出消息时返回false
+     * @throws IOException 如果处理器的IO操作失败
+     */
+    public boolean dispatch(encap_info INFO) throws IOException {
+        // 只限制聊天消息和发起文件传输，超出时回复发送方拒绝，不把消息转发出去
+        if (isRateLimited(INFO) && !rateLimiter.tryAcquire()) {
+            ServerFrame.appendLog("用户 " + current_user + " 发送消息过快，已拒绝一条类型为 " + INFO.get_type() + " 的消息");
+            reject(INFO);
+            return true;
+        }
+        encap_info RETURN = new encap_info();
+
+        // 获取对应的消息处理器
+        MessageHandler handler = handlerFactory.getHandler(INFO.get_type());
+        if (handler == null) {
+            ServerFrame.appendLog("收到未知类型的消息: " + INFO.get_type());
+            return true;
+        }
+        // 如果找到了处理器，则调用它处理消息
+        boolean continueProcessing = handler.handle(INFO, socket, RETURN);
+
+        // 如果是登录消息，可能需要更新当前用户
+        if (INFO.get_type() == 3) {
+            // 登录结果写在回执中，请求中的标志不会被置为成功
+            Login_info result = RETURN.get_login_info();
+            if (result != null && result.getLoginSuccessFlag()) {
+                this.current_user = result.getUserName();
+                handlerFactory.updateCurrentUser(current_user);
+            }
+            // 登录失败不中断循环，继续等待下一次登录请求
+        }
+        return continueProcessing || INFO.get_type() != 2;
+    }
+
+    /**
+     * 聊天消息和文件的OFFER、REQUEST计入限流；分块传输的数据块和确认已由发送窗口控制流量，
+     * 登出、登录、注册、群组和语音通话等消息由界面操作发出，都不计入
+     * @return 是否计入限流
+     */
+    private static boolean isRateLimited(encap_info INFO) {
+        if (INFO.get_type() == 4) {
+            return INFO.get_chat_info() != null;
+        }
+        if (INFO.get_type() != 7 || INFO.get_file_info() == null) {
+            return false;
+        }
+        File_info.TransferStage stage = INFO.get_file_info().getStage();
+        return stage == File_info.TransferStage.OFFER || stage == File_info.TransferStage.REQUEST;
+    }
+
+    /**
+     * 告诉发送方消息因发送过快被拒绝：聊天消息原样退回并标记为被拒绝，文件传输回复CANCEL
+     * @param INFO 被拒绝的消息
+     */
+    private void reject(encap_info INFO) {
+        encap_info reply;
+        if (INFO.get_type() == 4) {
+            Chat_info ci = INFO.get_chat_info();
+            ci.setTransfer_status(false);
+            ci.setRejected(true);
+            reply = new encap_info();
+            reply.set_type(4);
+            reply.set_chat_info(ci);
+        } else {
+            reply = FileChunks.wrap(FileChunks.copyOffer(INFO.get_file_info(), File_info.TransferStage.CANCEL));
+        }
+        IOStream.writeMessage(socket, reply);
+    }
+
+    /**
+     * 处理消息时发生IO异常，可能是客户端断开连接，为已登录的用户执行登出清理
+     * @param e 发生的异常
+     */
+    public void handleIOException(IOException e) {
+        ServerFrame.appendLog("IO异常，可能是客户端断开连接: " + e.getMessage());
+        // 放弃该连接上未完成的分块上传和转发，删除不再需要的暂存文件
+        server.fileSpool.release(socket);
+        // 如果当前用户已设置且仍由本连接服务，执行清理操作；被踢下线的旧连接不能清理新连接的在线状态
+        if (current_user != null && !current_user.isEmpty() && socket.equals(server.userSocketMap.get(current_user))) {
+            try {
+                // 创建一个登出消息并处理
+                encap_info logoutInfo = new encap_info();
+                logoutInfo.set_type(2);
+                MessageHandler logoutHandler = handlerFactory.getHandler(2);
+                if (logoutHandler != null) {
+                    logoutHandler.handle(logoutInfo, socket, new encap_info());
+                }
+            } catch (Exception ex) {
+                ServerFrame.appendLog("处理客户端断开连接时出错: " + ex.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package Server;
+
+/**
+ * 令牌桶限流器，每个连接一个
+ * 桶容量决定允许的突发消息数，之后按固定速率补充令牌；
+ * 正常聊天（包括一次粘贴多行）不会触发限流，只有持续刷屏的连接会被拒绝消息
+ */
+public class RateLimiter {
+    // 默认每秒补充的令牌数和桶容量，可以用 -Dchat.server.rate 和 -Dchat.server.burst 调整
+    private static final double DEFAULT_RATE = Double.parseDouble(System.getProperty("chat.server.rate", "20"));
+    private static final double DEFAULT_BURST = Double.parseDouble(System.getProperty("chat.server.burst", "50"));
+
+    private final double ratePerNano;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    public RateLimiter() {
+        this(DEFAULT_RATE, DEFAULT_BURST);
+    }
+
+    /**
+     * @param permitsPerSecond 每秒补充的令牌数
+     * @param burst 桶容量，即允许的最大突发消息数
+     */
+    public RateLimiter(double permitsPerSecond, double burst) {
+        this.ratePerNano = permitsPerSecond / 1_000_000_000.0;
+        this.capacity = burst;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * 尝试取得一个令牌
+     * @return 是否取得，返回false表示该连接发送过快
+     */
+    public synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * ratePerNano);
+        lastRefill = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+}
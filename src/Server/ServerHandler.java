@@ -1,112 +1,149 @@
 package Server;
 import Server.view.ServerWindow;
-import Server.handler.MessageHandler;
-import Server.handler.MessageHandlerFactory;
 import info.*;
 import io.FileIO;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.Socket;
 
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
-import io.IOStream;
-import Server.controller.ServerController;
+import io.SocketConnection;
+/**
+ * 线程模式下一个连接的读取线程，阻塞读取消息后交给 ClientSession 处理
+ */
 public class ServerHandler extends Thread {
 
     Socket socket;
-    ChatServer server;
+    SocketConnection connection;//该Socket上的持久对象流
+    ClientSession session;
     ServerWindow ServerFrame;
-    ServerController controller;
-    boolean running = true;
-    String current_user;//标记当前线程服务的用户
-    private MessageHandlerFactory handlerFactory;
+    // 流水线模式下运行处理线程的执行器，与读取线程使用相同的线程模型；为null时使用平台线程
+    private final Executor executor;
+    volatile boolean running = true;
 
-    public ServerHandler(Socket socket, ChatServer server, ServerWindow serverframe) {
-        this.socket = socket;
-        this.server = server;
+    // 流水线模式，用 -Dchat.server.pipeline=true 开启
+    private static final boolean PIPELINE = Boolean.getBoolean("chat.server.pipeline");
+    // 已读取但尚未处理的最大消息数
+    private static final int PIPELINE_DEPTH = 64;
+    private static final Object END_OF_STREAM = new Object();
+    private static final Object DISCONNECTED = new Object();
+
+    public ServerHandler(ClientSession session, ServerWindow serverframe, Executor executor) {
+        this.socket = session.getSocket();
+        this.connection = SocketConnection.accept(socket);
+        this.session = session;
         this.ServerFrame = serverframe;
-        controller = new ServerController(socket, server,serverframe,this);
-        this.handlerFactory = new MessageHandlerFactory(controller, server, serverframe, current_user);
+        this.executor = executor;
     }
-    //实例化Controller
 
     @Override
     public void run() {
-        //默认重复拿
-        while(running) {
-            try {
-                Object obj = IOStream.readMessage(socket);
-                // 检查是否收到了null，这可能意味着连接已关闭
-                if (obj == null) {
-                    ServerFrame.appendLog("连接已关闭，停止处理消息");
-                    break;
-                }
-
-                encap_info INFO = (encap_info)obj;
-                encap_info RETURN = new encap_info();
-
-                // 获取对应的消息处理器
-                MessageHandler handler = handlerFactory.getHandler(INFO.get_type());
-                if (handler != null) {
-                    // 如果找到了处理器，则调用它处理消息
-                    boolean continueProcessing = handler.handle(INFO, socket, RETURN);
-
-                    // 如果是登录消息，可能需要更新当前用户
-                    if (INFO.get_type() == 3) {
-                        if (INFO.get_login_info().getLoginSuccessFlag()) {
-                            this.current_user = INFO.get_login_info().getUserName();
-                            handlerFactory.updateCurrentUser(current_user);
+        if (PIPELINE) {
+            runPipelined();
+        } else {
+            //默认重复拿，读到一条就立即处理
+            while(running) {
+                try {
+                    Object obj = connection.readMessage();
+                    // 检查是否收到了null，这可能意味着连接已关闭
+                    if (obj == null) {
+                        ServerFrame.appendLog("连接已关闭，停止处理消息");
+                        if (running) {
+                            session.handleIOException(new EOFException("连接已关闭"));
                         }
-                        // 登录失败不中断循环，继续等待下一次登录请求
+                        break;
                     }
 
                     // 只有在登出消息时才中断循环
-                    if (!continueProcessing && INFO.get_type() == 2) {
+                    if (!session.dispatch((encap_info) obj)) {
                         break;
                     }
-                } else {
-                    ServerFrame.appendLog("收到未知类型的消息: " + INFO.get_type());
-                }
-
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } catch (IOException e) {
-                // 处理IO异常，可能是客户端断开连接
-                ServerFrame.appendLog("IO异常，可能是客户端断开连接: " + e.getMessage());
-                // 如果当前用户已设置，执行清理操作
-                if (current_user != null && !current_user.isEmpty()) {
-                    try {
-                        // 创建一个登出消息并处理
-                        encap_info logoutInfo = new encap_info();
-                        logoutInfo.set_type(2);
-                        MessageHandler logoutHandler = handlerFactory.getHandler(2);
-                        if (logoutHandler != null) {
-                            logoutHandler.handle(logoutInfo, socket, new encap_info());
-                        }
-                    } catch (Exception ex) {
-                        ServerFrame.appendLog("处理客户端断开连接时出错: " + ex.getMessage());
-                    }
+                } catch (IOException e) {
+                    session.handleIOException(e);
+                    break;
                 }
-                break;
             }
         }
 
         // 确保资源被释放
         try {
-            if (!socket.isClosed()) {
-                socket.close();
-            }
+            connection.close();
             ServerFrame.appendLog("Socket已关闭，线程结束");
         } catch (IOException e) {
             ServerFrame.appendLog("关闭Socket时出错: " + e.getMessage());
         }
     }
 
+    /**
+     * 流水线模式：当前线程只负责读取，消息放入队列后由处理线程按顺序处理，
+     * 处理器写出回复的同时就可以读取下一帧
+     */
+    private void runPipelined() {
+        BlockingQueue<Object> pending = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+        FutureTask<Void> dispatcher = new FutureTask<>(() -> {
+            try {
+                Object obj;
+                while ((obj = pending.take()) != END_OF_STREAM) {
+                    if (obj == DISCONNECTED) {
+                        session.handleIOException(new EOFException("连接已关闭"));
+                        break;
+                    }
+                    if (!session.dispatch((encap_info) obj)) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                session.handleIOException(e);
+            }
+            running = false;
+            pending.clear(); // 读取线程可能正阻塞在满队列上
+            try {
+                connection.close(); // 让读取线程从阻塞中返回
+            } catch (IOException e) {
+                ServerFrame.appendLog("关闭Socket时出错: " + e.getMessage());
+            }
+        }, null);
+        if (executor != null) {
+            executor.execute(dispatcher);
+        } else {
+            Thread thread = new Thread(dispatcher, "dispatcher-" + socket.getRemoteSocketAddress());
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try {
+            while (running) {
+                Object obj = connection.readMessage();
+                if (obj == null) {
+                    if (running) {
+                        ServerFrame.appendLog("连接已关闭，停止处理消息");
+                        pending.put(DISCONNECTED);
+                    }
+                    break;
+                }
+                pending.put(obj); // 队列满时阻塞读取，形成背压
+            }
+            pending.put(END_OF_STREAM);
+            dispatcher.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            ServerFrame.appendLog("处理消息时出错: " + e.getCause());
+        }
+    }
+
     public void shutdown() throws IOException {
         //先关闭线程
-        socket.close();
+        connection.close();
         running = false;
     }
 
@@ -1,10 +1,11 @@
 package Server.controller;
 
 import Server.ChatServer;
-import Server.ServerHandler;
+import Server.ClientSession;
 import Server.model.ServerModel;
 import Server.view.ServerWindow;
 import info.*;
+import io.Connection;
 import io.FileIO;
 import io.IOStream;
 
@@ -16,16 +17,16 @@ public class ServerController {
     Socket socket;
     ChatServer server;
     ServerWindow ServerFrame;
-    ServerHandler ServerHandler;
+    ClientSession session;
     HashMap<Integer,ArrayList<String>> OrgIDToUserList=new HashMap<>();//这是维护的一个，尚未接受邀请的小组的哈希表，是小组ID到未同意邀请的用户的列表
     //实例化model
     ServerModel model;
     String current_user;//标记当前线程服务的用户
-    public ServerController(Socket socket, ChatServer server, ServerWindow ServerFrame, ServerHandler handler) {//定义构造方法
+    public ServerController(Socket socket, ChatServer server, ServerWindow ServerFrame, ClientSession session) {//定义构造方法
         this.socket = socket;
         this.server = server;
         this.ServerFrame = ServerFrame;
-        this.ServerHandler = handler;
+        this.session = session;
         model = new ServerModel(server);
     }
 
@@ -59,7 +60,6 @@ public class ServerController {
 
             // 查找旧的Socket和对应的处理器
             Socket old_socket = server.userSocketMap.get(this.current_user);
-            ServerHandler oldHandler = server.SocketHandlerMap.get(old_socket);
 
             if (old_socket != null) {
                 // 准备并发送“被踢下线”的通知
@@ -77,9 +77,9 @@ public class ServerController {
                 this.server.userSocketMap.remove(this.current_user);
                 this.server.SocketHandlerMap.remove(old_socket);
 
-                // 关闭旧的Socket，这将导致对应的ServerHandler线程结束
+                // 关闭旧的Socket，这将导致对应的读取线程或NIO连接结束
                 try {
-                    old_socket.close();
+                    Connection.of(old_socket).close();
                     ServerFrame.appendLog("旧连接已成功关闭。");
                 } catch (IOException e) {
                     ServerFrame.appendLog("关闭旧连接时出错: " + e.getMessage());
@@ -97,7 +97,7 @@ public class ServerController {
         // 无论如何，都更新/添加用户的Socket映射和Handler映射
         server.userSocketMap.put(current_user, socket);
         server.online_sockets.add(socket);
-        // 注意：SocketHandlerMap 在 ServerHandler 构造时已添加，这里无需重复
+        // 注意：SocketHandlerMap 在接受连接时已添加，这里无需重复
 
         ServerFrame.updateUserList(server.online_users);
         ServerFrame.appendLog("用户 " + current_user + " 的新连接已确立。");
@@ -118,7 +118,7 @@ public class ServerController {
         // 创建一个副本，移除当前登录者自己，避免给自己发送“你已上线”的广播
         ArrayList<String> otherOnlineUsers = new ArrayList<>(server.online_users);
         otherOnlineUsers.remove(current_user);
-        broadcastModel.Send2Users(broadcastEncap, otherOnlineUsers);
+        broadcastModel.sendPresence(broadcastEncap, otherOnlineUsers);
         ServerFrame.appendLog("已向其他在线用户广播 " + current_user + " 的上线状态。");
 
 
@@ -127,6 +127,12 @@ public class ServerController {
         detailedResponseInfo.setUserName(current_user);
         detailedResponseInfo.setLoginSuccessFlag(true);
         detailedResponseInfo.setKicked(false); // 明确告知新设备没有被踢
+        // 协商压缩：客户端支持且连接使用二进制协议时，登录快照等大帧开始压缩
+        Connection connection = Connection.of(socket);
+        connection.setCompressionEnabled(clientLoginRequest.isCompression());
+        detailedResponseInfo.setCompression(connection.isCompressionEnabled());
+        // 没有声明支持分块传输的旧客户端，文件整个放在一条消息中转发
+        connection.setChunkedTransfer(clientLoginRequest.isChunkedTransfer());
         detailedResponseInfo.setOnlineUsers(new ArrayList<>(server.online_users)); // 发送最新的在线列表
         detailedResponseInfo.setAllUsers(allUsers);
 
@@ -162,6 +168,9 @@ public class ServerController {
         RETURN.set_type(3);
         IOStream.writeMessage(socket, RETURN);
 
+        // 7. 继续之前因断线中断的文件转发
+        server.fileSpool.resume(current_user, socket);
+
         return true;
     }
 
@@ -262,6 +271,10 @@ public class ServerController {
         }
     }
     public void LogoutHandler(encap_info INFO, encap_info RETURN) throws IOException {
+        if (current_user == null) {
+            // 未登录的连接没有需要清理的在线状态，并发映射也不接受null键
+            return;
+        }
         //维护相关动态表格
         ServerFrame.appendLog("用户 " + current_user + " 正在注销");
 
@@ -285,7 +298,7 @@ public class ServerController {
         this.server.online_sockets.remove(socket);
 
         // 更新登出通知消息中的在线用户列表（已移除当前用户）
-        logoutInfo.setOnlineUsers(server.online_users);
+        logoutInfo.setOnlineUsers(new ArrayList<>(server.online_users));
 
         // 创建广播消息
         encap_info broadcastInfo = new encap_info();
@@ -294,7 +307,7 @@ public class ServerController {
 
         // 广播用户下线消息给所有在线用户
         ServerFrame.appendLog("广播用户 " + current_user + " 下线消息给所有在线用户");
-        model.sendALL(broadcastInfo);
+        model.sendPresenceALL(broadcastInfo);
 
         ServerFrame.appendLog("用户 " + current_user + " 已成功注销");
         ServerFrame.appendLog("当前在线用户: " + server.online_users);
@@ -344,7 +357,7 @@ public class ServerController {
             while (true) {
                 Random rand = new Random();
                 int randomInt = rand.nextInt();
-                if (!fileio_org.groupExists(randomInt)) {//如果生成的ID并非已存在，那么跳出循环
+                if (!fileio_org.orgExists(randomInt)) {//如果生成的ID并非已存在，那么跳出循环
                     ID = randomInt;
                     break;
                 }
@@ -538,16 +551,11 @@ public class ServerController {
         if (members == null) return false;
 
         for (String member : members) {
-            // 获取该用户所属的所有小组
-            ArrayList<Org_info> userTeams = orgFileIo.getAllOrgsByUser(member);
-
-            // 检查这些小组中是否有任何一个属于当前的父群聊
-            for (Org_info team : userTeams) {
-                if (team.getGroup_id() == parentGroupId) {
-                    // 冲突：该成员已在此父群聊的某个小组中
-                    ServerFrame.appendLog("创建小组失败：成员 " + member + " 已在群聊 " + parentGroupId + " 的另一个小组中。");
-                    return true;
-                }
+            // 按（成员，父群聊）索引直接查询
+            if (orgFileIo.isInTeamOfGroup(member, parentGroupId)) {
+                // 冲突：该成员已在此父群聊的某个小组中
+                ServerFrame.appendLog("创建小组失败：成员 " + member + " 已在群聊 " + parentGroupId + " 的另一个小组中。");
+                return true;
             }
         }
 
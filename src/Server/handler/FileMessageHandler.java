@@ -8,11 +8,16 @@ import java.io.IOException;
 
 import Server.ChatServer;
 import Server.controller.ServerController;
+import Server.transfer.FileSpool;
 import Server.view.ServerWindow;
 import info.File_info;
+import info.File_info.TransferStage;
 import info.encap_info;
+import io.Connection;
+import io.FileChunks;
 import io.FileIO;
 import io.IOStream;
+import io.SharedFrame;
 
 /**
  * 文件传输消息处理器
@@ -45,6 +50,10 @@ public class FileMessageHandler implements MessageHandler {
             serverWindow.appendLog("文件信息为空");
             return true;
         }
+        if (fileInfo.getStage() != null) {
+            handleTransfer(fileInfo, socket);
+            return true;
+        }
 
         // 记录文件传输信息
         String sender = fileInfo.getFromUsername();
@@ -58,28 +67,17 @@ public class FileMessageHandler implements MessageHandler {
             serverWindow.appendLog(sender + " 向群组 " + groupId + " 发送文件: " + fileName + " (" + formatFileSize(fileSize) + ")");
             
             // 获取群组成员并转发文件
-            try {
-                FileIO fileIO = new FileIO();
-                ArrayList<String> groupMembers = fileIO.getGroupMembers(groupId);
-                if (groupMembers != null && !groupMembers.isEmpty()) {
-                    // 过滤出在线成员
-                    ArrayList<String> onlineMembers = new ArrayList<>();
-                    for (String member : groupMembers) {
-                        if (server.online_users.contains(member) && !member.equals(sender)) {
-                            onlineMembers.add(member);
-                        }
-                    }
-                    
-                    // 向在线成员转发文件
-                    for (String member : onlineMembers) {
-                        Socket memberSocket = server.userSocketMap.get(member);
-                        if (memberSocket != null && !memberSocket.isClosed()) {
-                            IOStream.writeMessage(memberSocket, info);
-                        }
+            // 向在线成员转发文件，文件内容只编码一次
+            SharedFrame frame = new SharedFrame(info);
+            for (String member : onlineMembers(groupId, sender)) {
+                Socket memberSocket = server.userSocketMap.get(member);
+                if (memberSocket != null && !memberSocket.isClosed()) {
+                    if (tooLargeFor(memberSocket, fileInfo)) {
+                        notifyTooLarge(socket, sender, member, fileName);
+                        continue;
                     }
+                    Connection.of(memberSocket).writeShared(frame, false);
                 }
-            } catch (IOException e) {
-                serverWindow.appendLog("获取群组成员失败: " + e.getMessage());
             }
         } else {
             // 私聊文件处理
@@ -90,28 +88,224 @@ public class FileMessageHandler implements MessageHandler {
             if (server.online_users.contains(receiver)) {
                 Socket receiverSocket = server.userSocketMap.get(receiver);
                 if (receiverSocket != null && !receiverSocket.isClosed()) {
-                    IOStream.writeMessage(receiverSocket, info);
+                    if (tooLargeFor(receiverSocket, fileInfo)) {
+                        notifyTooLarge(socket, sender, receiver, fileName);
+                    } else {
+                        IOStream.writeMessage(receiverSocket, info);
+                    }
                 }
             } else {
-                serverWindow.appendLog("接收者 " + receiver + " 不在线，文件传输失败");
-                // 通知发送者文件传输失败
-                encap_info failureInfo = new encap_info();
-                failureInfo.set_type(7);
-                File_info failureFileInfo = new File_info();
-                failureFileInfo.setFileName(fileName);
-                failureFileInfo.setFromUsername("系统消息");
-                failureFileInfo.setToUsername(sender);
-                failureFileInfo.setGroupFile(false);
-                failureFileInfo.setFileDescription("文件传输失败：接收者不在线");
-                failureInfo.set_file_info(failureFileInfo);
-                
-                IOStream.writeMessage(socket, failureInfo);
+                notifyReceiverOffline(socket, sender, receiver, fileName);
             }
         }
 
         return true;
     }
 
+    /**
+     * 处理分块传输消息
+     * 发送方的OFFER和数据块先写入暂存，校验通过后由 FileSpool 分别向每个在线接收方发送OFFER并按确认逐块转发
+     * @param fileInfo 文件信息
+     * @param socket 消息来源的连接
+     */
+    private void handleTransfer(File_info fileInfo, Socket socket) {
+        FileSpool spool = server.fileSpool;
+        String fileId = fileInfo.getFileId();
+        switch (fileInfo.getStage()) {
+            case OFFER:
+                if (!fileInfo.isGroupFile() && !server.online_users.contains(fileInfo.getToUsername())) {
+                    notifyReceiverOffline(socket, fileInfo.getFromUsername(), fileInfo.getToUsername(), fileInfo.getFileName());
+                    IOStream.writeMessage(socket, FileChunks.wrap(FileChunks.copyOffer(fileInfo, TransferStage.CANCEL)));
+                    break;
+                }
+                // 服务器已有发送方可以复用的相同内容的文件时直接完成，不需要上传
+                FileSpool.SpooledFile existing = canReuse(fileInfo) ? spool.reuse(fileInfo, currentUser, socket) : null;
+                if (existing != null) {
+                    distribute(existing);
+                    break;
+                }
+                // 续传时位图中带有已经收到的块，发送方只补传缺少的块
+                byte[] received = spool.beginUpload(fileInfo, socket);
+                if (received != null) {
+                    serverWindow.appendLog(fileInfo.getFromUsername() + " 开始上传文件: " + fileInfo.getFileName()
+                            + " (" + formatFileSize(fileInfo.getFileSize()) + "，" + fileInfo.getChunkCount() + " 块)");
+                    File_info accept = FileChunks.copyOffer(fileInfo, TransferStage.ACCEPT);
+                    accept.setChunkBitmap(received);
+                    IOStream.writeMessage(socket, FileChunks.wrap(accept));
+                } else {
+                    IOStream.writeMessage(socket, FileChunks.wrap(FileChunks.copyOffer(fileInfo, TransferStage.CANCEL)));
+                }
+                break;
+            case CHUNK:
+                FileSpool.SpooledFile spooled = spool.receiveChunk(fileInfo, socket);
+                if (spooled != null) {
+                    distribute(spooled);
+                }
+                break;
+            case ACCEPT:
+                spool.accept(fileId, socket, fileInfo.getChunkBitmap());
+                break;
+            case ACK:
+                spool.acknowledge(fileId, socket);
+                break;
+            case COMPLETE:
+                spool.complete(fileId, socket);
+                break;
+            case CANCEL:
+                // 发送方取消上传，或者接收方放弃接收
+                spool.cancelUpload(fileId, socket);
+                spool.complete(fileId, socket);
+                break;
+            case REQUEST:
+                // 群成员点击下载之前通知过的群文件
+                if (!fileInfo.isGroupFile() || !isGroupMember(fileInfo.getGroupId(), currentUser)
+                        || !spool.pull(fileInfo, currentUser, socket)) {
+                    serverWindow.appendLog(currentUser + " 请求的文件 " + fileInfo.getFileName() + " 已不可下载");
+                    IOStream.writeMessage(socket, FileChunks.wrap(FileChunks.copyOffer(fileInfo, TransferStage.CANCEL)));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 上传完成后向接收方提供文件
+     * 群文件只向在线成员通知文件信息，成员点击下载时再从存储中拉取，不支持分块传输的旧客户端直接收到整个文件；
+     * 图片需要立即显示预览，不在存储中的文件之后无法拉取，这两种情况仍然直接转发
+     * @param spooled 暂存的文件
+     */
+    private void distribute(FileSpool.SpooledFile spooled) {
+        File_info offer = spooled.getOffer();
+        String sender = offer.getFromUsername();
+        try {
+            if (offer.isGroupFile()) {
+                serverWindow.appendLog(sender + " 向群组 " + offer.getGroupId() + " 发送文件: " + offer.getFileName() + " (" + formatFileSize(offer.getFileSize()) + ")");
+                if (spooled.isStored() && !offer.isImage()) {
+                    SharedFrame frame = new SharedFrame(FileChunks.wrap(FileChunks.copyOffer(offer, TransferStage.ANNOUNCE)));
+                    for (String member : onlineMembers(offer.getGroupId(), sender)) {
+                        Socket memberSocket = server.userSocketMap.get(member);
+                        if (memberSocket == null || memberSocket.isClosed()) {
+                            continue;
+                        }
+                        if (Connection.of(memberSocket).isChunkedTransfer()) {
+                            Connection.of(memberSocket).writeShared(frame, false);
+                        } else {
+                            // 旧客户端不能按通知拉取，直接收到整个文件
+                            server.fileSpool.offer(spooled, member, memberSocket);
+                        }
+                    }
+                    return;
+                }
+                for (String member : onlineMembers(offer.getGroupId(), sender)) {
+                    Socket memberSocket = server.userSocketMap.get(member);
+                    if (memberSocket != null && !memberSocket.isClosed()) {
+                        server.fileSpool.offer(spooled, member, memberSocket);
+                    }
+                }
+            } else {
+                String receiver = offer.getToUsername();
+                serverWindow.appendLog(sender + " 向 " + receiver + " 发送文件: " + offer.getFileName() + " (" + formatFileSize(offer.getFileSize()) + ")");
+                Socket receiverSocket = server.userSocketMap.get(receiver);
+                if (receiverSocket != null && !receiverSocket.isClosed()) {
+                    server.fileSpool.offer(spooled, receiver, receiverSocket);
+                } else {
+                    serverWindow.appendLog("接收者 " + receiver + " 已下线，文件传输失败");
+                }
+            }
+        } finally {
+            server.fileSpool.offered(spooled);
+        }
+    }
+
+    /**
+     * @return 群组中除发送者以外的在线成员
+     */
+    private List<String> onlineMembers(int groupId, String sender) {
+        List<String> onlineMembers = new ArrayList<>();
+        try {
+            FileIO fileIO = new FileIO();
+            ArrayList<String> groupMembers = fileIO.getGroupMembers(groupId);
+            if (groupMembers != null) {
+                for (String member : groupMembers) {
+                    if (server.online_users.contains(member) && !member.equals(sender)) {
+                        onlineMembers.add(member);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            serverWindow.appendLog("获取群组成员失败: " + e.getMessage());
+        }
+        return onlineMembers;
+    }
+
+    /**
+     * OFFER中的发送方是当前用户，群文件还要求当前用户是群成员，否则不能凭校验和复用存储中的文件
+     */
+    private boolean canReuse(File_info offer) {
+        if (currentUser == null || !currentUser.equals(offer.getFromUsername())) {
+            return false;
+        }
+        return !offer.isGroupFile() || isGroupMember(offer.getGroupId(), currentUser);
+    }
+
+    private boolean isGroupMember(int groupId, String username) {
+        try {
+            ArrayList<String> groupMembers = new FileIO().getGroupMembers(groupId);
+            return username != null && groupMembers != null && groupMembers.contains(username);
+        } catch (IOException e) {
+            serverWindow.appendLog("获取群组成员失败: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 通知发送者接收者不在线
+     */
+    private void notifyReceiverOffline(Socket socket, String sender, String receiver, String fileName) {
+        serverWindow.appendLog("接收者 " + receiver + " 不在线，文件传输失败");
+        notifyFailure(socket, sender, fileName, "文件传输失败：接收者不在线");
+    }
+
+    /**
+     * 旧客户端整个文件放在一条消息中发送，文件数据超过一帧时二进制协议的接收方会当作错误数据断开连接
+     * @param recipient 接收方的连接
+     * @param fileInfo 带有文件数据的文件消息
+     * @return 是否不能转发给这个接收方
+     */
+    private boolean tooLargeFor(Socket recipient, File_info fileInfo) {
+        byte[] data = fileInfo.getFileData();
+        return data != null && data.length > FileChunks.MAX_WHOLE_FILE_SIZE
+                && Connection.of(recipient).getProtocol() == Connection.Protocol.BINARY;
+    }
+
+    /**
+     * 通知发送者文件过大，无法转发给某个接收方
+     */
+    private void notifyTooLarge(Socket socket, String sender, String receiver, String fileName) {
+        serverWindow.appendLog("文件 " + fileName + " 超过 " + formatFileSize(FileChunks.MAX_WHOLE_FILE_SIZE) + "，无法转发给 " + receiver);
+        notifyFailure(socket, sender, fileName, "文件传输失败：" + receiver + " 无法接收超过 "
+                + formatFileSize(FileChunks.MAX_WHOLE_FILE_SIZE) + " 的文件，请升级客户端后分块发送");
+    }
+
+    /**
+     * 通知发送者文件传输失败
+     * @param description 显示给发送者的原因
+     */
+    private void notifyFailure(Socket socket, String sender, String fileName, String description) {
+        encap_info failureInfo = new encap_info();
+        failureInfo.set_type(7);
+        File_info failureFileInfo = new File_info();
+        failureFileInfo.setFileName(fileName);
+        failureFileInfo.setFromUsername("系统消息");
+        failureFileInfo.setToUsername(sender);
+        failureFileInfo.setGroupFile(false);
+        failureFileInfo.setFileDescription(description);
+        failureInfo.set_file_info(failureFileInfo);
+
+        IOStream.writeMessage(socket, failureInfo);
+    }
+
     /**
      * 设置当前用户
      * @param currentUser 当前用户名
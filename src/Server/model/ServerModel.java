@@ -4,7 +4,8 @@ import Server.ChatServer;
 import info.Login_info;
 import info.encap_info;
 import io.FileIO;
-import io.IOStream;
+import io.Connection;
+import io.SharedFrame;
 
 import java.io.IOException;
 import java.net.Socket;
@@ -14,6 +15,7 @@ import java.util.stream.Stream;
 
 public class ServerModel {
     ChatServer server;
+    private final FileIO fileio = new FileIO();
     HashMap<Integer,ArrayList<String>> OrgIDToUserList=new HashMap<>();//这是维护的一个，尚未接受邀请的小组的哈希表，是小组ID到未同意邀请的用户的列表
     public void addUserByOrgID(int orgID,ArrayList<String> userList){//将用户添加到动态的列表中
         ArrayList<String> CurrUserList=OrgIDToUserList.get(orgID);
@@ -45,10 +47,9 @@ public class ServerModel {
     public boolean checkUserLogin(Login_info tfi) throws IOException {
         String userName = tfi.getUserName();
         String password = tfi.getPassword();
-        FileIO fileio = new FileIO();
-        return fileio.validateUser(userName,password);//用户名密码正确
+        return fileio.validateUser(userName,password);//用户名密码正确，直接查内存中的用户表
     }
-    public boolean checkUserOnline(String User,ArrayList<String> online_users){
+    public boolean checkUserOnline(String User,List<String> online_users){
         boolean flag = false;
         for(int i = 0;i<online_users.size();i++){
             if(online_users.get(i).equals(User)){
@@ -59,15 +60,25 @@ public class ServerModel {
         return flag;
     }
     public void sendALL(encap_info INFO){
-        for (int i = 0; i < server.online_sockets.size(); i++) {
-            Socket tempSocket = server.online_sockets.get(i);
-            IOStream.writeMessage(tempSocket , INFO);
+        sendALL(INFO, false);
+    }
+    /*
+    * 向所有在线用户广播上线/下线通知
+    * 接收方发送队列已满时可以丢弃，之后的通知会带上完整的在线列表
+    * */
+    public void sendPresenceALL(encap_info INFO){
+        sendALL(INFO, true);
+    }
+    private void sendALL(encap_info INFO, boolean presence){
+        SharedFrame frame = new SharedFrame(INFO);//只编码一次
+        for (Socket tempSocket : server.online_sockets) {
+            Connection.of(tempSocket).writeShared(frame, presence);
         }
     }
     /*
     * 过滤转发列表中非在线的用户
     * */
-    public void filterOnlineMembers(ArrayList<String> group_members, ArrayList<String> online_users) {
+    public void filterOnlineMembers(ArrayList<String> group_members, List<String> online_users) {
         if(online_users.isEmpty()){
             return;
         }
@@ -84,17 +95,27 @@ public class ServerModel {
     * 转发消息到指定用户
     * */
     public void Send2Users(encap_info INFO, ArrayList<String> to_user){
+        Send2Users(INFO, to_user, false);
+    }
+    /*
+    * 向指定用户发送上线/下线通知，接收方发送队列已满时可以丢弃
+    * */
+    public void sendPresence(encap_info INFO, ArrayList<String> to_user){
+        Send2Users(INFO, to_user, true);
+    }
+    private void Send2Users(encap_info INFO, ArrayList<String> to_user, boolean presence){
         // --- MODIFIED --- 添加了安全检查
         if(to_user == null || to_user.isEmpty()){
             return;
         }
+        SharedFrame frame = new SharedFrame(INFO);//只编码一次，所有接收方共用
         for(String user : to_user) {
             //先从hashmap中拿到对应用户的socket
             Socket tempSocket = server.userSocketMap.get(user);
 
             // 安全检查：只在socket不为null时发送
             if (tempSocket != null) {
-                IOStream.writeMessage(tempSocket , INFO);
+                Connection.of(tempSocket).writeShared(frame, presence);
             }
         }
     }
@@ -0,0 +1,304 @@
+package Server.nio;
+
+import Server.ClientSession;
+import Server.view.ServerWindow;
+import info.encap_info;
+import io.Connection;
+import io.FileRegion;
+import io.codec.WireCodec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * NIO通道上的连接
+ * 读写都在所属事件循环中非阻塞完成；解码出的消息按到达顺序交给工作线程池，
+ * 同一连接的消息串行处理，不同连接之间并行。
+ * NIO核心只支持 WireCodec 二进制帧，使用Java序列化的客户端会被断开。
+ * 读取由事件循环驱动，不提供 SocketConnection 那样的阻塞读取
+ */
+public final class NioConnection extends Connection {
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    private final SocketChannel channel;
+    private final NioEventLoop loop;
+    private final Executor workers;
+    private final ServerWindow serverWindow;
+    private ClientSession session;
+    private SelectionKey key;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private boolean handshaken = false;
+    private final Queue<encap_info> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private volatile boolean closing = false;
+    private volatile boolean closed = false;
+
+    public NioConnection(SocketChannel channel, NioEventLoop loop, Executor workers, ServerWindow serverWindow) {
+        super(channel.socket(), true);
+        this.channel = channel;
+        this.loop = loop;
+        this.workers = workers;
+        this.serverWindow = serverWindow;
+        register(this);
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public void setSession(ClientSession session) {
+        this.session = session;
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    public Protocol getProtocol() {
+        return Protocol.BINARY;
+    }
+
+    /**
+     * 编码后放入发送队列，由事件循环写出，调用方不会被慢速的接收方阻塞
+     */
+    @Override
+    public boolean writeMessage(Object message, boolean droppable) {
+        if (closing || closed) {
+            return false;
+        }
+        if (!(message instanceof encap_info)) {
+            throw new IllegalArgumentException("二进制帧只支持 encap_info: " + message.getClass().getName());
+        }
+        try {
+            return enqueue(ByteBuffer.wrap(encodeBinary((encap_info) message)), droppable);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    protected void scheduleWrite() {
+        if (loop.inEventLoop()) {
+            onWritable();
+        } else {
+            loop.execute(this::onWritable);
+        }
+    }
+
+    @Override
+    protected void onOverflow() {
+        loop.execute(() -> onDisconnected(new IOException("发送队列已满，断开慢速连接")));
+    }
+
+    /**
+     * 写完已排队的数据后再关闭，保证类似“被踢下线”的通知能送达
+     */
+    @Override
+    public void close() {
+        closing = true;
+        loop.execute(() -> {
+            if (outbound().isEmpty()) {
+                closeNow();
+            }
+        });
+    }
+
+    /**
+     * 立即关闭通道，丢弃未写出的数据
+     */
+    void closeNow() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        release(getSocket());
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            serverWindow.appendLog("关闭连接时出错: " + e.getMessage());
+        }
+        outbound().close();
+        inbox.clear();
+        releaseCompression();
+    }
+
+    void onReadable() {
+        int read;
+        try {
+            read = channel.read(readBuffer);
+        } catch (IOException e) {
+            onDisconnected(e);
+            return;
+        }
+        if (read < 0) {
+            onDisconnected(new EOFException("连接已关闭"));
+            return;
+        }
+        readBuffer.flip();
+        try {
+            if (!handshaken && !readHandshake()) {
+                readBuffer.compact();
+                return;
+            }
+            readFrames();
+        } catch (IOException e) {
+            serverWindow.appendLog("消息格式错误，断开连接: " + e.getMessage());
+            closeNow();
+            return;
+        }
+        if (!closed) {
+            readBuffer.compact();
+            shrinkIfIdle();
+        }
+    }
+
+    /**
+     * 客户端断开时关闭通道，并在工作线程中为已登录的用户执行登出清理
+     */
+    private void onDisconnected(IOException cause) {
+        if (closed) {
+            return;
+        }
+        serverWindow.appendLog("连接已关闭，停止处理消息: " + cause.getMessage());
+        closeNow();
+        if (session != null) {
+            workers.execute(() -> session.handleIOException(cause));
+        }
+    }
+
+    private boolean readHandshake() throws IOException {
+        if (readBuffer.remaining() < 4) {
+            return false;
+        }
+        if (readBuffer.getInt() != WireCodec.MAGIC) {
+            throw new IOException("NIO服务端只支持二进制协议的客户端");
+        }
+        handshaken = true;
+        ByteBuffer ack = ByteBuffer.allocate(4).putInt(WireCodec.MAGIC);
+        ack.flip();
+        enqueue(ack, false);
+        return true;
+    }
+
+    private void readFrames() throws IOException {
+        while (readBuffer.remaining() >= 4) {
+            int length = readBuffer.getInt(readBuffer.position());
+            if (length < 2 || length > WireCodec.MAX_FRAME_LENGTH) {
+                throw new IOException("帧长度错误: " + length);
+            }
+            if (readBuffer.remaining() < 4 + length) {
+                // 帧还没有收全，先处理已经解码的消息
+                ensureCapacity(4 + length);
+                break;
+            }
+            readBuffer.position(readBuffer.position() + 4);
+            encap_info info = decodeBinary(readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(), length);
+            readBuffer.position(readBuffer.position() + length);
+            inbox.add(info);
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * 当前帧比缓冲区大时扩容，缓冲区此时处于读模式
+     * 帧长度已经过 WireCodec.MAX_FRAME_LENGTH 检查，缓冲区不会超过一个最大帧
+     */
+    private void ensureCapacity(int frameSize) {
+        if (frameSize <= readBuffer.capacity()) {
+            return;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(frameSize);
+        larger.put(readBuffer);
+        larger.flip();
+        readBuffer = larger;
+    }
+
+    /**
+     * 大帧处理完后缓冲区已空时换回初始大小，空闲连接不长期占用大缓冲区，缓冲区此时处于写模式
+     */
+    private void shrinkIfIdle() {
+        if (readBuffer.position() == 0 && readBuffer.capacity() > INITIAL_BUFFER_SIZE) {
+            readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        }
+    }
+
+    void onWritable() {
+        if (closed) {
+            return;
+        }
+        try {
+            ByteBuffer buffer;
+            while ((buffer = outbound().peek()) != null) {
+                FileRegion region = outbound().peekRegion();
+                if (region != null && !region.open()) {
+                    // 文件已随传输结束删除，帧头还没有写出，整帧丢弃
+                    outbound().remove();
+                    continue;
+                }
+                channel.write(buffer);
+                if (buffer.hasRemaining() || (region != null && !region.transferTo(channel))) {
+                    // 内核发送缓冲区已满，等待可写事件
+                    if (key != null && key.isValid()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                    return;
+                }
+                if (region != null) {
+                    region.close();
+                }
+                outbound().remove();
+            }
+            if (key != null && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            if (closing) {
+                closeNow();
+            }
+        } catch (IOException e) {
+            serverWindow.appendLog("写出数据失败: " + e.getMessage());
+            closeNow();
+        }
+    }
+
+    private void scheduleDrain() {
+        if (!inbox.isEmpty() && draining.compareAndSet(false, true)) {
+            workers.execute(this::drainInbox);
+        }
+    }
+
+    /**
+     * 在工作线程中按顺序处理收到的消息
+     */
+    private void drainInbox() {
+        do {
+            encap_info info;
+            while (!closed && (info = inbox.poll()) != null) {
+                try {
+                    if (!session.dispatch(info)) {
+                        close();
+                    }
+                } catch (IOException e) {
+                    session.handleIOException(e);
+                    close();
+                } catch (RuntimeException e) {
+                    serverWindow.appendLog("处理消息时出错: " + e);
+                    e.printStackTrace();
+                }
+            }
+            draining.set(false);
+        } while (!closed && !inbox.isEmpty() && draining.compareAndSet(false, true));
+    }
+}
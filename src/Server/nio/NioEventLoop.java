@@ -0,0 +1,98 @@
+package Server.nio;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 事件循环线程
+ * 每个循环持有一个Selector，负责分配给它的连接上的全部非阻塞读写，
+ * 其他线程只能通过任务队列请求注册、写出或关闭
+ */
+public final class NioEventLoop extends Thread {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    public NioEventLoop(String name) throws IOException {
+        super(name);
+        this.selector = Selector.open();
+        setDaemon(true);
+    }
+
+    /**
+     * 把新连接注册到本循环
+     * @param connection 新接受的连接
+     */
+    public void register(NioConnection connection) {
+        execute(() -> {
+            try {
+                SelectionKey key = connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+                connection.attach(key);
+            } catch (ClosedChannelException e) {
+                connection.closeNow();
+            }
+        });
+    }
+
+    /**
+     * 在循环线程中执行任务，并唤醒阻塞中的select
+     * @param task 要执行的任务
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * @return 当前线程是否就是本循环线程
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == this;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (!key.isValid()) {
+                        connection.closeNow();
+                        continue;
+                    }
+                    if (key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+            } catch (IOException e) {
+                System.err.println("[NioEventLoop] select失败: " + e.getMessage());
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("[NioEventLoop] 关闭Selector失败: " + e.getMessage());
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
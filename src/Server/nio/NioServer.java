@@ -0,0 +1,79 @@
+package Server.nio;
+
+import Server.ChatServer;
+import Server.ClientSession;
+import Server.view.ServerWindow;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于 ServerSocketChannel + Selector 的服务端核心
+ * 少量事件循环线程负责所有连接的读写，消息处理交给固定大小的工作线程池，
+ * 处理逻辑仍然复用 ClientSession 和 MessageHandlerFactory 中的各个处理器
+ */
+public class NioServer {
+    private final ChatServer server;
+    private final ServerWindow serverWindow;
+    private final int port;
+    private final NioEventLoop[] loops;
+    private final ExecutorService workers;
+    private int nextLoop = 0;
+
+    /**
+     * @param server 聊天服务器，保存在线用户等共享状态
+     * @param serverWindow 服务器窗口
+     * @param port 监听端口
+     * @param loopCount 事件循环线程数
+     * @param workerCount 消息处理线程数
+     */
+    public NioServer(ChatServer server, ServerWindow serverWindow, int port, int loopCount, int workerCount) throws IOException {
+        this.server = server;
+        this.serverWindow = serverWindow;
+        this.port = port;
+        this.loops = new NioEventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new NioEventLoop("nio-loop-" + i);
+        }
+        AtomicInteger workerIndex = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread t = new Thread(r, "nio-worker-" + workerIndex.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 启动事件循环并在当前线程中接受连接，不会返回
+     * @throws IOException 如果监听端口失败
+     */
+    public void start() throws IOException {
+        for (NioEventLoop loop : loops) {
+            loop.start();
+        }
+        try (ServerSocketChannel acceptor = ServerSocketChannel.open()) {
+            acceptor.bind(new InetSocketAddress(port));
+            while (true) {
+                //等待连接，阻塞实现，接受后交给事件循环
+                SocketChannel channel = acceptor.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                NioEventLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                NioConnection connection = new NioConnection(channel, loop, workers, serverWindow);
+                ClientSession session = new ClientSession(channel.socket(), server, serverWindow);
+                connection.setSession(session);
+                server.SocketHandlerMap.put(channel.socket(), session);
+                loop.register(connection);
+
+                serverWindow.appendLog("服务器接受到客户端的连接：" + channel.socket());
+            }
+        }
+    }
+}
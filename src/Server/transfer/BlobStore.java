@@ -0,0 +1,272 @@
+package Server.transfer;
+
+import Server.view.ServerWindow;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按内容寻址的文件存储
+ * 上传完成的文件以SHA-256命名保存，同样内容的文件再次发送时直接复用，不需要重新上传。
+ * 只凭校验和不能证明发送方拥有文件，所以只有上传过这个文件的用户、或者已经引用它的会话才能复用。
+ * 每个文件记录引用它的会话、上传者和最后一次使用的时间，所有引用都过期、并且没有正在进行的转发时删除
+ */
+public class BlobStore {
+    // 存储目录，可以用 -Dchat.server.blobs 调整
+    private static final Path BLOB_DIR = Paths.get(System.getProperty("chat.server.blobs", "file_blobs"));
+    // 会话引用的保留时间（天），可以用 -Dchat.server.blobs.ttl 调整
+    private static final long RETENTION_MILLIS = TimeUnit.DAYS.toMillis(Long.getLong("chat.server.blobs.ttl", 7));
+    private static final String BLOB_SUFFIX = ".blob";
+    private static final String REFS_SUFFIX = ".refs";
+    // 上传者的引用名前缀，会话的引用名为 group:群ID 或 private:用户A,用户B
+    private static final String OWNER_PREFIX = "user:";
+
+    /**
+     * 一个已保存的文件
+     */
+    private static final class Blob {
+        final Path path;
+        final long size;
+        final Properties refs = new Properties(); // 会话或上传者 -> 最后使用时间
+        int inFlight; // 正在进行的转发数
+
+        Blob(Path path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    private final ServerWindow serverWindow;
+    private final Map<String, Blob> blobs = new HashMap<>();
+    // 保护 blobs 和各文件的引用，使用 ReentrantLock 以免读写引用文件时把虚拟线程固定在载体线程上
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public BlobStore(ServerWindow serverWindow) {
+        this.serverWindow = serverWindow;
+        load();
+    }
+
+    /**
+     * 读取存储目录中已有的文件和引用记录，并清理已经过期的文件
+     */
+    private void load() {
+        if (!Files.isDirectory(BLOB_DIR)) {
+            return;
+        }
+        lock.lock();
+        try {
+            loadLocked();
+            collect();
+        } finally {
+            lock.unlock();
+        }
+        if (!blobs.isEmpty()) {
+            serverWindow.appendLog("文件存储中有 " + blobs.size() + " 个文件");
+        }
+    }
+
+    private void loadLocked() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(BLOB_DIR, "*" + BLOB_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String hash = name.substring(0, name.length() - BLOB_SUFFIX.length());
+                if (!isHash(hash)) {
+                    continue;
+                }
+                Blob blob = new Blob(file, Files.size(file));
+                Path refs = refsPath(hash);
+                if (Files.exists(refs)) {
+                    try (InputStream in = Files.newInputStream(refs)) {
+                        blob.refs.load(in);
+                    }
+                }
+                blobs.put(hash, blob);
+            }
+        } catch (IOException e) {
+            serverWindow.appendLog("读取文件存储失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 查找发送方可以复用的相同内容的文件，找到时记录引用并占用一次转发
+     * @param hash 文件的SHA-256
+     * @param size 文件大小，与保存的文件不一致时不复用
+     * @param conversation 会话
+     * @param owner 发送方用户名，由服务端确认过身份
+     * @return 文件路径；没有、或者发送方和会话都没有引用过时返回null
+     */
+    public Path acquire(String hash, long size, String conversation, String owner) {
+        if (!isHash(hash)) {
+            return null;
+        }
+        lock.lock();
+        try {
+            Blob blob = blobs.get(hash.toLowerCase(Locale.ROOT));
+            if (blob == null || (!isReferenced(blob, conversation) && !isReferenced(blob, OWNER_PREFIX + owner))) {
+                return null;
+            }
+            return acquireLocked(hash, size, conversation, OWNER_PREFIX + owner);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Path acquireLocked(String hash, long size, String... refs) {
+        Blob blob = blobs.get(hash.toLowerCase(Locale.ROOT));
+        if (blob == null || blob.size != size || !Files.exists(blob.path)) {
+            return null;
+        }
+        reference(hash, blob, refs);
+        blob.inFlight++;
+        return blob.path;
+    }
+
+    private static boolean isReferenced(Blob blob, String ref) {
+        return parseTime(blob.refs.getProperty(ref)) >= System.currentTimeMillis() - RETENTION_MILLIS;
+    }
+
+    /**
+     * 取得会话中已经引用的文件，用于群成员拉取之前通知过的文件
+     * @param hash 文件的SHA-256
+     * @param size 文件大小
+     * @param conversation 请求方所在的会话，必须已经引用该文件
+     * @return 文件路径，已占用一次转发；会话没有引用或引用已过期时返回null
+     */
+    public Path acquireReferenced(String hash, long size, String conversation) {
+        if (!isHash(hash)) {
+            return null;
+        }
+        lock.lock();
+        try {
+            Blob blob = blobs.get(hash.toLowerCase(Locale.ROOT));
+            if (blob == null || !isReferenced(blob, conversation)) {
+                return null;
+            }
+            return acquireLocked(hash, size, conversation);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 保存一个校验过的文件，已经有相同内容时删除新文件
+     * @param hash 文件的SHA-256
+     * @param file 暂存的文件，成功后被移入存储目录
+     * @param conversation 会话
+     * @param owner 上传者用户名，之后可以在其他会话中复用这个文件
+     * @return 存储中的文件路径，已占用一次转发；保存失败时返回null，文件保留在原处
+     */
+    public Path store(String hash, Path file, String conversation, String owner) {
+        if (!isHash(hash)) {
+            return null;
+        }
+        hash = hash.toLowerCase(Locale.ROOT);
+        lock.lock();
+        try {
+            Blob blob = blobs.get(hash);
+            if (blob != null && Files.exists(blob.path)) {
+                Files.deleteIfExists(file);
+            } else {
+                Files.createDirectories(BLOB_DIR);
+                Path path = BLOB_DIR.resolve(hash + BLOB_SUFFIX);
+                Files.move(file, path, StandardCopyOption.REPLACE_EXISTING);
+                blob = new Blob(path, Files.size(path));
+                blobs.put(hash, blob);
+            }
+            reference(hash, blob, conversation, OWNER_PREFIX + owner);
+            blob.inFlight++;
+            return blob.path;
+        } catch (IOException e) {
+            serverWindow.appendLog("保存文件到存储失败: " + e.getMessage());
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 一次转发结束，没有其他转发时顺便清理过期的文件
+     * @param hash 文件的SHA-256
+     */
+    public void release(String hash) {
+        lock.lock();
+        try {
+            Blob blob = blobs.get(hash.toLowerCase(Locale.ROOT));
+            if (blob != null && blob.inFlight > 0 && --blob.inFlight == 0) {
+                collect();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 删除所有会话引用都已过期、并且没有正在进行转发的文件
+     * 在锁内删除，避免删掉同时重新保存的同一内容的文件
+     */
+    private void collect() {
+        long deadline = System.currentTimeMillis() - RETENTION_MILLIS;
+        Iterator<Map.Entry<String, Blob>> it = blobs.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Blob> entry = it.next();
+            Blob blob = entry.getValue();
+            if (blob.inFlight > 0) {
+                continue;
+            }
+            blob.refs.entrySet().removeIf(ref -> parseTime(ref.getValue()) < deadline);
+            if (blob.refs.isEmpty()) {
+                it.remove();
+                try {
+                    Files.deleteIfExists(blob.path);
+                    Files.deleteIfExists(refsPath(entry.getKey()));
+                } catch (IOException e) {
+                    serverWindow.appendLog("删除过期文件失败: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void reference(String hash, Blob blob, String... refs) {
+        String now = Long.toString(System.currentTimeMillis());
+        for (String ref : refs) {
+            blob.refs.setProperty(ref, now);
+        }
+        try (OutputStream out = Files.newOutputStream(refsPath(hash.toLowerCase(Locale.ROOT)))) {
+            blob.refs.store(out, null);
+        } catch (IOException e) {
+            serverWindow.appendLog("保存文件引用失败: " + e.getMessage());
+        }
+    }
+
+    private static long parseTime(Object value) {
+        try {
+            return Long.parseLong(String.valueOf(value));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static Path refsPath(String hash) {
+        return BLOB_DIR.resolve(hash + REFS_SUFFIX);
+    }
+
+    /**
+     * 校验和直接用作文件名，只接受64位十六进制
+     */
+    private static boolean isHash(String hash) {
+        return hash != null && hash.matches("[0-9a-fA-F]{64}");
+    }
+}
@@ -0,0 +1,650 @@
+package Server.transfer;
+
+import Server.view.ServerWindow;
+import info.File_info;
+import info.File_info.TransferStage;
+import io.ChunkBitmap;
+import io.Connection;
+import io.FileChunks;
+import io.FileRegion;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 服务端的分块文件中转
+ * 发送方上传的数据块按偏移写入暂存目录中的文件，全部收到并校验通过后再逐块转发给各个接收方，
+ * 每个接收方按确认推进发送窗口，内存中只保留窗口内的数据块，与文件大小无关。
+ * 支持断点续传：上传的已收到块记录在暂存目录的位图文件中，发送方重新发送OFFER时只补传缺少的块；
+ * 接收方断开时转发被挂起，重新登录后再次发送OFFER，并按接收方的位图只发送缺少的块。
+ * 校验通过的文件移入按内容寻址的 BlobStore，之后发送相同内容的文件时直接从存储转发，发送方不需要上传。
+ * 登录时没有声明支持分块传输的旧客户端把OFFER和数据块当作空文件保存，向它们整个文件放在一条消息中发送
+ */
+public class FileSpool {
+    // 暂存目录，可以用 -Dchat.server.spool 调整
+    private static final Path SPOOL_DIR = Paths.get(System.getProperty("chat.server.spool", "file_spool"));
+    // 未完成的上传和挂起的转发保留的时间（小时），可以用 -Dchat.server.spool.ttl 调整
+    private static final long RETENTION_MILLIS = TimeUnit.HOURS.toMillis(Long.getLong("chat.server.spool.ttl", 24));
+
+    /**
+     * 正在上传的文件
+     */
+    private static final class Upload {
+        final File_info offer;
+        final Path path;
+        final FileChannel channel;
+        final ChunkBitmap received;
+        // 写暂存文件时持有，使用 ReentrantLock 以免磁盘IO时把虚拟线程固定在载体线程上
+        final ReentrantLock lock = new ReentrantLock();
+        Socket sender; // 发送方重新连接后更新
+
+        Upload(File_info offer, Socket sender, Path path, FileChannel channel, ChunkBitmap received) {
+            this.offer = offer;
+            this.sender = sender;
+            this.path = path;
+            this.channel = channel;
+            this.received = received;
+        }
+    }
+
+    /**
+     * 已经上传完成、等待转发的文件，所有接收方结束后释放
+     */
+    public static final class SpooledFile {
+        private final File_info offer;
+        private final Path path;
+        private final boolean stored; // 文件在 BlobStore 中，结束后释放引用而不是删除
+        // 未结束的转发数，另外加一表示还在向接收方发送OFFER
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+        SpooledFile(File_info offer, Path path, boolean stored) {
+            this.offer = offer;
+            this.path = path;
+            this.stored = stored;
+        }
+
+        public File_info getOffer() {
+            return offer;
+        }
+
+        /**
+         * @return 文件是否在 BlobStore 中，可以在之后按需拉取
+         */
+        public boolean isStored() {
+            return stored;
+        }
+    }
+
+    /**
+     * 向一个接收方的转发
+     */
+    private static final class Delivery {
+        final SpooledFile file;
+        final String recipientName;
+        final ReentrantLock lock = new ReentrantLock();
+        Socket recipient;     // 挂起时为null
+        boolean accepted;     // 接收方已接受，正在发送数据块
+        byte[] skip;          // 接收方已有的块
+        int nextChunk = 0;
+        long parkedAt;
+
+        Delivery(SpooledFile file, String recipientName, Socket recipient) {
+            this.file = file;
+            this.recipientName = recipientName;
+            this.recipient = recipient;
+        }
+    }
+
+    private final ServerWindow serverWindow;
+    private final BlobStore blobs;
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final Map<Socket, Map<String, Delivery>> deliveries = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Delivery>> parked = new ConcurrentHashMap<>(); // 按接收方用户名挂起的转发
+    // 连接断开和用户重新登录互斥，保证转发不会同时被挂起和恢复
+    private final ReentrantLock sessionLock = new ReentrantLock();
+
+    public FileSpool(ServerWindow serverWindow) {
+        this.serverWindow = serverWindow;
+        this.blobs = new BlobStore(serverWindow);
+        deleteExpired();
+    }
+
+    /**
+     * 删除暂存目录中超过保留时间的文件，通常是发送方再也没有续传的上传
+     */
+    private void deleteExpired() {
+        if (!Files.isDirectory(SPOOL_DIR)) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() - RETENTION_MILLIS;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(SPOOL_DIR)) {
+            for (Path file : files) {
+                if (Files.getLastModifiedTime(file).toMillis() < deadline) {
+                    deleteQuietly(file);
+                }
+            }
+        } catch (IOException e) {
+            serverWindow.appendLog("清理文件暂存失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 发送方上传过、或者会话中已经引用过相同内容的文件时直接完成上传
+     * @param offer 发送方的OFFER
+     * @param username 发送方用户名，调用方负责确认与OFFER中的发送方一致
+     * @param sender 发送方的连接
+     * @return 可以转发的文件，没有可以复用的文件时返回null，调用方继续正常上传
+     */
+    public SpooledFile reuse(File_info offer, String username, Socket sender) {
+        if (!FileChunks.isValidOffer(offer) || uploads.containsKey(offer.getFileId())) {
+            return null;
+        }
+        Path path = blobs.acquire(offer.getChecksum(), offer.getFileSize(), conversation(offer), username);
+        if (path == null) {
+            return null;
+        }
+        serverWindow.appendLog("文件 " + offer.getFileName() + " 已在存储中，跳过上传");
+        Connection.of(sender).writeMessage(FileChunks.wrap(FileChunks.copyOffer(offer, TransferStage.COMPLETE)));
+        return new SpooledFile(offer, path, true);
+    }
+
+    /**
+     * 群成员拉取之前通知过的群文件，从存储中向请求方发送OFFER
+     * @param request 请求方带回的文件信息
+     * @param username 请求方用户名，调用方负责确认是群成员
+     * @param socket 请求方的连接
+     * @return 是否开始转发，文件已不在存储中时返回false
+     */
+    public boolean pull(File_info request, String username, Socket socket) {
+        if (!request.isGroupFile() || !FileChunks.isValidOffer(request)) {
+            return false;
+        }
+        Path path = blobs.acquireReferenced(request.getChecksum(), request.getFileSize(), conversation(request));
+        if (path == null) {
+            return false;
+        }
+        SpooledFile file = new SpooledFile(FileChunks.copyOffer(request, TransferStage.OFFER), path, true);
+        try {
+            offer(file, username, socket);
+        } finally {
+            offered(file);
+        }
+        return true;
+    }
+
+    /**
+     * 文件所属的会话，用于记录存储中文件的引用
+     */
+    private static String conversation(File_info offer) {
+        if (offer.isGroupFile()) {
+            return "group:" + offer.getGroupId();
+        }
+        String from = String.valueOf(offer.getFromUsername());
+        String to = String.valueOf(offer.getToUsername());
+        return from.compareTo(to) <= 0 ? "private:" + from + "," + to : "private:" + to + "," + from;
+    }
+
+    /**
+     * 开始或继续接收一个文件
+     * @param offer 发送方的OFFER
+     * @param sender 发送方的连接
+     * @return 已收到块的位图，放在ACCEPT中；返回null时调用方应回复CANCEL
+     */
+    public byte[] beginUpload(File_info offer, Socket sender) {
+        if (!FileChunks.isValidOffer(offer)) {
+            return null;
+        }
+        Upload existing = uploads.get(offer.getFileId());
+        if (existing != null) {
+            // 旧连接还没有被发现断开，发送方已经通过新连接续传
+            existing.lock.lock();
+            try {
+                if (!existing.offer.getChecksum().equals(offer.getChecksum())) {
+                    return null;
+                }
+                existing.sender = sender;
+                return existing.received.toByteArray();
+            } finally {
+                existing.lock.unlock();
+            }
+        }
+        String baseName = offer.getFileId().replaceAll("[^A-Za-z0-9-]", "_");
+        Path path = SPOOL_DIR.resolve(baseName + ".part");
+        FileChannel channel = null;
+        try {
+            Files.createDirectories(SPOOL_DIR);
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ChunkBitmap received = ChunkBitmap.open(SPOOL_DIR.resolve(baseName + ".bitmap"), offer);
+            if (received.isResumed()) {
+                serverWindow.appendLog("继续接收文件 " + offer.getFileName() + "，已收到 "
+                        + received.cardinality() + "/" + offer.getChunkCount() + " 块");
+            } else {
+                channel.truncate(0);
+            }
+            Upload upload = new Upload(offer, sender, path, channel, received);
+            if (uploads.putIfAbsent(offer.getFileId(), upload) != null) {
+                received.close();
+                channel.close();
+                return null;
+            }
+            return received.toByteArray();
+        } catch (IOException e) {
+            serverWindow.appendLog("创建文件暂存失败: " + e.getMessage());
+            closeQuietly(channel);
+            return null;
+        }
+    }
+
+    /**
+     * 写入发送方上传的一个数据块并确认
+     * @param chunk 数据块
+     * @param sender 发送方的连接
+     * @return 最后一块写入并校验通过后返回暂存的文件，否则返回null
+     */
+    public SpooledFile receiveChunk(File_info chunk, Socket sender) {
+        Upload upload = uploads.get(chunk.getFileId());
+        if (upload == null) {
+            return null;
+        }
+        upload.lock.lock();
+        try {
+            if (upload.sender != sender || uploads.get(chunk.getFileId()) != upload) {
+                return null;
+            }
+            if (!FileChunks.isValidChunk(upload.offer, chunk)) {
+                abortUpload(upload, "数据块无效");
+                return null;
+            }
+            try {
+                FileChunks.writeChunk(upload.channel, upload.offer, chunk);
+                upload.received.set(chunk.getChunkIndex());
+            } catch (IOException e) {
+                abortUpload(upload, "写入暂存失败: " + e.getMessage());
+                return null;
+            }
+            Connection.of(sender).writeMessage(FileChunks.message(chunk.getFileId(), null,
+                    TransferStage.ACK, chunk.getChunkIndex(), null));
+            if (!upload.received.isComplete()) {
+                return null;
+            }
+            uploads.remove(upload.offer.getFileId());
+        } finally {
+            upload.lock.unlock();
+        }
+        // 上传已经从表中移除，不会再有其他线程访问，整个文件的校验在锁外进行
+        try {
+            upload.channel.close();
+            if (!upload.offer.getChecksum().equalsIgnoreCase(FileChunks.sha256(upload.path))) {
+                abortUpload(upload, "校验和不一致");
+                return null;
+            }
+        } catch (IOException e) {
+            abortUpload(upload, "校验暂存文件失败: " + e.getMessage());
+            return null;
+        }
+        upload.received.delete();
+        Connection.of(sender).writeMessage(FileChunks.wrap(FileChunks.copyOffer(upload.offer, TransferStage.COMPLETE)));
+        Path stored = blobs.store(upload.offer.getChecksum(), upload.path, conversation(upload.offer), upload.offer.getFromUsername());
+        return stored != null ? new SpooledFile(upload.offer, stored, true) : new SpooledFile(upload.offer, upload.path, false);
+    }
+
+    /**
+     * 发送方取消上传，删除已收到的数据
+     */
+    public void cancelUpload(String fileId, Socket sender) {
+        Upload upload = uploads.get(fileId);
+        if (upload != null) {
+            upload.lock.lock();
+            try {
+                if (upload.sender == sender && uploads.remove(fileId, upload)) {
+                    discard(upload);
+                }
+            } finally {
+                upload.lock.unlock();
+            }
+        }
+    }
+
+    private void abortUpload(Upload upload, String reason) {
+        serverWindow.appendLog("文件 " + upload.offer.getFileName() + " 上传失败：" + reason);
+        uploads.remove(upload.offer.getFileId(), upload);
+        discard(upload);
+        Connection.of(upload.sender).writeMessage(FileChunks.wrap(FileChunks.copyOffer(upload.offer, TransferStage.CANCEL)));
+    }
+
+    private void discard(Upload upload) {
+        closeQuietly(upload.channel);
+        upload.received.delete();
+        deleteQuietly(upload.path);
+    }
+
+    /**
+     * 向一个接收方提供已暂存的文件，接收方回复ACCEPT后开始发送数据块；不支持分块传输的接收方直接收到整个文件
+     * @param file 暂存的文件
+     * @param recipientName 接收方用户名，断开后按用户名挂起
+     * @param recipient 接收方的连接
+     */
+    public void offer(SpooledFile file, String recipientName, Socket recipient) {
+        if (!Connection.of(recipient).isChunkedTransfer()) {
+            sendWhole(file, recipientName, recipient);
+            return;
+        }
+        file.pending.incrementAndGet();
+        Delivery delivery = new Delivery(file, recipientName, recipient);
+        deliveries.computeIfAbsent(recipient, k -> new ConcurrentHashMap<>()).put(file.offer.getFileId(), delivery);
+        sendOffer(delivery);
+    }
+
+    private void sendOffer(Delivery delivery) {
+        Connection.of(delivery.recipient).writeMessage(FileChunks.wrap(FileChunks.copyOffer(delivery.file.offer, TransferStage.OFFER)));
+    }
+
+    /**
+     * 向不支持分块传输的接收方发送整个文件，调用方持有文件的引用
+     * 超过 FileChunks.MAX_WHOLE_FILE_SIZE 的文件放不进一条消息，通知接收方升级客户端
+     */
+    private void sendWhole(SpooledFile file, String recipientName, Socket recipient) {
+        File_info offer = file.offer;
+        if (offer.getFileSize() <= FileChunks.MAX_WHOLE_FILE_SIZE) {
+            try {
+                File_info whole = FileChunks.copyOffer(offer, null);
+                whole.setFileData(Files.readAllBytes(file.path));
+                Connection.of(recipient).writeMessage(FileChunks.wrap(whole));
+                return;
+            } catch (IOException e) {
+                serverWindow.appendLog("读取文件 " + offer.getFileName() + " 失败: " + e.getMessage());
+            }
+        } else {
+            serverWindow.appendLog("文件 " + offer.getFileName() + " 过大，" + recipientName + " 的客户端不支持分块接收");
+        }
+        File_info failure = new File_info();
+        failure.setFileName(offer.getFileName());
+        failure.setFromUsername("系统消息");
+        failure.setToUsername(recipientName);
+        failure.setGroupFile(false);
+        failure.setFileDescription("文件接收失败：" + offer.getFromUsername() + " 发送的文件过大，请升级客户端后接收");
+        Connection.of(recipient).writeMessage(FileChunks.wrap(failure));
+    }
+
+    /**
+     * 所有接收方都已收到OFFER，没有接收方或转发都已结束时释放文件
+     * @param file 暂存的文件
+     */
+    public void offered(SpooledFile file) {
+        releaseFile(file);
+    }
+
+    /**
+     * 接收方接受文件，跳过接收方已有的块，发送第一个窗口的数据块
+     * @param fileId 文件ID
+     * @param recipient 接收方的连接
+     * @param bitmap 接收方已收到块的位图，可以为null
+     */
+    public void accept(String fileId, Socket recipient, byte[] bitmap) {
+        Delivery delivery = delivery(fileId, recipient);
+        if (delivery == null) {
+            return;
+        }
+        delivery.lock.lock();
+        try {
+            if (delivery.accepted) {
+                return;
+            }
+            delivery.accepted = true;
+            delivery.skip = bitmap;
+            delivery.nextChunk = 0;
+            int sent = 0;
+            while (sent < FileChunks.WINDOW && sendNextChunk(delivery)) {
+                sent++;
+            }
+        } finally {
+            delivery.lock.unlock();
+        }
+    }
+
+    /**
+     * 接收方确认一个数据块，窗口向前移动一块
+     */
+    public void acknowledge(String fileId, Socket recipient) {
+        Delivery delivery = delivery(fileId, recipient);
+        if (delivery == null) {
+            return;
+        }
+        delivery.lock.lock();
+        try {
+            if (delivery.accepted) {
+                sendNextChunk(delivery);
+            }
+        } finally {
+            delivery.lock.unlock();
+        }
+    }
+
+    /**
+     * 接收方已收到全部数据块（COMPLETE）或放弃接收（CANCEL）
+     */
+    public void complete(String fileId, Socket recipient) {
+        Delivery delivery = delivery(fileId, recipient);
+        if (delivery != null) {
+            delivery.lock.lock();
+            try {
+                finishDelivery(delivery);
+            } finally {
+                delivery.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 连接断开时关闭它的上传和转发
+     * 上传的进度保存在位图文件中，等待发送方续传；转发按接收方用户名挂起，等待接收方重新登录
+     * @param socket 断开的连接
+     */
+    public void release(Socket socket) {
+        sessionLock.lock();
+        try {
+            releaseLocked(socket);
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    private void releaseLocked(Socket socket) {
+        Iterator<Upload> it = uploads.values().iterator();
+        while (it.hasNext()) {
+            Upload upload = it.next();
+            upload.lock.lock();
+            try {
+                if (upload.sender == socket) {
+                    it.remove();
+                    closeQuietly(upload.channel);
+                    upload.received.close();
+                }
+            } finally {
+                upload.lock.unlock();
+            }
+        }
+        Map<String, Delivery> active = deliveries.remove(socket);
+        if (active != null) {
+            for (Delivery delivery : active.values()) {
+                delivery.lock.lock();
+                try {
+                    park(delivery);
+                } finally {
+                    delivery.lock.unlock();
+                }
+            }
+        }
+        expireParked();
+    }
+
+    /**
+     * 用户重新登录后，重新发送挂起的和仍在旧连接上的转发的OFFER
+     * @param username 用户名
+     * @param socket 新连接
+     */
+    public void resume(String username, Socket socket) {
+        sessionLock.lock();
+        try {
+            resumeLocked(username, socket);
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    private void resumeLocked(String username, Socket socket) {
+        List<Delivery> resumed = new ArrayList<>();
+        Map<String, Delivery> waiting = parked.remove(username);
+        if (waiting != null) {
+            resumed.addAll(waiting.values());
+        }
+        // 被新登录踢下线的旧连接可能还没有释放
+        for (Map.Entry<Socket, Map<String, Delivery>> entry : deliveries.entrySet()) {
+            if (entry.getKey() == socket) {
+                continue;
+            }
+            Iterator<Delivery> it = entry.getValue().values().iterator();
+            while (it.hasNext()) {
+                Delivery delivery = it.next();
+                if (delivery.recipientName.equals(username)) {
+                    it.remove();
+                    delivery.lock.lock();
+                    try {
+                        delivery.accepted = false;
+                    } finally {
+                        delivery.lock.unlock();
+                    }
+                    resumed.add(delivery);
+                }
+            }
+        }
+        boolean chunked = Connection.of(socket).isChunkedTransfer();
+        for (Delivery delivery : resumed) {
+            delivery.lock.lock();
+            try {
+                if (!chunked) {
+                    // 换用旧客户端登录，不能续传，整个文件重新发送
+                    delivery.recipient = null;
+                    sendWhole(delivery.file, username, socket);
+                    releaseFile(delivery.file);
+                    continue;
+                }
+                delivery.recipient = socket;
+                deliveries.computeIfAbsent(socket, k -> new ConcurrentHashMap<>()).put(delivery.file.offer.getFileId(), delivery);
+                sendOffer(delivery);
+            } finally {
+                delivery.lock.unlock();
+            }
+        }
+        if (!resumed.isEmpty()) {
+            serverWindow.appendLog("向 " + username + " 继续转发 " + resumed.size() + " 个文件");
+        }
+    }
+
+    private void park(Delivery delivery) {
+        delivery.accepted = false;
+        delivery.recipient = null;
+        delivery.parkedAt = System.currentTimeMillis();
+        parked.computeIfAbsent(delivery.recipientName, k -> new ConcurrentHashMap<>())
+                .put(delivery.file.offer.getFileId(), delivery);
+    }
+
+    /**
+     * 放弃超过保留时间仍未续传的转发
+     */
+    private void expireParked() {
+        long deadline = System.currentTimeMillis() - RETENTION_MILLIS;
+        for (Map<String, Delivery> waiting : parked.values()) {
+            Iterator<Delivery> it = waiting.values().iterator();
+            while (it.hasNext()) {
+                Delivery delivery = it.next();
+                if (delivery.parkedAt < deadline) {
+                    it.remove();
+                    releaseFile(delivery.file);
+                }
+            }
+        }
+    }
+
+    private Delivery delivery(String fileId, Socket recipient) {
+        Map<String, Delivery> active = deliveries.get(recipient);
+        return active == null || fileId == null ? null : active.get(fileId);
+    }
+
+    /**
+     * 发送下一个接收方还没有的数据块
+     * 数据块在写出时从暂存文件直接传输到接收方的连接，不读入内存
+     * @return 是否发送了数据块
+     */
+    private boolean sendNextChunk(Delivery delivery) {
+        File_info offer = delivery.file.offer;
+        while (delivery.nextChunk < offer.getChunkCount() && ChunkBitmap.isSet(delivery.skip, delivery.nextChunk)) {
+            delivery.nextChunk++;
+        }
+        if (delivery.nextChunk >= offer.getChunkCount()) {
+            return false;
+        }
+        int index = delivery.nextChunk++;
+        FileRegion region = new FileRegion(delivery.file.path, (long) index * offer.getChunkSize(),
+                FileChunks.chunkLength(offer.getFileSize(), offer.getChunkSize(), index));
+        Connection.of(delivery.recipient).writeFileRegion(FileChunks.message(offer.getFileId(), offer.getFileName(),
+                TransferStage.CHUNK, index, null), region);
+        return true;
+    }
+
+    /**
+     * 结束一个转发，最后一个接收方结束时删除暂存文件
+     */
+    private void finishDelivery(Delivery delivery) {
+        Map<String, Delivery> active = deliveries.get(delivery.recipient);
+        if (active == null || !active.remove(delivery.file.offer.getFileId(), delivery)) {
+            return;
+        }
+        delivery.accepted = false;
+        releaseFile(delivery.file);
+    }
+
+    /**
+     * 一个转发结束，最后一个引用释放时删除暂存文件或释放存储中的文件
+     */
+    private void releaseFile(SpooledFile file) {
+        if (file.pending.decrementAndGet() == 0) {
+            if (file.stored) {
+                blobs.release(file.offer.getChecksum());
+            } else {
+                deleteQuietly(file.path);
+            }
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            serverWindow.appendLog("删除暂存文件失败: " + e.getMessage());
+        }
+    }
+}
@@ -6,6 +6,7 @@ import javax.swing.text.StyledDocument;
 import java.awt.*;
 import java.io.Serial;
 import java.util.ArrayList;
+import java.util.List;
 
 //服务器端主界面
 public class ServerWindow extends JFrame {
@@ -168,7 +169,7 @@ public class ServerWindow extends JFrame {
         this.add(Server);
     }
 
-    public void updateUserList(ArrayList<String> users) {
+    public void updateUserList(List<String> users) {
         SwingUtilities.invokeLater(() -> {
             String[] userArray = users.toArray(new String[0]);
             userList.setListData(userArray);
@@ -13,7 +13,8 @@ import client.model.ClientModel;
 import info.Chat_info;
 import info.File_info;
 import info.encap_info;
-import io.IOStream;
+import io.Connection;
+import io.SocketConnection;
 
 /*
     消息监听器，负责接收和处理后端，即服务器发送的消息
@@ -83,7 +84,7 @@ public class MessageListener extends Thread {
                 }
                 
                 // 从Socket读取消息，这会阻塞直到收到消息
-                Object obj = IOStream.readMessage(socket);
+                Object obj = SocketConnection.of(socket).readMessage();
                 if (obj == null) {
                     System.err.println("收到null消息，可能是连接已关闭");
                     // 如果连接已关闭，等待重连
@@ -96,6 +97,11 @@ public class MessageListener extends Thread {
                 
                 // 将消息转换为封装信息对象
                 encap_info info = (encap_info) obj;
+
+                // 登录回执确认了压缩，之后发出的大帧也进行压缩
+                if (info.get_type() == 3 && info.get_login_info() != null && info.get_login_info().isCompression()) {
+                    Connection.of(socket).setCompressionEnabled(true);
+                }
                 
                 // 获取对应的消息处理器
                 ClientMessageHandler handler = handlerFactory.getHandler(info.get_type());
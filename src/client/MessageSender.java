@@ -4,19 +4,16 @@ import java.net.Socket;
 import java.net.InetAddress;
 import java.io.IOException;
 import info.*;
-import io.IOStream;
+import io.Connection;
+import client.image.ImageTranscoder;
+import client.image.ThumbnailService;
+import client.transfer.FileRef;
+import client.transfer.FileTransfers;
+import client.transfer.FileUpload;
 import java.util.ArrayList;
 import java.util.List;
 import java.io.File;
-import java.io.FileInputStream;
 import java.util.UUID;
-import java.util.HashMap;
-import java.util.Map;
-import javax.swing.ImageIcon;
-import java.awt.image.BufferedImage;
-import javax.imageio.ImageIO;
-import java.awt.Image;
-import java.awt.Graphics2D;
 
 /*
     消息发送器，负责向服务器发送各类消息
@@ -26,15 +23,6 @@ public class MessageSender {
     private String host;
     private int port;
     private boolean reconnecting = false;
-    // 存储已发送文件的缓存，用于后续下载
-    private static Map<String, byte[]> fileDataCache = new HashMap<>();
-    // 存储已发送图片的缓存，用于显示
-    private static Map<String, ImageIcon> imageCache = new HashMap<>();
-    
-    // 图片最大尺寸（用于预览）
-    private static final int MAX_IMAGE_WIDTH = 300;
-    private static final int MAX_IMAGE_HEIGHT = 300;
-    
     /*
         构造函数
     */
@@ -51,21 +39,21 @@ public class MessageSender {
     }
     
     /**
-     * 获取文件数据
+     * 获取已发送文件的数据，从文件原来的位置读取
      * @param fileId 文件ID
-     * @return 文件数据
+     * @return 文件数据，文件不存在或无法读取时返回null
      */
     public static byte[] getFileData(String fileId) {
-        return fileDataCache.get(fileId);
-    }
-    
-    /**
-     * 获取图片缩略图
-     * @param fileId 文件ID
-     * @return 图片缩略图
-     */
-    public static ImageIcon getImageIcon(String fileId) {
-        return imageCache.get(fileId);
+        FileRef file = FileTransfers.getSentFile(fileId);
+        if (file == null) {
+            return null;
+        }
+        try {
+            return file.read();
+        } catch (IOException e) {
+            System.err.println("读取已发送文件失败: " + e.getMessage());
+            return null;
+        }
     }
     
     /**
@@ -106,12 +94,18 @@ public class MessageSender {
         loginInfo.setUserName(username);
         loginInfo.setPassword(password);
         loginInfo.setLoginSuccessFlag(false);
+        Connection connection = Connection.of(socket);
+        loginInfo.setCompression(connection.supportsCompression()); // 请求对大帧压缩
+        if (connection.supportsCompression()) {
+            connection.acceptCompression(); // 服务端同意时登录回执就可能是压缩帧
+        }
+        loginInfo.setChunkedTransfer(true); // 文件按块收发，服务端不再发送整个文件
         
         encap_info info = new encap_info();
         info.set_type(3);
         info.set_login_info(loginInfo);
         
-        return IOStream.writeMessage(socket, info);
+        return Connection.of(socket).writeMessage(info);
     }
     
     /**
@@ -131,7 +125,7 @@ public class MessageSender {
         info.set_type(5);
         info.set_reg_info(regInfo);
         
-        return IOStream.writeMessage(socket, info);
+        return Connection.of(socket).writeMessage(info);
     }
     
     /*
@@ -158,7 +152,7 @@ public class MessageSender {
         info.set_type(4);
         info.set_chat_info(chatInfo);
         
-        return IOStream.writeMessage(socket, info);
+        return Connection.of(socket).writeMessage(info);
     }
 
     /**
@@ -181,7 +175,7 @@ public class MessageSender {
         info.set_type(4); // 主类型仍然是聊天消息
         info.set_chat_info(chatInfo);
 
-        return IOStream.writeMessage(socket, info);
+        return Connection.of(socket).writeMessage(info);
     }
     
     /*
@@ -203,7 +197,7 @@ public class MessageSender {
         info.set_type(1);
         info.set_group_info(groupInfo);
         
-        return IOStream.writeMessage(socket, info);
+        return Connection.of(socket).writeMessage(info);
     }
     
     /*
@@ -225,7 +219,7 @@ public class MessageSender {
         info.set_type(1);
         info.set_group_info(groupInfo);
         
-        return IOStream.writeMessage(socket, info);
+        return Connection.of(socket).writeMessage(info);
     }
     
     /*
@@ -244,7 +238,7 @@ public class MessageSender {
         info.set_type(1);
         info.set_group_info(groupInfo);
         
-        return IOStream.writeMessage(socket, info);
+        return Connection.of(socket).writeMessage(info);
     }
     
     /*
@@ -258,7 +252,7 @@ public class MessageSender {
         encap_info info = new encap_info();
         info.set_type(2);
         
-        return IOStream.writeMessage(socket, info);
+        return Connection.of(socket).writeMessage(info);
     }
     
     /*
@@ -272,7 +266,7 @@ public class MessageSender {
         encap_info info = new encap_info();
         info.set_type(6);
         
-        return IOStream.writeMessage(socket, info);
+        return Connection.of(socket).writeMessage(info);
     }
     
     /**
@@ -310,69 +304,7 @@ public class MessageSender {
      * @return 是否发送成功
      */
     public boolean sendPrivateFile(String fromUser, String toUser, File file, String description) {
-        if (!ensureConnected()) {
-            return false;
-        }
-        
-        try {
-            // 读取文件数据
-            byte[] fileData = readFileData(file);
-            
-            // 生成唯一文件ID
-            String fileId = UUID.randomUUID().toString();
-            
-            // 将文件数据缓存起来，以便后续下载
-            fileDataCache.put(fileId, fileData);
-            
-            // 创建文件信息对象（发送给接收方的，包含文件数据）
-            File_info fileInfo = new File_info();
-            fileInfo.setFileName(file.getName());
-            fileInfo.setFileData(fileData);
-            fileInfo.setFileSize(file.length());
-            fileInfo.setFromUsername(fromUser);
-            fileInfo.setToUsername(toUser);
-            fileInfo.setGroupFile(false);
-            fileInfo.setFileDescription(description);
-            fileInfo.setFileId(fileId);
-            
-            // 封装信息
-            encap_info info = new encap_info();
-            info.set_type(7); // 7代表文件传输消息
-            info.set_file_info(fileInfo);
-            
-            // 发送给接收方
-            boolean success = IOStream.writeMessage(socket, info);
-            
-            // 创建一个只包含文件信息的副本，发送给自己（用于显示在自己的聊天窗口中）
-            if (success) {
-                // 创建只包含文件信息的对象（不包含文件数据）
-                File_info selfInfo = new File_info();
-                selfInfo.setFileName(file.getName());
-                selfInfo.setFileSize(file.length());
-                selfInfo.setFromUsername(fromUser);
-                selfInfo.setToUsername(toUser);
-                selfInfo.setGroupFile(false);
-                selfInfo.setFileDescription(description);
-                selfInfo.setFileId(fileId);
-                selfInfo.setInfoOnly(true); // 标记为只包含信息
-                
-                // 创建聊天信息对象
-                Chat_info chatInfo = new Chat_info();
-                chatInfo.setType(false); // 私聊
-                chatInfo.setFrom_username(fromUser);
-                chatInfo.setTo_username(toUser);
-                chatInfo.setText("[文件] " + file.getName() + " (" + formatFileSize(file.length()) + ")");
-                chatInfo.setTransfer_status(true);
-                
-                // 通知客户端模型更新
-                MessageListener.notifyFileMessage(selfInfo, chatInfo);
-            }
-            
-            return success;
-        } catch (IOException e) {
-            System.err.println("发送文件失败: " + e.getMessage());
-            return false;
-        }
+        return sendFile(fromUser, toUser, 0, false, file, file.getName(), description);
     }
     
     /**
@@ -384,192 +316,48 @@ public class MessageSender {
      * @return 是否发送成功
      */
     public boolean sendGroupFile(String fromUser, int groupId, File file, String description) {
-        if (!ensureConnected()) {
-            return false;
-        }
-        
-        try {
-            // 读取文件数据
-            byte[] fileData = readFileData(file);
-            
-            // 生成唯一文件ID
-            String fileId = UUID.randomUUID().toString();
-            
-            // 将文件数据缓存起来，以便后续下载
-            fileDataCache.put(fileId, fileData);
-            
-            // 创建文件信息对象（发送给群组成员的，包含文件数据）
-            File_info fileInfo = new File_info();
-            fileInfo.setFileName(file.getName());
-            fileInfo.setFileData(fileData);
-            fileInfo.setFileSize(file.length());
-            fileInfo.setFromUsername(fromUser);
-            fileInfo.setGroupId(groupId);
-            fileInfo.setGroupFile(true);
-            fileInfo.setFileDescription(description);
-            fileInfo.setFileId(fileId);
-            
-            // 封装信息
-            encap_info info = new encap_info();
-            info.set_type(7); // 7代表文件传输消息
-            info.set_file_info(fileInfo);
-            
-            // 发送给群组
-            boolean success = IOStream.writeMessage(socket, info);
-            
-            // 创建一个只包含文件信息的副本，发送给自己（用于显示在自己的聊天窗口中）
-            if (success) {
-                // 创建只包含文件信息的对象（不包含文件数据）
-                File_info selfInfo = new File_info();
-                selfInfo.setFileName(file.getName());
-                selfInfo.setFileSize(file.length());
-                selfInfo.setFromUsername(fromUser);
-                selfInfo.setGroupId(groupId);
-                selfInfo.setGroupFile(true);
-                selfInfo.setFileDescription(description);
-                selfInfo.setFileId(fileId);
-                selfInfo.setInfoOnly(true); // 标记为只包含信息
-                
-                // 创建聊天信息对象
-                Chat_info chatInfo = new Chat_info();
-                chatInfo.setType(true); // 群聊
-                chatInfo.setFrom_username(fromUser);
-                chatInfo.setGroup_id(groupId);
-                chatInfo.setText("[文件] " + file.getName() + " (" + formatFileSize(file.length()) + ")");
-                chatInfo.setTransfer_status(true);
-                
-                // 通知客户端模型更新
-                MessageListener.notifyFileMessage(selfInfo, chatInfo);
-            }
-            
-            return success;
-        } catch (IOException e) {
-            System.err.println("发送群文件失败: " + e.getMessage());
-            return false;
-        }
+        return sendFile(fromUser, null, groupId, true, file, file.getName(), description);
     }
     
     /**
-     * 格式化文件大小
-     * @param size 文件大小（字节）
-     * @return 格式化后的文件大小字符串
+     * 发送私聊图片，较大的图片压缩后发送
+     * @param fromUser 发送者用户名
+     * @param toUser 接收者用户名
+     * @param imageFile 图片文件
+     * @param description 图片描述
+     * @return 是否发送成功
      */
-    private String formatFileSize(long size) {
-        if (size < 1024) {
-            return size + " B";
-        } else if (size < 1024 * 1024) {
-            return String.format("%.2f KB", size / 1024.0);
-        } else if (size < 1024 * 1024 * 1024) {
-            return String.format("%.2f MB", size / (1024.0 * 1024));
-        } else {
-            return String.format("%.2f GB", size / (1024.0 * 1024 * 1024));
-        }
+    public boolean sendPrivateImage(String fromUser, String toUser, File imageFile, String description) {
+        return sendPrivateImage(fromUser, toUser, imageFile, description, false);
     }
     
     /**
-     * 读取文件数据
-     * @param file 要读取的文件
-     * @return 文件字节数组
-     * @throws IOException 如果读取文件出错
+     * 发送私聊图片
+     * @param fromUser 发送者用户名
+     * @param toUser 接收者用户名
+     * @param imageFile 图片文件
+     * @param description 图片描述
+     * @param original 是否发送原图，为false时较大的图片压缩后发送
+     * @return 是否发送成功
      */
-    private byte[] readFileData(File file) throws IOException {
-        byte[] fileData = new byte[(int) file.length()];
-        try (FileInputStream fis = new FileInputStream(file)) {
-            fis.read(fileData);
+    public boolean sendPrivateImage(String fromUser, String toUser, File imageFile, String description, boolean original) {
+        if (!File_info.checkIsImage(imageFile.getName())) {
+            System.err.println("不是有效的图片文件: " + imageFile.getName());
+            return false;
         }
-        return fileData;
+        return sendImage(fromUser, toUser, 0, false, imageFile, description, original);
     }
     
     /**
-     * 发送私聊图片
+     * 发送群聊图片，较大的图片压缩后发送
      * @param fromUser 发送者用户名
-     * @param toUser 接收者用户名
+     * @param groupId 群组ID
      * @param imageFile 图片文件
      * @param description 图片描述
      * @return 是否发送成功
      */
-    public boolean sendPrivateImage(String fromUser, String toUser, File imageFile, String description) {
-        if (!ensureConnected()) {
-            return false;
-        }
-        
-        try {
-            // 检查是否为图片文件
-            if (!File_info.checkIsImage(imageFile.getName())) {
-                System.err.println("不是有效的图片文件: " + imageFile.getName());
-                return false;
-            }
-            
-            // 读取文件数据
-            byte[] fileData = readFileData(imageFile);
-            
-            // 生成唯一文件ID
-            String fileId = UUID.randomUUID().toString();
-            
-            // 将文件数据缓存起来，以便后续下载
-            fileDataCache.put(fileId, fileData);
-            
-            // 创建图片缩略图并缓存
-            try {
-                BufferedImage originalImage = ImageIO.read(imageFile);
-                if (originalImage != null) {
-                    ImageIcon thumbnail = createThumbnail(originalImage);
-                    imageCache.put(fileId, thumbnail);
-                }
-            } catch (Exception e) {
-                System.err.println("创建图片缩略图失败: " + e.getMessage());
-            }
-            
-            // 创建文件信息对象（发送给接收方的，包含文件数据）
-            File_info fileInfo = new File_info();
-            fileInfo.setFileName(imageFile.getName());
-            fileInfo.setFileData(fileData);
-            fileInfo.setFileSize(imageFile.length());
-            fileInfo.setFromUsername(fromUser);
-            fileInfo.setToUsername(toUser);
-            fileInfo.setGroupFile(false);
-            fileInfo.setFileDescription(description);
-            fileInfo.setFileId(fileId);
-            // 图片类型会在setFileName中自动设置
-            
-            // 封装信息
-            encap_info info = new encap_info();
-            info.set_type(7); // 7代表文件传输消息
-            info.set_file_info(fileInfo);
-            
-            // 发送给接收方
-            boolean success = IOStream.writeMessage(socket, info);
-            
-            // 创建一个只包含文件信息的副本，发送给自己（用于显示在自己的聊天窗口中）
-            if (success) {
-                // 创建只包含文件信息的对象（不包含文件数据）
-                File_info selfInfo = new File_info();
-                selfInfo.setFileName(imageFile.getName());
-                selfInfo.setFileSize(imageFile.length());
-                selfInfo.setFromUsername(fromUser);
-                selfInfo.setToUsername(toUser);
-                selfInfo.setGroupFile(false);
-                selfInfo.setFileDescription(description);
-                selfInfo.setFileId(fileId);
-                selfInfo.setInfoOnly(true); // 标记为只包含信息
-                
-                // 创建聊天信息对象
-                Chat_info chatInfo = new Chat_info();
-                chatInfo.setType(false); // 私聊
-                chatInfo.setFrom_username(fromUser);
-                chatInfo.setTo_username(toUser);
-                chatInfo.setText("[图片] " + imageFile.getName());
-                chatInfo.setTransfer_status(true);
-                
-                // 通知客户端模型更新
-                MessageListener.notifyFileMessage(selfInfo, chatInfo);
-            }
-            
-            return success;
-        } catch (IOException e) {
-            System.err.println("发送图片失败: " + e.getMessage());
-            return false;
-        }
+    public boolean sendGroupImage(String fromUser, int groupId, File imageFile, String description) {
+        return sendGroupImage(fromUser, groupId, imageFile, description, false);
     }
     
     /**
@@ -578,120 +366,135 @@ public class MessageSender {
      * @param groupId 群组ID
      * @param imageFile 图片文件
      * @param description 图片描述
+     * @param original 是否发送原图，为false时较大的图片压缩后发送
      * @return 是否发送成功
      */
-    public boolean sendGroupImage(String fromUser, int groupId, File imageFile, String description) {
+    public boolean sendGroupImage(String fromUser, int groupId, File imageFile, String description, boolean original) {
+        if (!File_info.checkIsImage(imageFile.getName())) {
+            System.err.println("不是有效的图片文件: " + imageFile.getName());
+            return false;
+        }
+        return sendImage(fromUser, null, groupId, true, imageFile, description, original);
+    }
+    
+    /**
+     * 发送图片，不要求原图时先压缩，压缩后的文件以.jpg扩展名发送
+     * 压缩要解码整张图片，调用方应在后台线程中调用
+     */
+    private boolean sendImage(String fromUser, String toUser, int groupId, boolean isGroup, File imageFile,
+                              String description, boolean original) {
+        File upload = original ? imageFile : ImageTranscoder.transcode(imageFile);
+        String fileName = upload == imageFile ? imageFile.getName() : ImageTranscoder.transcodedName(imageFile.getName());
+        return sendFile(fromUser, toUser, groupId, isGroup, upload, fileName, description);
+    }
+    
+    /**
+     * 以分块方式发送文件或图片
+     * 文件内容由上传线程从磁盘逐块读取发送，这里只登记上传并在自己的聊天窗口中显示发送记录
+     * @param fromUser 发送者用户名
+     * @param toUser 接收者用户名（私聊时使用）
+     * @param groupId 群组ID（群聊时使用）
+     * @param isGroup 是否为群聊
+     * @param file 要发送的文件
+     * @param fileName 对方看到的文件名
+     * @param description 文件描述
+     * @return 是否已开始发送
+     */
+    private boolean sendFile(String fromUser, String toUser, int groupId, boolean isGroup, File file, String fileName,
+                             String description) {
         if (!ensureConnected()) {
             return false;
         }
+        if (!file.isFile() || !file.canRead()) {
+            System.err.println("无法读取文件: " + file);
+            return false;
+        }
         
-        try {
-            // 检查是否为图片文件
-            if (!File_info.checkIsImage(imageFile.getName())) {
-                System.err.println("不是有效的图片文件: " + imageFile.getName());
-                return false;
-            }
-            
-            // 读取文件数据
-            byte[] fileData = readFileData(imageFile);
-            
-            // 生成唯一文件ID
-            String fileId = UUID.randomUUID().toString();
-            
-            // 将文件数据缓存起来，以便后续下载
-            fileDataCache.put(fileId, fileData);
-            
-            // 创建图片缩略图并缓存
-            try {
-                BufferedImage originalImage = ImageIO.read(imageFile);
-                if (originalImage != null) {
-                    ImageIcon thumbnail = createThumbnail(originalImage);
-                    imageCache.put(fileId, thumbnail);
-                }
-            } catch (Exception e) {
-                System.err.println("创建图片缩略图失败: " + e.getMessage());
-            }
-            
-            // 创建文件信息对象（发送给群组成员的，包含文件数据）
-            File_info fileInfo = new File_info();
-            fileInfo.setFileName(imageFile.getName());
-            fileInfo.setFileData(fileData);
-            fileInfo.setFileSize(imageFile.length());
-            fileInfo.setFromUsername(fromUser);
+        // 生成唯一文件ID
+        String fileId = UUID.randomUUID().toString();
+        
+        // 创建文件信息对象，分块参数和校验和由上传线程填写；图片类型会在setFileName中自动设置
+        File_info fileInfo = new File_info();
+        fileInfo.setFileName(fileName);
+        fileInfo.setFileSize(file.length());
+        fileInfo.setFromUsername(fromUser);
+        if (isGroup) {
             fileInfo.setGroupId(groupId);
-            fileInfo.setGroupFile(true);
-            fileInfo.setFileDescription(description);
-            fileInfo.setFileId(fileId);
-            // 图片类型会在setFileName中自动设置
-            
-            // 封装信息
-            encap_info info = new encap_info();
-            info.set_type(7); // 7代表文件传输消息
-            info.set_file_info(fileInfo);
-            
-            // 发送给群组
-            boolean success = IOStream.writeMessage(socket, info);
-            
-            // 创建一个只包含文件信息的副本，发送给自己（用于显示在自己的聊天窗口中）
-            if (success) {
-                // 创建只包含文件信息的对象（不包含文件数据）
-                File_info selfInfo = new File_info();
-                selfInfo.setFileName(imageFile.getName());
-                selfInfo.setFileSize(imageFile.length());
-                selfInfo.setFromUsername(fromUser);
-                selfInfo.setGroupId(groupId);
-                selfInfo.setGroupFile(true);
-                selfInfo.setFileDescription(description);
-                selfInfo.setFileId(fileId);
-                selfInfo.setInfoOnly(true); // 标记为只包含信息
-                
-                // 创建聊天信息对象
-                Chat_info chatInfo = new Chat_info();
-                chatInfo.setType(true); // 群聊
-                chatInfo.setFrom_username(fromUser);
-                chatInfo.setGroup_id(groupId);
-                chatInfo.setText("[图片] " + imageFile.getName());
-                chatInfo.setTransfer_status(true);
-                
-                // 通知客户端模型更新
-                MessageListener.notifyFileMessage(selfInfo, chatInfo);
-            }
-            
-            return success;
-        } catch (IOException e) {
-            System.err.println("发送群聊图片失败: " + e.getMessage());
+        } else {
+            fileInfo.setToUsername(toUser);
+        }
+        fileInfo.setGroupFile(isGroup);
+        fileInfo.setFileDescription(description);
+        fileInfo.setFileId(fileId);
+        
+        // 只记录文件的位置，数据在上传时从磁盘流式读取
+        FileRef fileRef = FileRef.of(file);
+        if (fileInfo.isImage()) {
+            // 在后台生成缩略图，显示发送记录时通常已经完成
+            ThumbnailService.request(fileId, ThumbnailService.of(fileRef), null);
+        }
+        FileTransfers.startUpload(new FileUpload(this, fileRef, fileInfo));
+        
+        // 创建一个只包含文件信息的副本，用于显示在自己的聊天窗口中
+        File_info selfInfo = new File_info();
+        selfInfo.setFileName(fileName);
+        selfInfo.setFileSize(file.length());
+        selfInfo.setFromUsername(fromUser);
+        selfInfo.setToUsername(toUser);
+        selfInfo.setGroupId(groupId);
+        selfInfo.setGroupFile(isGroup);
+        selfInfo.setFileDescription(description);
+        selfInfo.setFileId(fileId);
+        selfInfo.setInfoOnly(true); // 标记为只包含信息
+        
+        // 创建聊天信息对象
+        Chat_info chatInfo = new Chat_info();
+        chatInfo.setType(isGroup);
+        chatInfo.setFrom_username(fromUser);
+        if (isGroup) {
+            chatInfo.setGroup_id(groupId);
+        } else {
+            chatInfo.setTo_username(toUser);
+        }
+        if (fileInfo.isImage()) {
+            chatInfo.setText("[图片] " + file.getName());
+        } else {
+            chatInfo.setText("[文件] " + file.getName() + " (" + formatFileSize(file.length()) + ")");
+        }
+        chatInfo.setTransfer_status(true);
+        
+        // 通知客户端模型更新
+        MessageListener.notifyFileMessage(selfInfo, chatInfo);
+        return true;
+    }
+    
+    /**
+     * 发送分块传输消息（OFFER、数据块和各种确认）
+     * @param info 封装好的文件传输消息
+     * @return 是否发送成功
+     */
+    public boolean sendFileTransferMessage(encap_info info) {
+        if (socket == null || socket.isClosed()) {
             return false;
         }
+        return Connection.of(socket).writeMessage(info);
     }
     
     /**
-     * 创建图片缩略图
-     * @param originalImage 原始图片
-     * @return 缩略图
+     * 格式化文件大小
+     * @param size 文件大小（字节）
+     * @return 格式化后的文件大小字符串
      */
-    private ImageIcon createThumbnail(BufferedImage originalImage) {
-        int originalWidth = originalImage.getWidth();
-        int originalHeight = originalImage.getHeight();
-        
-        // 计算缩放比例
-        double scale = 1.0;
-        if (originalWidth > MAX_IMAGE_WIDTH || originalHeight > MAX_IMAGE_HEIGHT) {
-            double scaleWidth = (double) MAX_IMAGE_WIDTH / originalWidth;
-            double scaleHeight = (double) MAX_IMAGE_HEIGHT / originalHeight;
-            scale = Math.min(scaleWidth, scaleHeight);
+    private String formatFileSize(long size) {
+        if (size < 1024) {
+            return size + " B";
+        } else if (size < 1024 * 1024) {
+            return String.format("%.2f KB", size / 1024.0);
+        } else if (size < 1024 * 1024 * 1024) {
+            return String.format("%.2f MB", size / (1024.0 * 1024));
+        } else {
+            return String.format("%.2f GB", size / (1024.0 * 1024 * 1024));
         }
-        
-        // 计算缩放后的尺寸
-        int scaledWidth = (int) (originalWidth * scale);
-        int scaledHeight = (int) (originalHeight * scale);
-        
-        // 创建缩略图
-        BufferedImage thumbnail = new BufferedImage(scaledWidth, scaledHeight, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g2d = thumbnail.createGraphics();
-        g2d.drawImage(originalImage.getScaledInstance(scaledWidth, scaledHeight, Image.SCALE_SMOOTH), 0, 0, null);
-        g2d.dispose();
-        
-        return new ImageIcon(thumbnail);
     }
 
     /**Add commentMore actions
@@ -709,7 +512,7 @@ public class MessageSender {
             encapInfo.set_type(8);
         }
 
-        return IOStream.writeMessage(socket, encapInfo);
+        return Connection.of(socket).writeMessage(encapInfo);
     }
 
     public void sendOrgAckMessage(String fromUser,int groupId, int orgId) {
@@ -722,7 +525,7 @@ public class MessageSender {
         encap_info info = new encap_info();
         info.set_type(6);
         info.set_org_info(orgInfo);
-        IOStream.writeMessage(socket, info);
+        Connection.of(socket).writeMessage(info);
     }
     public void sendOrgUserManageMessage(int orgID,int groupID, String fromUser,ArrayList<String> added,ArrayList<String> removed) {
         Org_info orgInfo = new Org_info();
@@ -735,7 +538,7 @@ public class MessageSender {
         encap_info info = new encap_info();
         info.set_type(6);
         info.set_org_info(orgInfo);
-        IOStream.writeMessage(socket, info);
+        Connection.of(socket).writeMessage(info);
     }
     public void sendEstablishOrgMessage(ArrayList<String> members, String fromUser, int groupID, String orgName) { // 添加一个 orgName 参数
         Org_info orgInfo = new Org_info();
@@ -747,6 +550,6 @@ public class MessageSender {
         encap_info info = new encap_info();
         info.set_type(6);
         info.set_org_info(orgInfo);
-        IOStream.writeMessage(socket, info);
+        Connection.of(socket).writeMessage(info);
     }
 }
\ No newline at end of file
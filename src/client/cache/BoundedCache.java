@@ -0,0 +1,383 @@
+package client.cache;
+
+import io.codec.InfoCodec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按字节数限制大小的LRU缓存
+ * 内存中的总权重超过上限时淘汰最久未使用的项；配置了编解码器时被淘汰的项写入本地缓存目录，
+ * 之后访问时再读回内存，磁盘上的项同样按LRU限制总大小。读写文件时不持有锁，界面线程不会等待其他线程的磁盘操作。
+ * 记录命中、未命中和淘汰次数
+ * @param <V> 缓存值的类型，键为字符串（文件ID）
+ */
+public class BoundedCache<V> {
+    // 本地缓存目录，可以用 -Dchat.client.cache.dir 调整
+    private static final Path CACHE_DIR = Paths.get(System.getProperty("chat.client.cache.dir", "client_cache"));
+
+    private static final class Entry<V> {
+        final V value;
+        final long weight;
+
+        Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * 写入磁盘的一项，每次写入使用新的文件，读取和删除不会与同一个键的下一次写入冲突
+     */
+    private static final class Spilled {
+        final Path file;
+        final long size;
+
+        Spilled(Path file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    private final String name;
+    private final long maxWeight;
+    private final long maxDiskBytes;
+    private final Weigher<V> weigher;
+    private final InfoCodec<V> codec;
+    private final Path directory;
+    // 按访问顺序排列，最久未使用的在前
+    private final LinkedHashMap<String, Entry<V>> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Spilled> disk = new LinkedHashMap<>(16, 0.75f, true);
+    // 已从内存淘汰、正在写入磁盘的项，写完之前仍从这里读取；期间被重新放入或移除时不再登记到磁盘
+    private final Map<String, V> spilling = new HashMap<>();
+    private final AtomicLong fileSequence = new AtomicLong();
+    private long weight;
+    private long diskBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong spills = new AtomicLong();
+
+    /**
+     * @param name 缓存名称，用于缓存目录下的子目录名和日志
+     * @param maxWeight 内存中的最大总权重（字节）
+     * @param maxDiskBytes 磁盘上的最大总大小（字节），0表示不写入磁盘
+     * @param weigher 权重估算
+     * @param codec 写入磁盘使用的编解码器，为null时淘汰的项直接丢弃
+     */
+    public BoundedCache(String name, long maxWeight, long maxDiskBytes, Weigher<V> weigher, InfoCodec<V> codec) {
+        this.name = name;
+        this.maxWeight = maxWeight;
+        this.maxDiskBytes = codec == null ? 0 : maxDiskBytes;
+        this.weigher = weigher;
+        this.codec = codec;
+        // 同一目录下可能运行多个客户端，每个进程使用自己的子目录
+        this.directory = CACHE_DIR.resolve(name + "-" + ProcessHandle.current().pid());
+        if (this.maxDiskBytes > 0) {
+            deleteStaleDirectories();
+        }
+    }
+
+    /**
+     * 获取缓存的值，内存中没有时从磁盘读回，读文件时不持有锁
+     * @return 缓存的值；都没有时返回null
+     */
+    public V get(String key) {
+        if (key == null) {
+            return null;
+        }
+        Spilled spilled;
+        synchronized (this) {
+            Entry<V> entry = memory.get(key);
+            if (entry != null) {
+                hits.incrementAndGet();
+                return entry.value;
+            }
+            V inFlight = spilling.get(key);
+            if (inFlight != null) {
+                hits.incrementAndGet();
+                return inFlight;
+            }
+            spilled = disk.get(key);
+            if (spilled == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+        V value = read(spilled);
+        List<Map.Entry<String, V>> evicted = Collections.emptyList();
+        synchronized (this) {
+            if (value == null) {
+                misses.incrementAndGet();
+                if (disk.get(key) == spilled) {
+                    disk.remove(key);
+                    diskBytes -= spilled.size;
+                }
+                // 读取失败的文件在锁外删除
+            } else {
+                diskHits.incrementAndGet();
+                // 读取期间被重新放入或移除时不覆盖
+                if (disk.get(key) == spilled && !memory.containsKey(key)) {
+                    evicted = putInMemory(key, value);
+                }
+            }
+        }
+        if (value == null) {
+            deleteQuietly(spilled.file);
+        }
+        spill(evicted);
+        return value;
+    }
+
+    /**
+     * 放入缓存，超过上限时淘汰最久未使用的项，淘汰的项在锁外写入磁盘
+     */
+    public void put(String key, V value) {
+        if (key == null || value == null) {
+            return;
+        }
+        Spilled stale;
+        List<Map.Entry<String, V>> evicted;
+        synchronized (this) {
+            stale = forget(key);
+            evicted = putInMemory(key, value);
+        }
+        if (stale != null) {
+            deleteQuietly(stale.file);
+        }
+        spill(evicted);
+    }
+
+    /**
+     * 移除缓存的项，磁盘上的文件直接删除，不读回
+     */
+    public void remove(String key) {
+        if (key == null) {
+            return;
+        }
+        Spilled stale;
+        synchronized (this) {
+            Entry<V> entry = memory.remove(key);
+            if (entry != null) {
+                weight -= entry.weight;
+            }
+            stale = forget(key);
+        }
+        if (stale != null) {
+            deleteQuietly(stale.file);
+        }
+    }
+
+    /**
+     * 清除键在磁盘上的记录和正在进行的写入，调用方持有锁
+     * @return 需要删除的文件，没有时返回null
+     */
+    private Spilled forget(String key) {
+        spilling.remove(key);
+        Spilled spilled = disk.remove(key);
+        if (spilled != null) {
+            diskBytes -= spilled.size;
+        }
+        return spilled;
+    }
+
+    /**
+     * 放入内存并淘汰超出上限的项，调用方持有锁
+     * @return 需要写入磁盘的淘汰项，不写入磁盘时为空
+     */
+    private List<Map.Entry<String, V>> putInMemory(String key, V value) {
+        Entry<V> entry = new Entry<>(value, Math.max(1, weigher.weigh(value)));
+        Entry<V> previous = memory.put(key, entry);
+        if (previous != null) {
+            weight -= previous.weight;
+        }
+        weight += entry.weight;
+        List<Map.Entry<String, V>> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, Entry<V>>> it = memory.entrySet().iterator();
+        // 至少保留刚放入的项
+        while (weight > maxWeight && memory.size() > 1 && it.hasNext()) {
+            Map.Entry<String, Entry<V>> eldest = it.next();
+            if (eldest.getKey().equals(key)) {
+                continue;
+            }
+            it.remove();
+            weight -= eldest.getValue().weight;
+            evictions.incrementAndGet();
+            if (maxDiskBytes > 0) {
+                spilling.put(eldest.getKey(), eldest.getValue().value);
+                evicted.add(new AbstractMap.SimpleImmutableEntry<>(eldest.getKey(), eldest.getValue().value));
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * 在锁外把淘汰的项写入磁盘，再在锁内登记；磁盘超过上限时删除最久未使用的文件
+     */
+    private void spill(List<Map.Entry<String, V>> evicted) {
+        for (Map.Entry<String, V> item : evicted) {
+            String key = item.getKey();
+            V value = item.getValue();
+            Path file = fileFor(key);
+            long size;
+            try {
+                Files.createDirectories(directory);
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+                    codec.encode(value, out);
+                }
+                size = Files.size(file);
+            } catch (IOException e) {
+                System.err.println("[" + name + "] 写入缓存文件失败: " + e.getMessage());
+                synchronized (this) {
+                    spilling.remove(key, value);
+                }
+                deleteQuietly(file);
+                continue;
+            }
+            List<Path> obsolete = new ArrayList<>();
+            synchronized (this) {
+                if (spilling.get(key) != value) {
+                    // 写入期间被重新放入或移除
+                    obsolete.add(file);
+                } else {
+                    spilling.remove(key);
+                    Spilled previous = disk.put(key, new Spilled(file, size));
+                    if (previous != null) {
+                        diskBytes -= previous.size;
+                        obsolete.add(previous.file);
+                    }
+                    diskBytes += size;
+                    spills.incrementAndGet();
+                    Iterator<Spilled> it = disk.values().iterator();
+                    while (diskBytes > maxDiskBytes && it.hasNext()) {
+                        Spilled eldest = it.next();
+                        it.remove();
+                        diskBytes -= eldest.size;
+                        obsolete.add(eldest.file);
+                    }
+                }
+            }
+            for (Path path : obsolete) {
+                deleteQuietly(path);
+            }
+        }
+    }
+
+    /**
+     * @return 从文件读回的值，读取失败时返回null
+     */
+    private V read(Spilled spilled) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(spilled.file)))) {
+            return codec.decode(in);
+        } catch (NoSuchFileException e) {
+            // 读取期间被移除或因超出上限被删除
+            return null;
+        } catch (IOException e) {
+            System.err.println("[" + name + "] 读取缓存文件失败: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 磁盘上的缓存只在进程运行期间有效，启动时删除已经退出的进程留下的目录
+     */
+    private void deleteStaleDirectories() {
+        if (!Files.isDirectory(CACHE_DIR)) {
+            return;
+        }
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(CACHE_DIR, name + "-*")) {
+            for (Path dir : dirs) {
+                String pid = dir.getFileName().toString().substring(name.length() + 1);
+                if (!pid.matches("\\d+") || ProcessHandle.of(Long.parseLong(pid)).isPresent()) {
+                    continue;
+                }
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                    for (Path file : files) {
+                        deleteQuietly(file);
+                    }
+                }
+                deleteQuietly(dir);
+            }
+        } catch (IOException e) {
+            System.err.println("[" + name + "] 清理缓存目录失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return 这次写入使用的新文件
+     */
+    private Path fileFor(String key) {
+        String safe = key.replaceAll("[^A-Za-z0-9-]", "_");
+        // 替换过字符的键加上哈希值，避免不同的键映射到同一个文件
+        String base = safe.equals(key) ? safe : safe + "_" + Integer.toHexString(key.hashCode());
+        return directory.resolve(base + "." + fileSequence.incrementAndGet());
+    }
+
+    private void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.err.println("[" + name + "] 删除缓存文件失败: " + e.getMessage());
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return 从磁盘读回的次数
+     */
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return 淘汰后写入磁盘的次数
+     */
+    public long getSpills() {
+        return spills.get();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized int size() {
+        return memory.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + "[内存 " + memory.size() + " 项/" + weight + " 字节, 磁盘 " + disk.size() + " 项/" + diskBytes
+                + " 字节, 命中 " + hits + ", 磁盘命中 " + diskHits + ", 未命中 " + misses
+                + ", 淘汰 " + evictions + ", 写入磁盘 " + spills + "]";
+    }
+}
@@ -0,0 +1,14 @@
+package client.cache;
+
+/**
+ * 估算缓存值占用的内存
+ * @param <V> 缓存值的类型
+ */
+@FunctionalInterface
+public interface Weigher<V> {
+    /**
+     * @param value 缓存值，不为null
+     * @return 估算的字节数
+     */
+    long weigh(V value);
+}
@@ -4,11 +4,17 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
 import java.io.File;
 
 import client.MessageSender;
+import client.image.ImageTranscoder;
 import client.model.ClientModel;
 import client.view.ChatView;
 import client.view.ContactListView;
@@ -18,8 +24,11 @@ import info.Chat_info;
 import info.Group_info;
 import info.Org_info;
 import io.FileIO;
+import io.history.HistoryPage;
+import io.history.SearchHit;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 /*
@@ -32,6 +41,13 @@ public class ChatController {
     private MessageSender messageSender; // 替代原来的Socket
     private VoiceCallController voiceCallController; // 语音通话控制器
     private ContactListView contactListView; // 新增一个对主窗口的引用
+    private final FileIO fileIO = new FileIO(); // 聊天记录读写
+    // 压缩并发送图片的后台线程，按选择的顺序逐张发送
+    private final ExecutorService imageSender = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "image-send");
+        thread.setDaemon(true);
+        return thread;
+    });
     /*
         构造函数
     */
@@ -214,6 +230,18 @@ public class ChatController {
         // 检查这条消息是否是由当前用户发送的
         boolean isFromCurrentUser = chatInfo.getFrom_username().equals(model.getCurrentUser());
         
+        // 服务端因发送过快拒绝了这条消息
+        if (isFromCurrentUser && chatInfo.isRejected()) {
+            String key = chatInfo.isType()
+                ? getChatViewKey(true, String.valueOf(chatInfo.getGroup_id()))
+                : getChatViewKey(false, chatInfo.getTo_username());
+            ChatView chatView = chatViews.get(key);
+            if (chatView != null) {
+                chatView.showError("发送消息过于频繁，这条消息未送达，请稍后再试");
+            }
+            return;
+        }
+        
         // 检查消息是否发送失败
         if (isFromCurrentUser && !chatInfo.getTransfer_status()) {
             // 消息发送失败，显示提示框
@@ -255,9 +283,8 @@ public class ChatController {
      */
     private void saveMessageToFile(Chat_info chatInfo) {
         try {
-            FileIO fileIO = new FileIO();
+            // 只放入写入队列，不在收消息的线程上等待磁盘
             fileIO.saveChatMessage(chatInfo);
-            System.out.println("聊天记录已实时保存");
         } catch (IOException e) {
             System.err.println("保存聊天记录失败: " + e.getMessage());
             e.printStackTrace();
@@ -411,20 +438,38 @@ public class ChatController {
     }
     
     /**
-     * 加载聊天历史记录
+     * 在后台线程中加载一页聊天历史记录
      * @param chatInfo 聊天信息
+     * @param before 游标，加载最新的一页时传入 Long.MAX_VALUE，之后传入上一页的 getCursor()
+     * @param limit 每页的条数
      * @param callback 历史记录回调
      */
-    public void loadChatHistory(Chat_info chatInfo, HistoryCallback callback) {
+    public void loadChatHistory(Chat_info chatInfo, long before, int limit, HistoryCallback callback) {
         // 创建新线程加载历史记录
         new Thread(() -> {
             try {
-                FileIO fileIO = new FileIO();
-                List<String> history = fileIO.getChatHistory(chatInfo);
-                callback.onHistoryLoaded(history);
+                callback.onHistoryLoaded(fileIO.getChatHistory(chatInfo, before, limit));
+            } catch (IOException e) {
+                e.printStackTrace();
+                callback.onHistoryLoaded(HistoryPage.empty());
+            }
+        }).start();
+    }
+
+    /**
+     * 在后台线程中搜索当前用户参与的会话的聊天记录
+     * @param query 查询，以空白分隔的多个词语需要同时出现
+     * @param limit 最多返回的条数
+     */
+    public void searchChatHistory(String query, int limit, SearchCallback callback) {
+        new Thread(() -> {
+            try {
+                Set<Integer> groupIds = new HashSet<>(model.getGroups().keySet());
+                groupIds.addAll(model.getOrgs().keySet()); // 小组消息也保存在群聊记录目录下
+                callback.onSearchCompleted(fileIO.searchChatHistory(model.getCurrentUser(), groupIds, query, limit));
             } catch (IOException e) {
                 e.printStackTrace();
-                callback.onHistoryLoaded(Collections.emptyList());
+                callback.onSearchCompleted(Collections.emptyList());
             }
         }).start();
     }
@@ -439,7 +484,14 @@ public class ChatController {
      * 历史记录回调接口
      */
     public interface HistoryCallback {
-        void onHistoryLoaded(List<String> history);
+        void onHistoryLoaded(HistoryPage page);
+    }
+
+    /**
+     * 搜索结果回调接口
+     */
+    public interface SearchCallback {
+        void onSearchCompleted(List<SearchHit> hits);
     }
     
     /**
@@ -558,20 +610,47 @@ public class ChatController {
             String description = JOptionPane.showInputDialog(null, 
                 "请输入图片描述（可选）:", "图片描述", JOptionPane.QUESTION_MESSAGE);
             
-            // 发送图片
-            boolean success = messageSender.sendPrivateImage(
-                model.getCurrentUsername(), username, selectedFile, description);
+            boolean original = askSendOriginal(selectedFile);
             
-            if (!success) {
-                // 获取对应的聊天窗口
-                String key = getChatViewKey(false, username);
-                ChatView chatView = chatViews.get(key);
-                
-                if (chatView != null) {
-                    chatView.showError("发送图片失败，请重试");
-                }
+            // 发送图片
+            String currentUser = model.getCurrentUsername();
+            sendImageInBackground(getChatViewKey(false, username), () -> messageSender.sendPrivateImage(
+                currentUser, username, selectedFile, description, original));
+        }
+    }
+    
+    /**
+     * 在后台线程中压缩并发送图片，压缩要解码整张图片，不能占用事件分发线程
+     * @param key 发送失败时显示错误的聊天窗口
+     * @param send 发送图片的操作，返回是否成功
+     */
+    private void sendImageInBackground(String key, BooleanSupplier send) {
+        imageSender.execute(() -> {
+            if (!send.getAsBoolean()) {
+                SwingUtilities.invokeLater(() -> {
+                    ChatView chatView = chatViews.get(key);
+                    if (chatView != null) {
+                        chatView.showError("发送图片失败，请重试");
+                    }
+                });
             }
+        });
+    }
+    
+    /**
+     * 图片较大时询问是否发送原图，默认压缩后发送
+     * @param imageFile 图片文件
+     * @return 是否发送原图
+     */
+    private boolean askSendOriginal(File imageFile) {
+        if (!ImageTranscoder.shouldTranscode(imageFile)) {
+            return false;
         }
+        Object[] options = {"压缩后发送", "发送原图"};
+        int choice = JOptionPane.showOptionDialog(null,
+            "图片较大，默认压缩后发送。是否发送原图？", "发送图片",
+            JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, options, options[0]);
+        return choice == 1;
     }
     
     /**
@@ -632,21 +711,14 @@ public class ChatController {
             String description = JOptionPane.showInputDialog(null, 
                 "请输入图片描述（可选）:", "图片描述", JOptionPane.QUESTION_MESSAGE);
             
+            boolean original = askSendOriginal(selectedFile);
+            
             try {
                 int groupIdInt = Integer.parseInt(groupId);
                 // 发送图片
-                boolean success = messageSender.sendGroupImage(
-                    model.getCurrentUsername(), groupIdInt, selectedFile, description);
-                
-                if (!success) {
-                    // 获取对应的聊天窗口
-                    String key = getChatViewKey(true, groupId);
-                    ChatView chatView = chatViews.get(key);
-                    
-                    if (chatView != null) {
-                        chatView.showError("发送图片失败，请重试");
-                    }
-                }
+                String currentUser = model.getCurrentUsername();
+                sendImageInBackground(getChatViewKey(true, groupId), () -> messageSender.sendGroupImage(
+                    currentUser, groupIdInt, selectedFile, description, original));
             } catch (NumberFormatException e) {
                 // 获取对应的聊天窗口
                 String key = getChatViewKey(true, groupId);
@@ -669,7 +741,15 @@ public class ChatController {
         }
         return voiceCallController;
     }
-    
+
+    /**
+     * 获取消息发送器
+     * @return 消息发送器
+     */
+    public MessageSender getMessageSender() {
+        return messageSender;
+    }
+
     /**
      * 获取群组成员列表
      * @param groupId 群组ID
@@ -687,7 +767,6 @@ public class ChatController {
             } else {
                 // 如果模型中没有群组信息，尝试从文件中读取
                 try {
-                    FileIO fileIO = new FileIO();
                     return fileIO.getGroupMembers(id);
                 } catch (IOException e) {
                     System.err.println("获取群组成员失败: " + e.getMessage());
@@ -29,6 +29,13 @@ public class LoginController {
         this.messageSender = messageSender;
     }
 
+    /*
+        获取消息发送器
+    */
+    public MessageSender getMessageSender() {
+        return messageSender;
+    }
+
     /*
         设置登录视图
     */
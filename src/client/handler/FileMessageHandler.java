@@ -3,10 +3,10 @@ package client.handler;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.function.Consumer;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
@@ -17,16 +17,22 @@ import javax.swing.ImageIcon;
 import java.awt.BorderLayout;
 import java.awt.event.ActionListener;
 import java.awt.event.ActionEvent;
-import java.awt.image.BufferedImage;
-import javax.imageio.ImageIO;
-import java.io.ByteArrayInputStream;
 
 import client.MessageSender;
+import client.cache.BoundedCache;
+import client.image.ThumbnailService;
 import client.controller.ChatController;
 import client.model.ClientModel;
+import client.transfer.FileDownload;
+import client.transfer.FileRef;
+import client.transfer.FileTransfers;
+import client.transfer.FileUpload;
 import info.Chat_info;
 import info.File_info;
+import info.File_info.TransferStage;
 import info.encap_info;
+import io.FileChunks;
+import io.codec.FileInfoCodec;
 
 /**
  * 文件传输消息处理器
@@ -35,8 +41,14 @@ import info.encap_info;
 public class FileMessageHandler implements ClientMessageHandler {
     private ClientModel model;
     private ChatController chatController;
-    // 存储文件信息，用于后续下载
-    private static Map<String, File_info> fileInfoCache = new HashMap<>();
+    // 存储文件信息，用于后续下载；旧版客户端发来的文件带有完整数据，按数据大小限制内存（-Dchat.client.cache.fileinfo，MB），
+    // 超出的部分写入本地缓存目录
+    private static final BoundedCache<File_info> fileInfoCache = new BoundedCache<>("file-info",
+            Long.getLong("chat.client.cache.fileinfo", 16) * 1024 * 1024,
+            Long.getLong("chat.client.cache.disk", 256) * 1024 * 1024,
+            FileMessageHandler::weigh, new FileInfoCodec());
+    // 当前连接的消息发送器，用于从聊天窗口拉取群文件
+    private static volatile MessageSender transferSender;
     
     /**
      * 构造函数
@@ -56,24 +68,149 @@ public class FileMessageHandler implements ClientMessageHandler {
         }
         
         File_info fileInfo = info.get_file_info();
+        if (fileInfo.getStage() != null) {
+            handleTransfer(fileInfo);
+            return;
+        }
         
         // 缓存文件信息，用于后续下载
         fileInfoCache.put(fileInfo.getFileId(), fileInfo);
         
-        // 如果是图片且不是infoOnly，创建缩略图并缓存
+        // 如果是图片且不是infoOnly，在后台生成缩略图
         if (fileInfo.isImage() && !fileInfo.isInfoOnly() && fileInfo.getFileData() != null) {
+            ThumbnailService.request(fileInfo.getFileId(), ThumbnailService.of(fileInfo.getFileData()), null);
+        }
+        
+        showFileMessage(fileInfo);
+    }
+    
+    /**
+     * 处理分块传输消息
+     * 收到OFFER后自动接受并把数据块写入下载目录，全部收到并校验通过后再显示接收通知；
+     * 群文件的ANNOUNCE只显示文件信息，用户点击下载时再拉取；
+     * 其他回复转交给对应的上传任务
+     * @param fileInfo 文件信息
+     */
+    private void handleTransfer(File_info fileInfo) {
+        String fileId = fileInfo.getFileId();
+        MessageSender sender = chatController.getMessageSender();
+        transferSender = sender;
+        switch (fileInfo.getStage()) {
+            case ANNOUNCE:
+                fileInfoCache.put(fileId, fileInfo);
+                showFileMessage(fileInfo);
+                break;
+            case OFFER:
+                // 断线后服务器会再次发送OFFER，沿用已有的下载，按位图续传
+                FileDownload existing = FileTransfers.getDownload(fileId);
+                try {
+                    FileDownload offered = existing != null ? existing : new FileDownload(fileInfo, FileTransfers.DOWNLOAD_DIR);
+                    FileTransfers.addDownload(fileId, offered);
+                    if (offered.isComplete()) {
+                        finishDownload(offered, sender);
+                        break;
+                    }
+                    encap_info accept = FileChunks.message(fileId, null, TransferStage.ACCEPT, 0, null);
+                    accept.get_file_info().setChunkBitmap(offered.getChunkBitmap());
+                    sender.sendFileTransferMessage(accept);
+                } catch (IOException e) {
+                    System.err.println("创建下载文件失败: " + e.getMessage());
+                    FileTransfers.removeDownload(fileId);
+                    sender.sendFileTransferMessage(FileChunks.message(fileId, null, TransferStage.CANCEL, 0, null));
+                }
+                break;
+            case CHUNK:
+                FileDownload download = FileTransfers.getDownload(fileId);
+                if (download == null) {
+                    break;
+                }
+                try {
+                    if (!download.receive(fileInfo)) {
+                        sender.sendFileTransferMessage(FileChunks.message(fileId, null, TransferStage.ACK, fileInfo.getChunkIndex(), null));
+                        break;
+                    }
+                    finishDownload(download, sender);
+                } catch (IOException e) {
+                    System.err.println("接收文件 " + download.getOffer().getFileName() + " 失败: " + e.getMessage());
+                    FileTransfers.removeDownload(fileId);
+                    download.abort();
+                    sender.sendFileTransferMessage(FileChunks.message(fileId, null, TransferStage.CANCEL, 0, null));
+                }
+                break;
+            case CANCEL:
+                File pullTarget = FileTransfers.removePull(fileId);
+                if (pullTarget != null) {
+                    SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null,
+                            "文件已过期，无法下载", "错误", JOptionPane.ERROR_MESSAGE));
+                }
+                FileDownload cancelled = FileTransfers.removeDownload(fileId);
+                if (cancelled != null) {
+                    System.err.println("文件 " + cancelled.getOffer().getFileName() + " 的传输已取消");
+                    cancelled.abort();
+                    break;
+                }
+                // 不是下载，交给上传任务处理
+                forwardToUpload(fileInfo);
+                break;
+            default:
+                forwardToUpload(fileInfo);
+                break;
+        }
+    }
+    
+    private void forwardToUpload(File_info fileInfo) {
+        FileUpload upload = FileTransfers.getUpload(fileInfo.getFileId());
+        if (upload != null) {
+            upload.onReply(fileInfo);
+        }
+    }
+
+    /**
+     * 全部数据块已收到，在后台线程中校验整个文件，不阻塞接收消息的线程
+     */
+    private void finishDownload(FileDownload download, MessageSender sender) {
+        String fileId = download.getOffer().getFileId();
+        FileTransfers.verifyInBackground(() -> {
             try {
-                BufferedImage image = ImageIO.read(new ByteArrayInputStream(fileInfo.getFileData()));
-                if (image != null) {
-                    ImageIcon thumbnail = createThumbnail(image);
-                    MessageSender.getImageIcon(fileInfo.getFileId()); // 这里应该是缓存图片，但我们已经在MessageSender中做了
+                Path path = download.finish();
+                if (path != null) {
+                    onDownloadFinished(download, path, sender);
                 }
-            } catch (Exception e) {
-                System.err.println("创建图片缩略图失败: " + e.getMessage());
+            } catch (IOException e) {
+                System.err.println("接收文件 " + download.getOffer().getFileName() + " 失败: " + e.getMessage());
+                FileTransfers.removeDownload(fileId);
+                download.abort();
+                sender.sendFileTransferMessage(FileChunks.message(fileId, null, TransferStage.CANCEL, 0, null));
             }
+        });
+    }
+
+    /**
+     * 下载完成，通知服务器并显示接收通知；拉取的群文件直接保存到用户选择的位置
+     */
+    private void onDownloadFinished(FileDownload download, Path path, MessageSender sender) {
+        String fileId = download.getOffer().getFileId();
+        FileTransfers.removeDownload(fileId);
+        FileTransfers.addReceivedFile(fileId, path);
+        sender.sendFileTransferMessage(FileChunks.message(fileId, null, TransferStage.COMPLETE, 0, null));
+        File_info offer = download.getOffer();
+        File pullTarget = FileTransfers.removePull(fileId);
+        if (pullTarget != null) {
+            SwingUtilities.invokeLater(() -> saveTo(offer, pullTarget));
+            return;
         }
-        
-        // 在UI线程中处理文件接收通知
+        fileInfoCache.put(fileId, offer);
+        if (offer.isImage()) {
+            ThumbnailService.request(fileId, ThumbnailService.of(FileRef.of(path.toFile())), null);
+        }
+        showFileMessage(offer);
+    }
+    
+    /**
+     * 在UI线程中显示文件发送记录或接收通知
+     * @param fileInfo 文件信息
+     */
+    private void showFileMessage(File_info fileInfo) {
         SwingUtilities.invokeLater(() -> {
             // 显示文件接收通知
             String sender = fileInfo.getFromUsername();
@@ -115,18 +252,18 @@ public class FileMessageHandler implements ClientMessageHandler {
             JPanel panel = new JPanel(new BorderLayout(5, 5));
             JPanel contentPanel = new JPanel(new BorderLayout(5, 5));
             
-            // 如果是图片，显示预览
-            if (fileInfo.isImage() && fileInfo.getFileData() != null) {
-                try {
-                    BufferedImage image = ImageIO.read(new ByteArrayInputStream(fileInfo.getFileData()));
-                    if (image != null) {
-                        ImageIcon thumbnail = createThumbnail(image);
-                        JLabel imageLabel = new JLabel(thumbnail);
-                        contentPanel.add(imageLabel, BorderLayout.CENTER);
+            // 如果是图片，显示预览，缩略图在后台生成，完成后再放入对话框
+            if (fileInfo.isImage() && isAvailable(fileInfo)) {
+                JLabel imageLabel = new JLabel("正在加载预览...", JLabel.CENTER);
+                contentPanel.add(imageLabel, BorderLayout.CENTER);
+                loadImage(fileInfo.getFileId(), thumbnail -> {
+                    if (thumbnail != null) {
+                        imageLabel.setText(null);
+                        imageLabel.setIcon(thumbnail);
+                    } else {
+                        imageLabel.setText("无法显示图片预览");
                     }
-                } catch (Exception e) {
-                    System.err.println("显示图片预览失败: " + e.getMessage());
-                }
+                });
             }
             
             JLabel label = new JLabel(message.toString());
@@ -298,33 +435,96 @@ public class FileMessageHandler implements ClientMessageHandler {
      * @param fileInfo 文件信息
      */
     private void saveFile(File_info fileInfo) {
-        // 如果是只包含信息的文件，需要从缓存中获取文件数据
-        byte[] fileData;
+        downloadFile(fileInfo.getFileId());
+    }
+    
+    /**
+     * 把文件写到用户选择的位置并提示结果
+     * @return 是否保存成功
+     */
+    private static boolean saveTo(File_info fileInfo, File fileToSave) {
+        try {
+            writeFile(fileInfo, fileToSave);
+            JOptionPane.showMessageDialog(null, (fileInfo.isImage() ? "图片" : "文件") + "保存成功！", "成功", JOptionPane.INFORMATION_MESSAGE);
+            return true;
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(null, "保存" + (fileInfo.isImage() ? "图片" : "文件") + "时出错: " + ex.getMessage(), "错误", JOptionPane.ERROR_MESSAGE);
+            return false;
+        }
+    }
+    
+    /**
+     * @return 是否是只通知了信息、需要向服务器拉取的群文件
+     */
+    private static boolean isRemote(File_info fileInfo) {
+        return fileInfo.getStage() == TransferStage.ANNOUNCE && !isAvailable(fileInfo);
+    }
+    
+    /**
+     * 向服务器请求下载群文件，下载完成后保存到指定位置
+     * @return 是否已发出请求
+     */
+    private static boolean requestPull(File_info fileInfo, File fileToSave) {
+        MessageSender sender = transferSender;
+        if (sender == null) {
+            return false;
+        }
+        if (!FileTransfers.addPull(fileInfo.getFileId(), fileToSave)) {
+            JOptionPane.showMessageDialog(null, "文件正在下载", "提示", JOptionPane.INFORMATION_MESSAGE);
+            return false;
+        }
+        if (!sender.sendFileTransferMessage(FileChunks.wrap(FileChunks.copyOffer(fileInfo, TransferStage.REQUEST)))) {
+            FileTransfers.removePull(fileInfo.getFileId());
+            JOptionPane.showMessageDialog(null, "请求下载文件失败", "错误", JOptionPane.ERROR_MESSAGE);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * @return 文件在本地磁盘上的引用：自己发送的文件为原文件，分块接收的文件为下载目录中的文件；没有时返回null
+     */
+    private static FileRef localFile(File_info fileInfo) {
         if (fileInfo.isInfoOnly()) {
-            fileData = MessageSender.getFileData(fileInfo.getFileId());
-            if (fileData == null) {
-                JOptionPane.showMessageDialog(null, "文件数据已过期或不可用", "错误", JOptionPane.ERROR_MESSAGE);
-                return;
-            }
-        } else {
-            fileData = fileInfo.getFileData();
+            return FileTransfers.getSentFile(fileInfo.getFileId());
         }
-        
-        JFileChooser fileChooser = new JFileChooser();
-        fileChooser.setDialogTitle("保存" + (fileInfo.isImage() ? "图片" : "文件"));
-        fileChooser.setSelectedFile(new File(fileInfo.getFileName()));
-        
-        int userSelection = fileChooser.showSaveDialog(null);
-        
-        if (userSelection == JFileChooser.APPROVE_OPTION) {
-            File fileToSave = fileChooser.getSelectedFile();
-            
-            try (FileOutputStream fos = new FileOutputStream(fileToSave)) {
-                fos.write(fileData);
-                JOptionPane.showMessageDialog(null, (fileInfo.isImage() ? "图片" : "文件") + "保存成功！", "成功", JOptionPane.INFORMATION_MESSAGE);
-            } catch (IOException ex) {
-                JOptionPane.showMessageDialog(null, "保存" + (fileInfo.isImage() ? "图片" : "文件") + "时出错: " + ex.getMessage(), "错误", JOptionPane.ERROR_MESSAGE);
-            }
+        Path path = FileTransfers.getReceivedFile(fileInfo.getFileId());
+        return path == null ? null : FileRef.of(path.toFile());
+    }
+    
+    /**
+     * @return 文件数据是否仍然可用
+     */
+    private static boolean isAvailable(File_info fileInfo) {
+        FileRef file = localFile(fileInfo);
+        return fileInfo.getFileData() != null || (file != null && file.isValid());
+    }
+    
+    /**
+     * @return 读取原图的数据源，数据不可用时返回null
+     */
+    private static ThumbnailService.ImageSource imageSource(File_info fileInfo) {
+        if (fileInfo.getFileData() != null) {
+            return ThumbnailService.of(fileInfo.getFileData());
+        }
+        FileRef file = localFile(fileInfo);
+        return file != null && file.isValid() ? ThumbnailService.of(file) : null;
+    }
+    
+    /**
+     * 把文件保存到用户选择的位置，本地已有文件时直接复制，不经过内存
+     * @param fileInfo 文件信息
+     * @param target 保存位置
+     * @throws IOException 如果保存失败
+     */
+    private static void writeFile(File_info fileInfo, File target) throws IOException {
+        FileRef file = localFile(fileInfo);
+        if (fileInfo.getFileData() == null && file != null) {
+            file.copyTo(target.toPath());
+            return;
+        }
+        try (FileOutputStream fos = new FileOutputStream(target)) {
+            fos.write(fileInfo.getFileData());
         }
     }
     
@@ -345,6 +545,14 @@ public class FileMessageHandler implements ClientMessageHandler {
         }
     }
     
+    /**
+     * 估算缓存的文件信息占用的内存，主要是文件数据
+     */
+    private static long weigh(File_info fileInfo) {
+        byte[] data = fileInfo.getFileData();
+        return 512 + (data == null ? 0 : data.length);
+    }
+    
     /**
      * 根据文件ID获取文件信息
      * @param fileId 文件ID
@@ -356,8 +564,9 @@ public class FileMessageHandler implements ClientMessageHandler {
     
     /**
      * 下载文件
+     * 群文件只有信息时向服务器拉取，下载完成后再保存到选择的位置
      * @param fileId 文件ID
-     * @return 是否下载成功
+     * @return 是否下载成功，拉取时表示是否已发出请求
      */
     public static boolean downloadFile(String fileId) {
         File_info fileInfo = fileInfoCache.get(fileId);
@@ -366,15 +575,8 @@ public class FileMessageHandler implements ClientMessageHandler {
             return false;
         }
         
-        // 获取文件数据
-        byte[] fileData;
-        if (fileInfo.isInfoOnly()) {
-            fileData = MessageSender.getFileData(fileId);
-        } else {
-            fileData = fileInfo.getFileData();
-        }
-        
-        if (fileData == null) {
+        boolean remote = isRemote(fileInfo);
+        if (!remote && !isAvailable(fileInfo)) {
             JOptionPane.showMessageDialog(null, "文件数据已过期或不可用", "错误", JOptionPane.ERROR_MESSAGE);
             return false;
         }
@@ -387,101 +589,23 @@ public class FileMessageHandler implements ClientMessageHandler {
         
         if (userSelection == JFileChooser.APPROVE_OPTION) {
             File fileToSave = fileChooser.getSelectedFile();
-            
-            try (FileOutputStream fos = new FileOutputStream(fileToSave)) {
-                fos.write(fileData);
-                JOptionPane.showMessageDialog(null, (fileInfo.isImage() ? "图片" : "文件") + "保存成功！", "成功", JOptionPane.INFORMATION_MESSAGE);
-                return true;
-            } catch (IOException ex) {
-                JOptionPane.showMessageDialog(null, "保存" + (fileInfo.isImage() ? "图片" : "文件") + "时出错: " + ex.getMessage(), "错误", JOptionPane.ERROR_MESSAGE);
-            }
+            return remote ? requestPull(fileInfo, fileToSave) : saveTo(fileInfo, fileToSave);
         }
         
         return false;
     }
     
     /**
-     * 创建图片缩略图
-     * @param originalImage 原始图片
-     * @return 缩略图
-     */
-    private ImageIcon createThumbnail(BufferedImage originalImage) {
-        int originalWidth = originalImage.getWidth();
-        int originalHeight = originalImage.getHeight();
-        
-        // 计算缩放比例
-        double scale = 1.0;
-        if (originalWidth > 300 || originalHeight > 300) {
-            double scaleWidth = (double) 300 / originalWidth;
-            double scaleHeight = (double) 300 / originalHeight;
-            scale = Math.min(scaleWidth, scaleHeight);
-        }
-        
-        // 计算缩放后的尺寸
-        int scaledWidth = (int) (originalWidth * scale);
-        int scaledHeight = (int) (originalHeight * scale);
-        
-        // 创建缩略图
-        java.awt.Image scaledImage = originalImage.getScaledInstance(scaledWidth, scaledHeight, java.awt.Image.SCALE_SMOOTH);
-        return new ImageIcon(scaledImage);
-    }
-    
-    /**
-     * 获取图片
+     * 在后台加载图片缩略图，完成后在UI线程中回调
      * @param fileId 文件ID
-     * @return 图片图标
+     * @param onReady 回调，图片不可用时参数为null
      */
-    public static ImageIcon getImage(String fileId) {
+    public static void loadImage(String fileId, Consumer<ImageIcon> onReady) {
         File_info fileInfo = fileInfoCache.get(fileId);
         if (fileInfo == null || !fileInfo.isImage()) {
-            return null;
-        }
-        
-        // 尝试从缓存获取
-        ImageIcon cachedImage = MessageSender.getImageIcon(fileId);
-        if (cachedImage != null) {
-            return cachedImage;
-        }
-        
-        // 如果缓存中没有，尝试从文件数据创建
-        byte[] fileData;
-        if (fileInfo.isInfoOnly()) {
-            fileData = MessageSender.getFileData(fileId);
-        } else {
-            fileData = fileInfo.getFileData();
-        }
-        
-        if (fileData == null) {
-            return null;
-        }
-        
-        try {
-            BufferedImage image = ImageIO.read(new ByteArrayInputStream(fileData));
-            if (image != null) {
-                // 创建缩略图
-                int originalWidth = image.getWidth();
-                int originalHeight = image.getHeight();
-                
-                // 计算缩放比例
-                double scale = 1.0;
-                if (originalWidth > 300 || originalHeight > 300) {
-                    double scaleWidth = (double) 300 / originalWidth;
-                    double scaleHeight = (double) 300 / originalHeight;
-                    scale = Math.min(scaleWidth, scaleHeight);
-                }
-                
-                // 计算缩放后的尺寸
-                int scaledWidth = (int) (originalWidth * scale);
-                int scaledHeight = (int) (originalHeight * scale);
-                
-                // 创建缩略图
-                java.awt.Image scaledImage = image.getScaledInstance(scaledWidth, scaledHeight, java.awt.Image.SCALE_SMOOTH);
-                return new ImageIcon(scaledImage);
-            }
-        } catch (IOException e) {
-            System.err.println("读取图片数据失败: " + e.getMessage());
+            SwingUtilities.invokeLater(() -> onReady.accept(null));
+            return;
         }
-        
-        return null;
+        ThumbnailService.request(fileId, imageSource(fileInfo), onReady);
     }
-} 
\ No newline at end of file
+}
@@ -2,6 +2,7 @@ package client.handler;
 
 import client.controller.LoginController;
 import client.model.ClientModel;
+import client.transfer.FileTransfers;
 import info.Group_info;
 import info.Login_info;
 import info.Org_info;
@@ -76,6 +77,9 @@ public class LoginMessageHandler implements ClientMessageHandler {
 
                 // 通知登录控制器登录成功
                 loginController.onLoginSuccess();
+
+                // 继续断线前未完成的文件上传
+                FileTransfers.resumeUploads(loginController.getMessageSender());
             } else {
                 // 登录失败，不设置当前用户，只通知登录失败
                 loginController.onLoginFailure("用户名或密码错误");
@@ -0,0 +1,83 @@
+package client.image;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * 图片的降采样解码和缩放，缩略图和上传前的压缩共用
+ */
+final class ImageScaling {
+    private ImageScaling() {
+    }
+
+    /**
+     * 按目标大小降采样解码，解码结果的最大边长不小于目标大小，缩放时保持清晰
+     * @param source 原图数据
+     * @param maxSize 目标最大边长
+     * @return 解码的图片，无法识别的图片格式返回null
+     */
+    static BufferedImage decode(ThumbnailService.ImageSource source, int maxSize) throws IOException {
+        try (ImageInputStream in = source.open()) {
+            if (in == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int step = Math.max(1, Math.max(width, height) / maxSize);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * 用 Graphics2D 双线性插值缩放到不超过最大边长
+     * @param opaque 是否生成不透明的RGB图片，透明部分填充白色（JPEG不支持透明通道）
+     * @return 缩放后的图片，不需要缩放也不需要去掉透明通道时原样返回
+     */
+    static BufferedImage scale(BufferedImage image, int maxSize, boolean opaque) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean alpha = image.getColorModel().hasAlpha();
+        boolean fits = width <= maxSize && height <= maxSize;
+        if (fits && (!opaque || image.getType() == BufferedImage.TYPE_INT_RGB)) {
+            return image;
+        }
+        double scale = fits ? 1.0 : Math.min((double) maxSize / width, (double) maxSize / height);
+        int scaledWidth = Math.max(1, (int) (width * scale));
+        int scaledHeight = Math.max(1, (int) (height * scale));
+        BufferedImage scaled = new BufferedImage(scaledWidth, scaledHeight,
+                alpha && !opaque ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            if (opaque) {
+                g.setColor(Color.WHITE);
+                g.fillRect(0, 0, scaledWidth, scaledHeight);
+            }
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
+            g.drawImage(image, 0, 0, scaledWidth, scaledHeight, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+}
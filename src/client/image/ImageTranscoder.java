@@ -0,0 +1,141 @@
+package client.image;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+
+/**
+ * 上传前的图片压缩
+ * 边长超过上限的图片先降采样解码并缩放到上限以内，较大的PNG/BMP截图即使尺寸不大也重新编码，
+ * 结果以指定质量编码为JPEG，只有比原图小时才使用；GIF可能是动画，保持原样。
+ * 原图不会自动上传，需要时由用户选择发送原图
+ */
+public final class ImageTranscoder {
+    // 最大边长，可以用 -Dchat.client.image.maxDimension 调整，0表示不压缩
+    private static final int MAX_DIMENSION = Integer.getInteger("chat.client.image.maxDimension", 1920);
+    // JPEG编码质量（0-1），可以用 -Dchat.client.image.quality 调整
+    private static final float QUALITY = clampQuality(System.getProperty("chat.client.image.quality", "0.85"));
+    // 尺寸不超过上限时，超过这个大小的无损图片也重新编码，可以用 -Dchat.client.image.reencodeBytes 调整
+    private static final long REENCODE_BYTES = Long.getLong("chat.client.image.reencodeBytes", 512 * 1024);
+    // 压缩结果的存放目录，可以用 -Dchat.client.image.dir 调整
+    private static final Path OUTPUT_DIR = Paths.get(System.getProperty("chat.client.image.dir", "client_images"));
+
+    private ImageTranscoder() {
+    }
+
+    private static float clampQuality(String value) {
+        try {
+            return Math.max(0.05f, Math.min(1.0f, Float.parseFloat(value)));
+        } catch (NumberFormatException e) {
+            System.err.println("无效的图片质量设置: " + value);
+            return 0.85f;
+        }
+    }
+
+    /**
+     * 只读取图片头判断是否需要压缩，不解码像素
+     * @param file 图片文件
+     * @return 是否需要压缩
+     */
+    public static boolean shouldTranscode(File file) {
+        if (MAX_DIMENSION <= 0 || file.getName().toLowerCase().endsWith(".gif")) {
+            return false;
+        }
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) {
+                return false;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return false;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                String format = reader.getFormatName().toLowerCase();
+                if (format.equals("gif")) {
+                    return false;
+                }
+                if (Math.max(reader.getWidth(0), reader.getHeight(0)) > MAX_DIMENSION) {
+                    return true;
+                }
+                return !format.startsWith("jp") && file.length() > REENCODE_BYTES;
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            System.err.println("读取图片信息失败: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 压缩图片
+     * @param file 原图
+     * @return 压缩后的JPEG文件；不需要压缩、压缩失败或结果不比原图小时返回原图
+     */
+    public static File transcode(File file) {
+        if (!shouldTranscode(file)) {
+            return file;
+        }
+        Path output = null;
+        try {
+            BufferedImage decoded = ImageScaling.decode(() -> ImageIO.createImageInputStream(file), MAX_DIMENSION);
+            if (decoded == null) {
+                return file;
+            }
+            BufferedImage image = ImageScaling.scale(decoded, MAX_DIMENSION, true);
+            Files.createDirectories(OUTPUT_DIR);
+            output = Files.createTempFile(OUTPUT_DIR, "img", ".jpg");
+            output.toFile().deleteOnExit();
+            writeJpeg(image, output.toFile());
+            if (Files.size(output) >= file.length()) {
+                Files.deleteIfExists(output);
+                return file;
+            }
+            return output.toFile();
+        } catch (IOException e) {
+            System.err.println("压缩图片失败，发送原图: " + e.getMessage());
+            if (output != null) {
+                output.toFile().delete();
+            }
+            return file;
+        }
+    }
+
+    /**
+     * @return 压缩后发送时使用的文件名，扩展名改为.jpg
+     */
+    public static String transcodedName(String name) {
+        int dot = name.lastIndexOf('.');
+        return (dot > 0 ? name.substring(0, dot) : name) + ".jpg";
+    }
+
+    private static void writeJpeg(BufferedImage image, File target) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            throw new IOException("没有可用的JPEG编码器");
+        }
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(target)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(QUALITY);
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package client.image;
+
+import client.cache.BoundedCache;
+import client.transfer.FileRef;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.ImageIcon;
+import javax.swing.SwingUtilities;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 图片缩略图的生成和缓存
+ * 缩略图在专用的工作线程中生成：按目标大小对原图降采样解码，再用 Graphics2D 双线性缩放，
+ * 结果以PNG格式保存在本地缩略图目录中，按文件ID命名，重新启动后仍然有效，目录超过上限时删除最久未使用的缩略图；
+ * 生成完成后在事件分发线程中交给调用方，界面线程不做任何解码
+ */
+public final class ThumbnailService {
+    // 缩略图的最大边长
+    public static final int MAX_SIZE = 300;
+    // 缩略图目录，可以用 -Dchat.client.thumbnails 调整
+    private static final Path THUMBNAIL_DIR = Paths.get(System.getProperty("chat.client.thumbnails", "client_thumbnails"));
+
+    // 缩略图目录的最大大小（-Dchat.client.thumbnails.maxMB），超出时删除最久未使用的缩略图
+    private static final long MAX_DISK_BYTES = Long.getLong("chat.client.thumbnails.maxMB", 64) * 1024 * 1024;
+
+    // 内存中的缩略图，按像素估算大小（-Dchat.client.cache.images，MB），被淘汰后从缩略图目录读回
+    private static final BoundedCache<ImageIcon> memory = new BoundedCache<>("images",
+            Long.getLong("chat.client.cache.images", 32) * 1024 * 1024, 0, ThumbnailService::weigh, null);
+    // 缩略图目录的大致大小，第一次保存缩略图时统计，尚未统计时为-1
+    private static final AtomicLong diskBytes = new AtomicLong(-1);
+    private static final ReentrantLock pruneLock = new ReentrantLock();
+    // 正在生成的缩略图，同一文件的多个请求共用一次生成
+    private static final Map<String, CompletableFuture<ImageIcon>> pending = new ConcurrentHashMap<>();
+    private static final ExecutorService workers = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)), new WorkerFactory());
+
+    /**
+     * 缩略图工作线程，设为守护线程，不阻止客户端退出
+     */
+    private static final class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "thumbnail-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+
+    /**
+     * 打开原图数据
+     */
+    @FunctionalInterface
+    public interface ImageSource {
+        ImageInputStream open() throws IOException;
+    }
+
+    private ThumbnailService() {
+    }
+
+    /**
+     * @return 已经在内存中的缩略图，没有时返回null，不会阻塞
+     */
+    public static ImageIcon getIfReady(String fileId) {
+        return memory.get(fileId);
+    }
+
+    /**
+     * 在后台生成或读取缩略图，完成后在事件分发线程中回调
+     * @param fileId 文件ID
+     * @param source 原图数据，缩略图目录中已有时不会打开
+     * @param onReady 回调，生成失败时参数为null；可以为null，只预先生成
+     */
+    public static void request(String fileId, ImageSource source, Consumer<ImageIcon> onReady) {
+        ImageIcon ready = memory.get(fileId);
+        if (ready != null) {
+            if (onReady != null) {
+                SwingUtilities.invokeLater(() -> onReady.accept(ready));
+            }
+            return;
+        }
+        CompletableFuture<ImageIcon> future = submit(fileId, source);
+        if (onReady != null) {
+            future.whenComplete((icon, error) -> SwingUtilities.invokeLater(() -> onReady.accept(icon)));
+        }
+    }
+
+    /**
+     * 从文件读取原图
+     */
+    public static ImageSource of(FileRef file) {
+        if (file.getOffset() != 0) {
+            return () -> ImageIO.createImageInputStream(new ByteArrayInputStream(file.read()));
+        }
+        return () -> {
+            if (!file.isValid()) {
+                throw new IOException("文件已被修改或删除: " + file.getPath());
+            }
+            return ImageIO.createImageInputStream(file.getPath().toFile());
+        };
+    }
+
+    /**
+     * 从内存中的数据读取原图
+     */
+    public static ImageSource of(byte[] data) {
+        return () -> ImageIO.createImageInputStream(new ByteArrayInputStream(data));
+    }
+
+    private static CompletableFuture<ImageIcon> submit(String fileId, ImageSource source) {
+        return pending.computeIfAbsent(fileId, id -> {
+            CompletableFuture<ImageIcon> future = new CompletableFuture<>();
+            workers.execute(() -> {
+                try {
+                    ImageIcon icon = load(id, source);
+                    if (icon != null) {
+                        memory.put(id, icon);
+                    }
+                    future.complete(icon);
+                } catch (Exception e) {
+                    System.err.println("生成图片缩略图失败: " + e.getMessage());
+                    future.complete(null);
+                } finally {
+                    pending.remove(id);
+                }
+            });
+            return future;
+        });
+    }
+
+    /**
+     * 先从缩略图目录读取，没有时从原图生成并保存
+     */
+    private static ImageIcon load(String fileId, ImageSource source) throws IOException {
+        Path cached = THUMBNAIL_DIR.resolve(fileId.replaceAll("[^A-Za-z0-9-]", "_") + ".png");
+        if (Files.isRegularFile(cached)) {
+            BufferedImage image = ImageIO.read(cached.toFile());
+            if (image != null) {
+                touch(cached);
+                return new ImageIcon(image);
+            }
+        }
+        if (source == null) {
+            return null;
+        }
+        BufferedImage thumbnail = createThumbnail(source);
+        if (thumbnail == null) {
+            return null;
+        }
+        try {
+            Files.createDirectories(THUMBNAIL_DIR);
+            Path temp = Files.createTempFile(THUMBNAIL_DIR, "thumb", ".tmp");
+            ImageIO.write(thumbnail, "png", temp.toFile());
+            Files.move(temp, cached, StandardCopyOption.REPLACE_EXISTING);
+            stored(Files.size(cached));
+        } catch (IOException e) {
+            System.err.println("保存缩略图失败: " + e.getMessage());
+        }
+        return new ImageIcon(thumbnail);
+    }
+
+    /**
+     * 读取缩略图时更新修改时间，清理时按修改时间删除最久未使用的缩略图
+     */
+    private static void touch(Path cached) {
+        try {
+            Files.setLastModifiedTime(cached, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // 只影响清理的顺序
+        }
+    }
+
+    /**
+     * 记录新保存的缩略图，目录超过 MAX_DISK_BYTES 时清理
+     */
+    private static void stored(long bytes) {
+        if (diskBytes.get() < 0 || diskBytes.addAndGet(bytes) > MAX_DISK_BYTES) {
+            prune();
+        }
+    }
+
+    /**
+     * 重新统计缩略图目录的大小，超过上限时按修改时间从旧到新删除，直到不超过上限的四分之三，
+     * 避免之后每保存一张都要清理。同一时间只有一个线程清理
+     */
+    private static void prune() {
+        if (!pruneLock.tryLock()) {
+            return;
+        }
+        try {
+            List<Path> files;
+            try (Stream<Path> listing = Files.list(THUMBNAIL_DIR)) {
+                files = listing.filter(path -> path.getFileName().toString().endsWith(".png")).collect(Collectors.toList());
+            }
+            Map<Path, BasicFileAttributes> attributes = new HashMap<>();
+            long total = 0;
+            for (Path file : files) {
+                try {
+                    BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                    attributes.put(file, attrs);
+                    total += attrs.size();
+                } catch (IOException e) {
+                    // 已被删除
+                }
+            }
+            if (total > MAX_DISK_BYTES) {
+                List<Path> oldest = new ArrayList<>(attributes.keySet());
+                oldest.sort(Comparator.comparing(file -> attributes.get(file).lastModifiedTime()));
+                for (Path file : oldest) {
+                    if (total <= MAX_DISK_BYTES / 4 * 3) {
+                        break;
+                    }
+                    if (Files.deleteIfExists(file)) {
+                        total -= attributes.get(file).size();
+                    }
+                }
+            }
+            diskBytes.set(total);
+        } catch (IOException e) {
+            System.err.println("清理缩略图目录失败: " + e.getMessage());
+        } finally {
+            pruneLock.unlock();
+        }
+    }
+
+    /**
+     * 按ARGB像素估算缩略图占用的内存
+     */
+    private static long weigh(ImageIcon icon) {
+        return 4L * Math.max(1, icon.getIconWidth()) * Math.max(1, icon.getIconHeight());
+    }
+
+    /**
+     * 按目标大小降采样解码原图，再缩放到不超过 MAX_SIZE
+     * @return 缩略图，无法识别的图片格式返回null
+     */
+    static BufferedImage createThumbnail(ImageSource source) throws IOException {
+        BufferedImage decoded = ImageScaling.decode(source, MAX_SIZE);
+        return decoded == null ? null : ImageScaling.scale(decoded, MAX_SIZE, false);
+    }
+}
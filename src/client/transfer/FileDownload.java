@@ -0,0 +1,124 @@
+package client.transfer;
+
+import info.File_info;
+import io.ChunkBitmap;
+import io.FileChunks;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 一个文件的分块下载
+ * 数据块按偏移直接写入下载目录中的临时文件，已收到的块记录在旁边的位图文件中，
+ * 连接中断或客户端重启后服务器再次发送OFFER时，凭位图只接收缺少的块；
+ * 全部收到后由调用方在后台线程中调用 finish，校验SHA-256并改名为正式文件
+ */
+public class FileDownload {
+    private final File_info offer;
+    private final Path partPath;
+    private final Path targetPath;
+    private final FileChannel channel;
+    private final ChunkBitmap received;
+    private boolean finishing; // 已经开始校验，不再写入数据块
+
+    /**
+     * @param offer 服务器转发的OFFER
+     * @param directory 下载目录
+     * @throws IOException 如果无法创建临时文件
+     */
+    public FileDownload(File_info offer, Path directory) throws IOException {
+        this.offer = offer;
+        Files.createDirectories(directory);
+        String baseName = offer.getFileId().replaceAll("[^A-Za-z0-9-]", "_");
+        this.partPath = directory.resolve(baseName + ".part");
+        this.targetPath = directory.resolve(baseName + "_" + safeName(offer.getFileName()));
+        this.channel = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            this.received = ChunkBitmap.open(directory.resolve(baseName + ".bitmap"), offer);
+            if (!received.isResumed()) {
+                channel.truncate(0);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static String safeName(String fileName) {
+        return fileName == null ? "file" : fileName.replaceAll("[\\\\/:*?\"<>|]", "_");
+    }
+
+    public File_info getOffer() {
+        return offer;
+    }
+
+    /**
+     * @return 已收到块的位图，放在ACCEPT中
+     */
+    public synchronized byte[] getChunkBitmap() {
+        return received.toByteArray();
+    }
+
+    /**
+     * 写入一个数据块
+     * @param chunk 数据块
+     * @return 是否已收到全部数据块，此时调用方应调用 finish
+     * @throws IOException 如果数据块无效或写入失败
+     */
+    public synchronized boolean receive(File_info chunk) throws IOException {
+        if (finishing) {
+            return false; // 校验期间重复收到的块
+        }
+        if (!FileChunks.isValidChunk(offer, chunk)) {
+            throw new IOException("数据块无效: " + chunk.getChunkIndex());
+        }
+        FileChunks.writeChunk(channel, offer, chunk);
+        received.set(chunk.getChunkIndex());
+        return received.isComplete();
+    }
+
+    /**
+     * @return 是否已收到全部数据块，上次在校验前中断的下载在重新收到OFFER时可以直接完成
+     */
+    public synchronized boolean isComplete() {
+        return received.isComplete();
+    }
+
+    /**
+     * 校验并改名，整个文件的校验需要读完文件，应在后台线程中调用
+     * @return 下载好的文件；已经有其他线程在完成这个下载时返回null
+     * @throws IOException 如果校验和不一致或改名失败
+     */
+    public Path finish() throws IOException {
+        synchronized (this) {
+            if (finishing) {
+                return null;
+            }
+            finishing = true;
+            channel.close();
+        }
+        if (!offer.getChecksum().equalsIgnoreCase(FileChunks.sha256(partPath))) {
+            abort();
+            throw new IOException("校验和不一致");
+        }
+        received.delete();
+        return Files.move(partPath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * 放弃下载并删除临时文件和位图
+     */
+    public synchronized void abort() {
+        try {
+            channel.close();
+            received.delete();
+            Files.deleteIfExists(partPath);
+        } catch (IOException e) {
+            System.err.println("删除未完成的下载失败: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package client.transfer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 对磁盘上一段文件数据的引用
+ * 客户端只记录已发送文件的路径、偏移和长度，需要时再从磁盘读取，不在内存中保留文件内容；
+ * 同时记录文件的修改时间，文件在发送后被修改或删除时引用失效
+ */
+public final class FileRef {
+    private final Path path;
+    private final long offset;
+    private final long length;
+    private final long lastModified;
+
+    public FileRef(Path path, long offset, long length, long lastModified) {
+        this.path = path;
+        this.offset = offset;
+        this.length = length;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * 引用整个文件
+     * @param file 文件
+     * @return 文件引用
+     */
+    public static FileRef of(File file) {
+        return new FileRef(file.toPath(), 0, file.length(), file.lastModified());
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return 引用的数据是否仍然可读并且没有被修改
+     */
+    public boolean isValid() {
+        File file = path.toFile();
+        return file.isFile() && file.canRead() && file.lastModified() == lastModified && file.length() >= offset + length;
+    }
+
+    /**
+     * 打开文件用于读取，调用方负责关闭
+     * @return 文件通道
+     * @throws IOException 如果文件已失效或无法打开
+     */
+    public FileChannel open() throws IOException {
+        if (!isValid()) {
+            throw new IOException("文件已被修改或删除: " + path);
+        }
+        return FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    /**
+     * 读入全部数据，只用于图片预览等较小的文件
+     * @return 数据
+     * @throws IOException 如果读取失败
+     */
+    public byte[] read() throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("文件过大，无法读入内存: " + path);
+        }
+        try (FileChannel channel = open()) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException("文件被截断: " + path);
+                }
+            }
+            return buffer.array();
+        }
+    }
+
+    /**
+     * 把引用的数据复制到另一个文件，直接在通道之间传输，不经过Java堆
+     * @param target 目标文件
+     * @throws IOException 如果复制失败
+     */
+    public void copyTo(Path target) throws IOException {
+        if (offset == 0 && length == Files.size(path) && isValid()) {
+            Files.copy(path, target, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        try (FileChannel in = open();
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                long n = in.transferTo(position, end - position, out);
+                if (n <= 0) {
+                    throw new EOFException("文件被截断: " + path);
+                }
+                position += n;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return path + "@" + offset + "+" + length;
+    }
+}
@@ -0,0 +1,132 @@
+package client.transfer;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 上传文件的读取
+ * 较小的文件按偏移直接读取；超过阈值的文件按段映射到内存，数据块从映射区复制，计算校验和时直接使用映射区，
+ * 堆中只保留当前的数据块，映射区由操作系统按需换入换出
+ */
+class FileSource implements Closeable {
+    // 使用内存映射的最小文件大小，可以用 -Dchat.client.mmap.threshold 调整，0表示总是映射
+    private static final long MAP_THRESHOLD = Long.getLong("chat.client.mmap.threshold", 16L * 1024 * 1024);
+    // 每次映射的段大小
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final FileRef ref;
+    private final FileChannel channel;
+    private final boolean mapped;
+    private MappedByteBuffer segment;
+    private long segmentStart = -1;
+
+    /**
+     * @param ref 要读取的文件数据
+     * @throws IOException 如果文件已失效或无法打开
+     */
+    FileSource(FileRef ref) throws IOException {
+        this.ref = ref;
+        this.channel = ref.open();
+        this.mapped = ref.getLength() >= MAP_THRESHOLD;
+    }
+
+    /**
+     * 读取一段数据
+     * @param position 相对于引用起点的偏移
+     * @param length 长度，不超过一个段
+     * @return 数据
+     * @throws IOException 如果读取失败或文件被截断
+     */
+    byte[] read(long position, int length) throws IOException {
+        byte[] data = new byte[length];
+        if (mapped) {
+            int copied = 0;
+            while (copied < length) {
+                ByteBuffer view = map(position + copied);
+                int n = Math.min(length - copied, view.remaining());
+                view.get(data, copied, n);
+                copied += n;
+            }
+            return data;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, ref.getOffset() + position + buffer.position()) < 0) {
+                throw new EOFException("文件在传输过程中被截断");
+            }
+        }
+        return data;
+    }
+
+    /**
+     * 计算整个文件的SHA-256
+     * @return 十六进制的摘要
+     * @throws IOException 如果读取失败
+     */
+    String sha256() throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        long length = ref.getLength();
+        if (mapped) {
+            for (long position = 0; position < length; ) {
+                ByteBuffer view = map(position);
+                int n = (int) Math.min(view.remaining(), length - position);
+                view.limit(view.position() + n);
+                digest.update(view);
+                position += n;
+            }
+        } else {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            for (long position = 0; position < length; ) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), length - position));
+                int n = channel.read(buffer, ref.getOffset() + position);
+                if (n < 0) {
+                    throw new EOFException("文件在计算校验和时被截断");
+                }
+                buffer.flip();
+                digest.update(buffer);
+                position += n;
+            }
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * 返回从指定位置开始的映射区视图，需要时映射新的段
+     */
+    private ByteBuffer map(long position) throws IOException {
+        long start = position - position % SEGMENT_SIZE;
+        if (segment == null || start != segmentStart) {
+            long size = Math.min(SEGMENT_SIZE, ref.getLength() - start);
+            if (size <= 0) {
+                throw new EOFException("读取位置超出文件范围");
+            }
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, ref.getOffset() + start, size);
+            segmentStart = start;
+        }
+        ByteBuffer view = segment.duplicate();
+        view.position((int) (position - start));
+        return view;
+    }
+
+    @Override
+    public void close() throws IOException {
+        segment = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,123 @@
+package client.transfer;
+
+import client.MessageSender;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 客户端的分块传输登记表
+ * 记录进行中的上传和下载，以及已发送和已接收文件在本地磁盘上的位置，供之后保存和预览使用；
+ * 连接中断时进行中的传输保留在这里，重新登录后续传；
+ * 按需拉取的群文件记录用户选择的保存位置，下载完成后复制过去
+ */
+public final class FileTransfers {
+    // 下载目录，可以用 -Dchat.client.downloads 调整
+    public static final Path DOWNLOAD_DIR = Paths.get(System.getProperty("chat.client.downloads", "file_downloads"));
+
+    private static final Map<String, FileUpload> uploads = new ConcurrentHashMap<>();
+    private static final Map<String, FileDownload> downloads = new ConcurrentHashMap<>();
+    // 已发送文件在磁盘上的位置，只保留引用，不保留文件内容
+    private static final Map<String, FileRef> sentFiles = new ConcurrentHashMap<>();
+    // 已下载完成的文件
+    private static final Map<String, Path> receivedFiles = new ConcurrentHashMap<>();
+    // 正在拉取的群文件的保存位置
+    private static final Map<String, File> pullTargets = new ConcurrentHashMap<>();
+    // 校验下载完成的文件，不占用接收消息的线程
+    private static final ExecutorService verifier = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "file-verify");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private FileTransfers() {
+    }
+
+    /**
+     * 登记并启动一个上传，上传的文件之后保存时从原位置复制
+     * @param upload 上传任务
+     */
+    public static void startUpload(FileUpload upload) {
+        sentFiles.put(upload.getFileId(), upload.getFile());
+        uploads.put(upload.getFileId(), upload);
+        upload.start();
+    }
+
+    public static FileUpload getUpload(String fileId) {
+        return fileId == null ? null : uploads.get(fileId);
+    }
+
+    static void removeUpload(String fileId) {
+        uploads.remove(fileId);
+    }
+
+    /**
+     * 重新登录后继续所有未完成的上传
+     * @param sender 新连接的消息发送器
+     */
+    public static void resumeUploads(MessageSender sender) {
+        for (FileUpload upload : uploads.values()) {
+            upload.resume(sender);
+        }
+    }
+
+    /**
+     * 在后台线程中执行下载完成后的校验
+     * @param task 校验任务
+     */
+    public static void verifyInBackground(Runnable task) {
+        verifier.execute(task);
+    }
+
+    public static void addDownload(String fileId, FileDownload download) {
+        downloads.put(fileId, download);
+    }
+
+    public static FileDownload getDownload(String fileId) {
+        return fileId == null ? null : downloads.get(fileId);
+    }
+
+    public static FileDownload removeDownload(String fileId) {
+        return fileId == null ? null : downloads.remove(fileId);
+    }
+
+    /**
+     * 记录一个正在拉取的群文件
+     * @param fileId 文件ID
+     * @param target 下载完成后保存的位置
+     * @return 是否是新的拉取，同一文件已经在拉取时返回false
+     */
+    public static boolean addPull(String fileId, File target) {
+        return pullTargets.putIfAbsent(fileId, target) == null;
+    }
+
+    /**
+     * @return 拉取结束时取出保存位置，不是拉取的文件返回null
+     */
+    public static File removePull(String fileId) {
+        return fileId == null ? null : pullTargets.remove(fileId);
+    }
+
+    public static void addReceivedFile(String fileId, Path path) {
+        receivedFiles.put(fileId, path);
+    }
+
+    /**
+     * @return 已发送文件的引用，没有记录时返回null
+     */
+    public static FileRef getSentFile(String fileId) {
+        return fileId == null ? null : sentFiles.get(fileId);
+    }
+
+    /**
+     * @return 已下载完成的文件，没有记录时返回null
+     */
+    public static Path getReceivedFile(String fileId) {
+        return fileId == null ? null : receivedFiles.get(fileId);
+    }
+}
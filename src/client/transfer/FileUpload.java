@@ -0,0 +1,204 @@
+package client.transfer;
+
+import client.MessageSender;
+import info.File_info;
+import info.File_info.TransferStage;
+import io.ChunkBitmap;
+import io.FileChunks;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个文件的分块上传
+ * 在独立线程中计算校验和并发送OFFER，服务器接受后从磁盘逐块读取发送（大文件使用内存映射），
+ * 已发送未确认的块数不超过窗口大小，内存占用与文件大小无关。
+ * 连接中断时上传线程等待重新登录，之后重新发送OFFER，按服务器返回的位图只补传缺少的块；
+ * OFFER中带有校验和，服务器已有相同内容的文件时直接回复COMPLETE，不需要上传数据块
+ */
+public class FileUpload implements Runnable {
+    // 等待服务器接受、确认数据块和最终确认的超时时间
+    private static final long RESPONSE_TIMEOUT_SECONDS = 60;
+
+    /**
+     * 一次发送尝试的状态，重新连接后换成新的一次
+     */
+    private static final class Attempt {
+        final Semaphore window = new Semaphore(FileChunks.WINDOW);
+        final CountDownLatch accepted = new CountDownLatch(1);
+        final CountDownLatch completed = new CountDownLatch(1);
+        volatile byte[] received;      // 服务器已有的块
+        volatile boolean cancelled;    // 服务器拒绝或取消了传输
+        volatile boolean superseded;   // 连接已重建，本次尝试作废
+
+        void wake() {
+            accepted.countDown();
+            completed.countDown();
+            window.release(FileChunks.WINDOW);
+        }
+    }
+
+    private final FileRef file;
+    private final File_info offer;
+    private final Semaphore resumeSignal = new Semaphore(0);
+    private volatile MessageSender sender;
+    private volatile Attempt attempt;
+
+    /**
+     * @param sender 消息发送器
+     * @param file 要上传的文件数据
+     * @param offer 文件信息，分块参数和校验和由上传线程填写
+     */
+    public FileUpload(MessageSender sender, FileRef file, File_info offer) {
+        this.sender = sender;
+        this.file = file;
+        this.offer = offer;
+    }
+
+    public String getFileId() {
+        return offer.getFileId();
+    }
+
+    public FileRef getFile() {
+        return file;
+    }
+
+    /**
+     * 启动上传线程
+     */
+    public void start() {
+        Thread thread = new Thread(this, "file-upload-" + offer.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 重新登录后继续上传
+     * @param sender 新连接的消息发送器
+     */
+    public void resume(MessageSender sender) {
+        this.sender = sender;
+        Attempt current = attempt;
+        if (current != null) {
+            current.superseded = true;
+            current.wake();
+        }
+        resumeSignal.release();
+    }
+
+    @Override
+    public void run() {
+        try (FileSource source = new FileSource(file)) {
+            offer.setChunkSize(FileChunks.CHUNK_SIZE);
+            offer.setChunkCount(FileChunks.chunkCount(offer.getFileSize(), offer.getChunkSize()));
+            offer.setChecksum(source.sha256());
+            offer.setStage(TransferStage.OFFER);
+            while (true) {
+                Attempt current = new Attempt();
+                attempt = current;
+                try {
+                    send(current, source);
+                    System.out.println("文件上传完成: " + offer.getFileName());
+                    return;
+                } catch (IOException e) {
+                    if (current.cancelled) {
+                        System.err.println("上传文件 " + offer.getFileName() + " 被服务器取消");
+                        return;
+                    }
+                    System.err.println("上传文件 " + offer.getFileName() + " 中断: " + e.getMessage() + "，重新登录后继续");
+                }
+                resumeSignal.acquire();
+                resumeSignal.drainPermits();
+            }
+        } catch (IOException e) {
+            System.err.println("上传文件 " + offer.getFileName() + " 失败: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            FileTransfers.removeUpload(offer.getFileId());
+        }
+    }
+
+    /**
+     * 发送OFFER和服务器还没有的数据块，等待服务器校验完成
+     * @throws IOException 如果连接中断、超时或传输被取消
+     */
+    private void send(Attempt current, FileSource source) throws IOException, InterruptedException {
+        if (!sender.sendFileTransferMessage(FileChunks.wrap(offer))) {
+            throw new IOException("发送文件信息失败");
+        }
+        await(current, current.accepted.await(RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS), "服务器未接受文件");
+        if (current.completed.getCount() == 0) {
+            return; // 服务器已有相同内容的文件
+        }
+        byte[] received = current.received;
+        int last = offer.getChunkCount() - 1;
+        for (int i = 0; i <= last; i++) {
+            // 服务器已有全部数据块时仍然重发最后一块，触发服务器校验
+            if (ChunkBitmap.isSet(received, i) && !(i == last && isComplete(received))) {
+                continue;
+            }
+            await(current, current.window.tryAcquire(RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS), "等待确认超时");
+            byte[] data = source.read((long) i * offer.getChunkSize(),
+                    FileChunks.chunkLength(offer.getFileSize(), offer.getChunkSize(), i));
+            if (!sender.sendFileTransferMessage(FileChunks.message(offer.getFileId(), offer.getFileName(),
+                    TransferStage.CHUNK, i, data))) {
+                throw new IOException("发送数据块失败");
+            }
+        }
+        await(current, current.completed.await(RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS), "服务器未确认文件");
+    }
+
+    private boolean isComplete(byte[] received) {
+        for (int i = 0; i < offer.getChunkCount(); i++) {
+            if (!ChunkBitmap.isSet(received, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void await(Attempt current, boolean signalled, String timeoutMessage) throws IOException {
+        if (current.cancelled) {
+            throw new IOException("传输已取消");
+        }
+        if (current.superseded) {
+            throw new IOException("连接已重建");
+        }
+        if (!signalled) {
+            throw new IOException(timeoutMessage);
+        }
+    }
+
+    /**
+     * 处理服务器对本次上传的回复
+     * @param reply ACCEPT、ACK、COMPLETE 或 CANCEL
+     */
+    public void onReply(File_info reply) {
+        Attempt current = attempt;
+        if (current == null) {
+            return;
+        }
+        switch (reply.getStage()) {
+            case ACCEPT:
+                current.received = reply.getChunkBitmap();
+                current.accepted.countDown();
+                break;
+            case ACK:
+                current.window.release();
+                break;
+            case COMPLETE:
+                current.completed.countDown();
+                current.accepted.countDown();
+                break;
+            case CANCEL:
+                current.cancelled = true;
+                current.wake();
+                break;
+            default:
+                break;
+        }
+    }
+}
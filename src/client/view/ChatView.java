@@ -33,6 +33,7 @@ import javax.swing.UIManager;
 import javax.swing.border.EmptyBorder;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
+import javax.swing.text.Position;
 import javax.swing.text.DefaultStyledDocument;
 import javax.swing.text.Style;
 import javax.swing.text.StyleConstants;
@@ -84,6 +85,16 @@ public class ChatView extends JFrame implements ModelObserver {
     private final Pattern FILE_DOWNLOAD_PATTERN = Pattern.compile("\\[点击此处下载文件: ([0-9a-f-]+)\\]");
     // 图片标识符的正则表达式
     private final Pattern IMAGE_PATTERN = Pattern.compile("\\[图片ID:([0-9a-f-]+)\\]");
+    // 缩略图生成完成前显示的占位文本
+    private static final String IMAGE_PLACEHOLDER = "[图片加载中...]";
+    // 每页加载的历史记录条数，可以用 -Dchat.client.history.page 调整
+    private static final int HISTORY_PAGE = Math.max(1, Integer.getInteger("chat.client.history.page", 200));
+    // 还有更早的历史记录时显示在最上面
+    private static final String LOAD_MORE_HINT = "[点击加载更早的消息]";
+    // 已显示的最早一条历史记录的序号，只在事件分发线程中访问
+    private long historyCursor;
+    private boolean loadingHistory;
+    private final transient Set<String> shownHistory = new HashSet<>();
 
     /**
      * 构造函数 - 用于单独的聊天窗口
@@ -252,6 +263,12 @@ public class ChatView extends JFrame implements ModelObserver {
             
             String line = text.substring(lineStart, lineEnd);
             
+            // 检查是否点击了加载更早消息的提示
+            if (lineStart == 0 && line.equals(LOAD_MORE_HINT)) {
+                loadEarlierHistory();
+                return;
+            }
+            
             // 检查是否点击了文件下载链接
             Matcher fileMatcher = FILE_DOWNLOAD_PATTERN.matcher(line);
             if (fileMatcher.find()) {
@@ -276,7 +293,14 @@ public class ChatView extends JFrame implements ModelObserver {
      * @param imageId 图片ID
      */
     private void displayImage(String imageId) {
-        ImageIcon image = FileMessageHandler.getImage(imageId);
+        FileMessageHandler.loadImage(imageId, this::showImageFrame);
+    }
+    
+    /**
+     * 在新窗口中显示图片
+     * @param image 图片，为null时提示无法加载
+     */
+    private void showImageFrame(ImageIcon image) {
         if (image != null) {
             // 创建一个新窗口显示原始大小的图片
             JFrame imageFrame = new JFrame("图片查看");
@@ -416,9 +440,10 @@ public class ChatView extends JFrame implements ModelObserver {
     }
 
     /**
-     * 加载历史聊天记录
+     * 构造查询当前会话历史记录的条件
+     * @return 查询条件，群组ID格式错误时返回null
      */
-    private void loadChatHistory() {
+    private Chat_info historyQuery() {
         Chat_info chatInfo = new Chat_info();
         chatInfo.setType(isGroupChat);
         
@@ -428,12 +453,57 @@ public class ChatView extends JFrame implements ModelObserver {
                 chatInfo.setGroup_id(groupId);
             } catch (NumberFormatException e) {
                 showError("群组ID格式错误");
-                return;
+                return null;
             }
         } else {
             chatInfo.setFrom_username(controller.getCurrentUsername());
             chatInfo.setTo_username(targetId);
         }
+        return chatInfo;
+    }
+
+    /**
+     * 把一页历史记录格式化为显示的文本，已经显示过的消息跳过
+     */
+    private String formatHistory(List<String> records) {
+        StringBuilder builder = new StringBuilder();
+        for (String line : records) {
+            // 解析保存的消息格式: 时间戳|发送者|消息内容
+            String[] parts = line.split("\\|", 3);
+            if (parts.length >= 3) {
+                String timestamp = parts[0];
+                String sender = parts[1];
+                String text = parts[2];
+                
+                // 如果时间戳只包含时分秒，添加当前日期；格式不符合预期时保持原样
+                if (timestamp.matches("\\d{2}:\\d{2}:\\d{2}")) {
+                    LocalDateTime now = LocalDateTime.now();
+                    timestamp = now.format(DateTimeFormatter.ofPattern("yyyy-MM-dd")) + " " + timestamp;
+                }
+                
+                // 构建格式化的消息
+                String formattedMessage = "[" + timestamp + "] " + sender + ": " + text;
+                
+                // 使用Set去重，避免重复显示相同的消息
+                if (shownHistory.add(formattedMessage)) {
+                    builder.append(formattedMessage).append("\n");
+                }
+            } else {
+                // 如果格式不正确，直接显示原始行
+                builder.append(line).append("\n");
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 加载历史聊天记录，只加载最新的一页
+     */
+    private void loadChatHistory() {
+        Chat_info chatInfo = historyQuery();
+        if (chatInfo == null) {
+            return;
+        }
         
         // 显示加载提示
         try {
@@ -446,49 +516,20 @@ public class ChatView extends JFrame implements ModelObserver {
         // 获取未读消息
         List<Chat_info> unreadMessages = model.getUnreadMessages(isGroupChat, targetId);
         
-        controller.loadChatHistory(chatInfo, history -> {
+        controller.loadChatHistory(chatInfo, Long.MAX_VALUE, HISTORY_PAGE, page -> {
             SwingUtilities.invokeLater(() -> {
                 try {
                     document.remove(0, document.getLength());
+                    shownHistory.clear();
+                    historyCursor = page.getCursor();
                     
-                    // 使用Set去重，避免重复显示相同的消息
-                    Set<String> uniqueMessages = new HashSet<>();
+                    // 还有更早的消息时在最上面显示提示，点击后加载上一页
+                    if (page.hasMore()) {
+                        document.insertString(0, LOAD_MORE_HINT + "\n", defaultStyle);
+                    }
                     
                     // 显示历史消息
-                    if (history != null && !history.isEmpty()) {
-                        for (String line : history) {
-                            // 解析保存的消息格式: 时间戳|发送者|消息内容
-                            String[] parts = line.split("\\|", 3);
-                            if (parts.length >= 3) {
-                                String timestamp = parts[0];
-                                String sender = parts[1];
-                                String text = parts[2];
-                                
-                                // 尝试解析并格式化时间戳
-                                try {
-                                    // 如果时间戳只包含时分秒，添加当前日期
-                                    if (timestamp.matches("\\d{2}:\\d{2}:\\d{2}")) {
-                                        LocalDateTime now = LocalDateTime.now();
-                                        timestamp = now.format(DateTimeFormatter.ofPattern("yyyy-MM-dd")) + " " + timestamp;
-                                    }
-                                    // 如果时间戳格式不符合预期，保持原样
-                                } catch (Exception e) {
-                                    // 保持原始时间戳
-                                }
-                                
-                                // 构建格式化的消息
-                                String formattedMessage = "[" + timestamp + "] " + sender + ": " + text;
-                                
-                                // 如果是新消息，则添加到显示中
-                                if (uniqueMessages.add(formattedMessage)) {
-                                    document.insertString(document.getLength(), formattedMessage + "\n", defaultStyle);
-                                }
-                            } else {
-                                // 如果格式不正确，直接显示原始行
-                                document.insertString(document.getLength(), line + "\n", defaultStyle);
-                            }
-                        }
-                    }
+                    document.insertString(document.getLength(), formatHistory(page.getRecords()), defaultStyle);
                     
                     // 显示未读消息，如果有的话
                     if (!unreadMessages.isEmpty()) {
@@ -520,6 +561,41 @@ public class ChatView extends JFrame implements ModelObserver {
         });
     }
 
+    /**
+     * 加载已显示的最早一条消息之前的一页历史记录，插入到最上面
+     */
+    private void loadEarlierHistory() {
+        Chat_info chatInfo = historyQuery();
+        if (chatInfo == null || loadingHistory) {
+            return;
+        }
+        loadingHistory = true;
+        
+        controller.loadChatHistory(chatInfo, historyCursor, HISTORY_PAGE, page -> {
+            SwingUtilities.invokeLater(() -> {
+                loadingHistory = false;
+                try {
+                    // 去掉原来的提示，插入这一页，还有更早的消息时重新显示提示
+                    String hint = LOAD_MORE_HINT + "\n";
+                    if (document.getLength() >= hint.length() && document.getText(0, hint.length()).equals(hint)) {
+                        document.remove(0, hint.length());
+                    }
+                    String earlier = formatHistory(page.getRecords());
+                    if (page.hasMore()) {
+                        earlier = hint + earlier;
+                    }
+                    document.insertString(0, earlier, defaultStyle);
+                    historyCursor = page.getCursor();
+                    
+                    // 停留在原来最早的消息处
+                    messageDisplay.setCaretPosition(Math.min(earlier.length(), document.getLength()));
+                } catch (BadLocationException e) {
+                    System.err.println("加载更早的历史记录时出错: " + e.getMessage());
+                }
+            });
+        });
+    }
+
     /**
      * 显示消息
     */
@@ -639,6 +715,32 @@ public class ChatView extends JFrame implements ModelObserver {
         return targetId;
     }
 
+    /**
+     * 用缩略图替换占位文本，在UI线程中调用
+     * @param position 占位文本的位置，随前面插入的内容移动
+     * @param image 缩略图，为null时显示文本
+     */
+    private void insertImage(Position position, ImageIcon image) {
+        try {
+            int offset = position.getOffset();
+            if (offset + IMAGE_PLACEHOLDER.length() > document.getLength()
+                    || !IMAGE_PLACEHOLDER.equals(document.getText(offset, IMAGE_PLACEHOLDER.length()))) {
+                return;
+            }
+            document.remove(offset, IMAGE_PLACEHOLDER.length());
+            if (image != null) {
+                StyleConstants.setIcon(imageStyle, image);
+                document.insertString(offset, " ", imageStyle);
+                document.insertString(offset + 1, "\n点击图片查看原图", defaultStyle);
+            } else {
+                // 如果图片加载失败，显示文本
+                document.insertString(offset, "[图片]", defaultStyle);
+            }
+        } catch (BadLocationException e) {
+            System.err.println("显示图片时出错: " + e.getMessage());
+        }
+    }
+
     /**
      * 添加消息到聊天窗口
      * @param message 消息文本
@@ -657,16 +759,11 @@ public class ChatView extends JFrame implements ModelObserver {
                 // 添加消息前半部分
                 document.insertString(document.getLength(), message.substring(0, start), defaultStyle);
                 
-                // 获取并添加图片
-                ImageIcon image = FileMessageHandler.getImage(imageId);
-                if (image != null) {
-                    StyleConstants.setIcon(imageStyle, image);
-                    document.insertString(document.getLength(), " ", imageStyle);
-                    document.insertString(document.getLength(), "\n点击图片查看原图", defaultStyle);
-                } else {
-                    // 如果图片加载失败，显示文本
-                    document.insertString(document.getLength(), "[图片]", defaultStyle);
-                }
+                // 先插入占位文本，缩略图在后台生成完成后替换
+                int offset = document.getLength();
+                document.insertString(offset, IMAGE_PLACEHOLDER, defaultStyle);
+                Position position = document.createPosition(offset);
+                FileMessageHandler.loadImage(imageId, image -> insertImage(position, image));
                 
                 // 添加消息后半部分（如果有）
                 if (end < message.length()) {
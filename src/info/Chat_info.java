@@ -19,6 +19,7 @@ public class Chat_info implements Serializable {
     private String to_username;//给到那些用户，需要包含from_username
     private int group_id;//当前群聊的ID
     private boolean transfer_status;
+    private boolean rejected;//服务端因发送过快拒绝了这条消息，此时transfer_status为false
     
     public Chat_info() {
     }
@@ -61,6 +62,14 @@ public class Chat_info implements Serializable {
         this.transfer_status = transfer_status;
     }
     
+    public boolean isRejected() {
+        return rejected;
+    }
+    
+    public void setRejected(boolean rejected) {
+        this.rejected = rejected;
+    }
+    
     public int getGroup_id() {
         return group_id;
     }
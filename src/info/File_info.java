@@ -20,6 +20,27 @@ public class File_info implements Serializable {
     private boolean infoOnly = false; // 是否只包含文件信息，不包含文件数据
     private boolean isImage = false;  // 是否为图片文件
     private String mimeType;          // 文件MIME类型
+    // 分块传输，stage为null时表示整个文件放在fileData中一次发送
+    private TransferStage stage;      // 分块传输所处的阶段
+    private int chunkIndex;           // 数据块序号（CHUNK和ACK使用）
+    private int chunkCount;           // 数据块总数
+    private int chunkSize;            // 每块的字节数，最后一块可能较短
+    private String checksum;          // 整个文件的SHA-256（十六进制），接收方用于校验
+    private byte[] chunkBitmap;       // 接收方已收到的块（ACCEPT使用），续传时发送方跳过这些块
+
+    /**
+     * 分块传输的阶段
+     */
+    public enum TransferStage {
+        OFFER,    // 发送方提供文件，携带文件信息、分块参数和校验和
+        ACCEPT,   // 接收方接受文件并带上已收到块的位图，发送方开始发送缺少的数据块
+        CHUNK,    // 一个数据块，fileData为块内容
+        ACK,      // 接收方确认收到一个数据块
+        COMPLETE, // 所有数据块已收到并通过校验
+        CANCEL,   // 取消传输（接收方不在线、校验失败或连接断开）
+        ANNOUNCE, // 服务器只通知群文件的信息，不发送数据
+        REQUEST   // 群成员请求下载已通知的文件，服务器随后发送OFFER
+    }
     
     /**
      * 检查文件是否为图片
@@ -172,4 +193,52 @@ public class File_info implements Serializable {
     public void setInfoOnly(boolean infoOnly) {
         this.infoOnly = infoOnly;
     }
+
+    public TransferStage getStage() {
+        return stage;
+    }
+
+    public void setStage(TransferStage stage) {
+        this.stage = stage;
+    }
+
+    public int getChunkIndex() {
+        return chunkIndex;
+    }
+
+    public void setChunkIndex(int chunkIndex) {
+        this.chunkIndex = chunkIndex;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public void setChunkCount(int chunkCount) {
+        this.chunkCount = chunkCount;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public void setChecksum(String checksum) {
+        this.checksum = checksum;
+    }
+
+    public byte[] getChunkBitmap() {
+        return chunkBitmap;
+    }
+
+    public void setChunkBitmap(byte[] chunkBitmap) {
+        this.chunkBitmap = chunkBitmap;
+    }
 } 
\ No newline at end of file
@@ -27,6 +27,10 @@ public class Login_info implements Serializable{//每次登录成功之后或者
     private ArrayList<String> allUsers;
     //登录成功标志
     private Boolean loginSuccessFlag = false;
+    //请求时表示客户端支持压缩，回执中表示服务端同意对大帧压缩
+    private boolean compression = false;
+    //请求时表示客户端支持分块收发文件，旧客户端没有这个字段，反序列化为false
+    private boolean chunkedTransfer = false;
 
     public void setKicked(boolean kicked) {
         Kicked = kicked;
@@ -119,4 +123,36 @@ public class Login_info implements Serializable{//每次登录成功之后或者
     public Map<Integer, String> getGroupNameMap() {
         return groupNameMap;
     }
+
+    /**
+     * 设置是否对大帧压缩
+     * @param compression 请求时表示客户端支持压缩，回执中表示服务端同意压缩
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * 获取是否对大帧压缩
+     * @return 是否压缩
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * 设置客户端是否支持分块收发文件
+     * @param chunkedTransfer 是否支持分块传输
+     */
+    public void setChunkedTransfer(boolean chunkedTransfer) {
+        this.chunkedTransfer = chunkedTransfer;
+    }
+
+    /**
+     * 获取客户端是否支持分块收发文件
+     * @return 是否支持分块传输
+     */
+    public boolean isChunkedTransfer() {
+        return chunkedTransfer;
+    }
 }
@@ -0,0 +1,159 @@
+package io;
+
+import info.File_info;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 持久化的已收到数据块位图，用于断点续传
+ * 与临时文件放在一起，文件头记录分块参数和校验和，之后每个字节记录8个块；
+ * 每收到一块只改写对应的一个字节，重新连接后接收方把位图发给发送方，只重传缺少的块
+ */
+public class ChunkBitmap implements AutoCloseable {
+    private static final int MAGIC = 0x43424D31; // "CBM1"
+
+    private final Path path;
+    private final FileChannel channel;
+    private final byte[] bits;
+    private final int chunkCount;
+    private final int headerLength;
+    private int cardinality;
+
+    private ChunkBitmap(Path path, FileChannel channel, byte[] bits, int chunkCount, int headerLength) {
+        this.path = path;
+        this.channel = channel;
+        this.bits = bits;
+        this.chunkCount = chunkCount;
+        this.headerLength = headerLength;
+        for (int i = 0; i < chunkCount; i++) {
+            if (get(i)) {
+                cardinality++;
+            }
+        }
+    }
+
+    /**
+     * 打开位图文件，文件不存在或分块参数、校验和与OFFER不一致时重新创建
+     * @param path 位图文件路径
+     * @param offer 文件信息
+     * @return 位图
+     * @throws IOException 如果读写失败
+     */
+    public static ChunkBitmap open(Path path, File_info offer) throws IOException {
+        byte[] header = header(offer);
+        byte[] bits = new byte[(offer.getChunkCount() + 7) / 8];
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == header.length + bits.length && Arrays.equals(read(channel, 0, header.length), header)) {
+                System.arraycopy(read(channel, header.length, bits.length), 0, bits, 0, bits.length);
+            } else {
+                channel.truncate(0);
+                channel.write(ByteBuffer.wrap(header), 0);
+                channel.write(ByteBuffer.wrap(bits), header.length);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new ChunkBitmap(path, channel, bits, offer.getChunkCount(), header.length);
+    }
+
+    private static byte[] header(File_info offer) {
+        byte[] checksum = offer.getChecksum().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(4 + 4 + 4 + 8 + 2 + checksum.length);
+        header.putInt(MAGIC).putInt(offer.getChunkCount()).putInt(offer.getChunkSize()).putLong(offer.getFileSize());
+        header.putShort((short) checksum.length).put(checksum);
+        return header.array();
+    }
+
+    private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @return 是否已有收到的块，即本次是否为续传
+     */
+    public boolean isResumed() {
+        return cardinality > 0;
+    }
+
+    public boolean get(int index) {
+        return (bits[index >>> 3] & (1 << (index & 7))) != 0;
+    }
+
+    /**
+     * 标记一个块已收到并写入位图文件
+     * @param index 块序号
+     * @throws IOException 如果写入失败
+     */
+    public void set(int index) throws IOException {
+        if (get(index)) {
+            return;
+        }
+        bits[index >>> 3] = (byte) (bits[index >>> 3] | (1 << (index & 7)));
+        cardinality++;
+        channel.write(ByteBuffer.wrap(bits, index >>> 3, 1), headerLength + (index >>> 3));
+    }
+
+    /**
+     * @return 是否所有块都已收到
+     */
+    public boolean isComplete() {
+        return cardinality >= chunkCount;
+    }
+
+    public int cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * @return 位图内容，放在ACCEPT中发给发送方
+     */
+    public byte[] toByteArray() {
+        return bits.clone();
+    }
+
+    /**
+     * 检查对方位图中某一块是否已收到
+     * @param bitmap ACCEPT中的位图，可以为null
+     * @param index 块序号
+     * @return 是否已收到
+     */
+    public static boolean isSet(byte[] bitmap, int index) {
+        return bitmap != null && (index >>> 3) < bitmap.length && (bitmap[index >>> 3] & (1 << (index & 7))) != 0;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("关闭位图文件失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 关闭并删除位图文件，传输完成或放弃时调用
+     */
+    public void delete() {
+        close();
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.err.println("删除位图文件失败: " + e.getMessage());
+        }
+    }
+}
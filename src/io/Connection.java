@@ -0,0 +1,648 @@
+package io;
+
+import info.encap_info;
+import io.codec.WireCodec;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 一条Socket连接上的持久消息流的写出部分
+ * 支持两种线路格式：Java序列化（与旧版本相同，每条消息一个对象流）和 WireCodec 二进制帧。
+ * 客户端连接后先发送 WireCodec.MAGIC 请求二进制格式，服务端在第一次读取时识别：
+ * 收到握手标识则回送并切换到二进制帧，收到Java序列化流头则按旧客户端处理。
+ * 阻塞读取由 SocketConnection 提供，NIO连接的读取由事件循环驱动
+ */
+public class Connection {
+    /**
+     * 线路格式
+     */
+    public enum Protocol {
+        SERIAL, // Java序列化
+        BINARY  // WireCodec 二进制帧
+    }
+
+    // 缓冲区大小
+    private static final int BUFFER_SIZE = 8192;
+    // 客户端使用的线路格式，连接旧服务端时可以用 -Dchat.wire.codec=serial 退回Java序列化
+    private static final Protocol CLIENT_PROTOCOL =
+            "serial".equalsIgnoreCase(System.getProperty("chat.wire.codec")) ? Protocol.SERIAL : Protocol.BINARY;
+
+    // 不支持虚拟线程时写线程池的大小，可以用 -Dchat.server.writers 调整
+    private static final int WRITER_THREADS = Math.max(1, Integer.getInteger("chat.server.writers",
+            Math.max(4, Runtime.getRuntime().availableProcessors() * 2)));
+    // 服务端写线程，只有发送队列非空的连接才占用写线程
+    private static final ExecutorService WRITERS = newWriterPool();
+    // 关闭连接时等待发送队列写完的最长时间，超时后直接关闭
+    private static final long CLOSE_DRAIN_MILLIS = 2000;
+    private static final ScheduledExecutorService CLOSER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "connection-closer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Socket到连接对象的映射，同一个Socket上的读写必须共用同一对流
+    private static final Map<Socket, Connection> CONNECTIONS =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final Socket socket;
+    private final boolean serverSide;
+    // 读写锁内会阻塞在Socket上，使用 ReentrantLock 而不是 synchronized，避免虚拟线程固定在载体线程上
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // 服务端在识别出客户端的线路格式之前不能写出任何数据
+    private final CountDownLatch negotiated = new CountDownLatch(1);
+    private volatile Protocol protocol;
+    private OutputStream rawOut;
+    private WritableByteChannel regionTarget; // 写出文件数据区的通道，第一次需要时创建
+    private DataOutputStream dataOut;
+    // 服务端连接的发送队列，消息在调用线程中编码，由写线程写出
+    private final OutboundQueue outbound;
+    private final ReentrantLock encodeLock = new ReentrantLock();
+    private final AtomicBoolean writing = new AtomicBoolean(false);
+    // 已调用close，发送队列写完后关闭
+    private volatile boolean closing = false;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private ByteArrayOutputStream encodeBuffer;
+    private byte[] copyBuffer; // 写出只读帧时使用
+    // 登录时协商的压缩，压缩器和解压器按连接复用
+    private volatile boolean compressionEnabled = false;
+    // 是否接受对端的压缩帧，协商之前收到的压缩帧按格式错误处理
+    private volatile boolean compressionAccepted = false;
+    // 对端在登录时声明支持分块收发文件，旧客户端只能接收整个文件
+    private volatile boolean chunkedTransfer = false;
+    private final ReentrantLock compressLock = new ReentrantLock();
+    private Deflater deflater;
+    private Inflater inflater;
+
+    protected Connection(Socket socket, boolean serverSide) {
+        this.socket = socket;
+        this.serverSide = serverSide;
+        this.outbound = serverSide ? new OutboundQueue() : null;
+        if (!serverSide) {
+            this.protocol = CLIENT_PROTOCOL;
+            negotiated.countDown();
+        }
+    }
+
+    /**
+     * 创建服务端写线程池
+     * 写出会阻塞在慢速接收方的Socket上，有虚拟线程时每次写出使用一个虚拟线程，不占用平台线程；
+     * JDK 21 以下通过反射调用失败，退回固定大小的平台线程池
+     * @return 写线程池
+     */
+    private static ExecutorService newWriterPool() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(WRITER_THREADS, r -> {
+                Thread t = new Thread(r, "connection-writer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * 获取Socket对应的连接，不存在则按客户端连接创建
+     * @param socket 已连接的Socket
+     * @return 该Socket唯一的连接对象
+     */
+    public static Connection of(Socket socket) {
+        return lookup(socket, false);
+    }
+
+    /**
+     * 登记服务端接受的连接，线路格式在第一次读取时根据客户端发来的数据确定
+     * @param socket 服务端accept得到的Socket
+     * @return 该Socket唯一的连接对象
+     */
+    public static Connection accept(Socket socket) {
+        return lookup(socket, true);
+    }
+
+    /**
+     * 登记使用其他传输方式（如NIO通道）的连接，之后 of/accept 都返回该对象
+     * @param connection 要登记的连接
+     */
+    protected static void register(Connection connection) {
+        CONNECTIONS.put(connection.socket, connection);
+    }
+
+    private static Connection lookup(Socket socket, boolean serverSide) {
+        synchronized (CONNECTIONS) {
+            Connection connection = CONNECTIONS.get(socket);
+            if (connection == null) {
+                connection = new SocketConnection(socket, serverSide);
+                CONNECTIONS.put(socket, connection);
+            }
+            return connection;
+        }
+    }
+
+    /**
+     * 从映射中移除Socket对应的连接
+     * @param socket 要移除的Socket
+     */
+    public static void release(Socket socket) {
+        CONNECTIONS.remove(socket);
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * @return 当前线路格式，服务端尚未完成识别时为null
+     */
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * 写出一条消息
+     * @param message 要发送的对象
+     * @return 是否发送成功，服务端连接表示是否已入队
+     */
+    public boolean writeMessage(Object message) {
+        return writeMessage(message, false);
+    }
+
+    /**
+     * 写出一条消息
+     * 客户端直接写出；服务端在调用线程中编码后放入发送队列，由写线程写出，
+     * 调用方不会被慢速的接收方阻塞（BLOCK 策略除外）
+     * @param message 要发送的对象
+     * @param droppable 是否为发送队列满时可以丢弃的在线状态通知
+     * @return 是否发送成功，服务端连接表示是否已入队
+     */
+    public boolean writeMessage(Object message, boolean droppable) {
+        if (!awaitNegotiated()) {
+            return false;
+        }
+        if (!serverSide) {
+            return writeDirect(message);
+        }
+        encodeLock.lock();
+        try {
+            if (protocol == Protocol.BINARY) {
+                return enqueue(ByteBuffer.wrap(encodeBinary(toInfo(message))), droppable);
+            }
+            return enqueue(encodeSerial(message), droppable);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            encodeLock.unlock();
+        }
+    }
+
+    /**
+     * 发送群发消息，二进制连接直接复用已经编码好的帧
+     * @param frame 共享的消息帧
+     * @param droppable 是否为发送队列满时可以丢弃的在线状态通知
+     * @return 是否发送成功，服务端连接表示是否已入队
+     */
+    public boolean writeShared(SharedFrame frame, boolean droppable) {
+        if (!serverSide || getProtocol() != Protocol.BINARY) {
+            return writeMessage(frame.getMessage(), droppable);
+        }
+        try {
+            return enqueue(frame.binaryFrame(compressionEnabled), droppable);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * 发送文件数据在磁盘上的文件消息
+     * 二进制服务端连接只编码帧头，数据区在写出时从文件直接传输到Socket，不经过Java堆，这样的帧不压缩；
+     * 其他连接把数据读入消息后正常发送
+     * @param info 文件数据为空的文件消息
+     * @param region 文件数据所在的文件区间
+     * @return 是否发送成功，服务端连接表示是否已入队
+     */
+    public boolean writeFileRegion(encap_info info, FileRegion region) {
+        try {
+            if (!serverSide || getProtocol() != Protocol.BINARY) {
+                byte[] data = region.read();
+                if (data == null) {
+                    return false;
+                }
+                info.get_file_info().setFileData(data);
+                return writeMessage(info);
+            }
+            return enqueue(ByteBuffer.wrap(WireCodec.encodeWithTrailingData(info, (int) region.getCount())), region, false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * @return 连接是否可以使用压缩帧，只有二进制协议支持
+     */
+    public boolean supportsCompression() {
+        return getProtocol() == Protocol.BINARY;
+    }
+
+    /**
+     * 开启或关闭对大帧的压缩，由登录时的协商结果决定
+     * 开启后本端发出的大帧进行压缩，同时接受对端的压缩帧
+     * @param enabled 是否压缩
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        this.compressionEnabled = enabled && supportsCompression();
+        if (compressionEnabled) {
+            compressionAccepted = true;
+        }
+    }
+
+    /**
+     * 接受对端的压缩帧，客户端在登录请求中声明支持压缩时调用，登录回执可能已经压缩
+     */
+    public void acceptCompression() {
+        compressionAccepted = supportsCompression();
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * 记录对端是否支持分块收发文件，由登录请求决定
+     * @param chunkedTransfer 是否支持分块传输
+     */
+    public void setChunkedTransfer(boolean chunkedTransfer) {
+        this.chunkedTransfer = chunkedTransfer;
+    }
+
+    /**
+     * @return 对端是否支持分块收发文件，不支持时文件整个放在一条消息中发送
+     */
+    public boolean isChunkedTransfer() {
+        return chunkedTransfer;
+    }
+
+    /**
+     * 编码二进制帧，协商了压缩时对足够大的帧进行压缩
+     * @param info 要编码的消息
+     * @return 完整的帧
+     * @throws IOException 如果编码失败
+     */
+    protected byte[] encodeBinary(encap_info info) throws IOException {
+        byte[] frame = WireCodec.encode(info);
+        if (!compressionEnabled || !WireCodec.isCompressible(info, frame.length)) {
+            return frame;
+        }
+        compressLock.lock();
+        try {
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.BEST_SPEED);
+            }
+            return WireCodec.compress(frame, deflater);
+        } finally {
+            compressLock.unlock();
+        }
+    }
+
+    /**
+     * 解码不含长度前缀的二进制帧，协商压缩之后解压器在第一次收到压缩帧时创建，之后一直复用；
+     * 协商之前没有解压器，压缩帧被拒绝
+     * 同一连接上的读取是串行的，不需要加锁
+     */
+    protected encap_info decodeBinary(byte[] body, int offset, int length) throws IOException {
+        if (inflater == null && compressionAccepted && WireCodec.isCompressed(body, offset)) {
+            inflater = new Inflater();
+        }
+        return WireCodec.decode(body, offset, length, inflater, maxInboundFrameLength());
+    }
+
+    /**
+     * @return 本端接受的最大帧长度；客户端接受带有全部用户的大登录消息，服务端不信任对端声明的长度
+     */
+    protected int maxInboundFrameLength() {
+        return serverSide ? WireCodec.MAX_FRAME_LENGTH : WireCodec.MAX_LOGIN_FRAME_LENGTH;
+    }
+
+    /**
+     * 释放压缩器占用的本地内存
+     */
+    protected void releaseCompression() {
+        compressLock.lock();
+        try {
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        } finally {
+            compressLock.unlock();
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    private static encap_info toInfo(Object message) {
+        if (!(message instanceof encap_info)) {
+            throw new IllegalArgumentException("二进制帧只支持 encap_info: " + message.getClass().getName());
+        }
+        return (encap_info) message;
+    }
+
+    private boolean writeDirect(Object message) {
+        writeLock.lock();
+        try {
+            ensureOutput();
+            if (protocol == Protocol.BINARY) {
+                dataOut.write(encodeBinary(toInfo(message)));
+                dataOut.flush();
+                return true;
+            }
+            ObjectOutputStream out = new ObjectOutputStream(rawOut);
+            out.writeObject(message);
+            out.flush();//刷新以发送消息
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 按旧版本的格式把消息编码为一帧：每条消息一个对象流，包含流头和完整的类描述符，
+     * 旧客户端每次读取都新建对象流，只能解析这种格式
+     */
+    private ByteBuffer encodeSerial(Object message) throws IOException {
+        if (encodeBuffer == null) {
+            encodeBuffer = new ByteArrayOutputStream(BUFFER_SIZE);
+        }
+        ObjectOutputStream out = new ObjectOutputStream(encodeBuffer);
+        out.writeObject(message);
+        out.flush();
+        ByteBuffer frame = ByteBuffer.wrap(encodeBuffer.toByteArray());
+        encodeBuffer.reset();
+        return frame;
+    }
+
+    /**
+     * @return 服务端连接的发送队列，客户端连接为null
+     */
+    protected OutboundQueue outbound() {
+        return outbound;
+    }
+
+    /**
+     * 把编码好的帧放入发送队列并安排写出
+     * @param frame 完整的帧
+     * @param droppable 队列满时是否可以丢弃
+     * @return 是否已入队
+     */
+    protected boolean enqueue(ByteBuffer frame, boolean droppable) {
+        return enqueue(frame, null, droppable);
+    }
+
+    /**
+     * 把帧头和文件数据区放入发送队列并安排写出
+     * @param header 编码好的帧头
+     * @param region 帧头之后的文件数据，可以为null
+     * @param droppable 队列满时是否可以丢弃
+     * @return 是否已入队
+     */
+    protected boolean enqueue(ByteBuffer header, FileRegion region, boolean droppable) {
+        if (closing) {
+            return false;
+        }
+        switch (outbound.offer(header, region, droppable)) {
+            case QUEUED:
+                scheduleWrite();
+                return true;
+            case OVERFLOW:
+                onOverflow();
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 安排写线程写出发送队列中的帧，同一连接同时只有一个写线程
+     */
+    protected void scheduleWrite() {
+        if (writing.compareAndSet(false, true)) {
+            WRITERS.execute(this::drainOutbound);
+        }
+    }
+
+    private void drainOutbound() {
+        writeLock.lock();
+        try {
+            ensureOutput();
+            ByteBuffer frame;
+            while ((frame = outbound.peek()) != null) {
+                FileRegion region = outbound.peekRegion();
+                if (region == null) {
+                    writeFrame(frame);
+                } else if (!writeFrame(frame, region)) {
+                    outbound.remove(); // 文件已随传输结束删除，帧头还没有写出，整帧丢弃
+                    continue;
+                }
+                outbound.remove();
+                if (outbound.isEmpty()) {
+                    rawOut.flush(); // 队列写空时才刷新，连续的帧合并发送
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[Connection] 写出数据失败: " + e.getMessage());
+            abort();
+        } finally {
+            writeLock.unlock();
+            writing.set(false);
+        }
+        if (closing && outbound.isEmpty()) {
+            closeQuietly();
+        } else if (!outbound.isEmpty()) {
+            scheduleWrite();
+        }
+    }
+
+    /**
+     * 写出帧头和文件数据区，数据区从文件直接传输到Socket通道
+     * @return 是否写出，文件已不存在时返回false
+     */
+    private boolean writeFrame(ByteBuffer header, FileRegion region) throws IOException {
+        try {
+            if (!region.open()) {
+                return false;
+            }
+            writeFrame(header);
+            rawOut.flush();
+            if (regionTarget == null) {
+                // 由ServerSocketChannel接受的Socket有通道，可以用sendfile；否则退回到输出流
+                regionTarget = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+            }
+            region.transferTo(regionTarget);
+            return true;
+        } finally {
+            region.close();
+        }
+    }
+
+    /**
+     * 写出一帧，共享的只读帧没有可访问的数组，分段复制后写出
+     */
+    private void writeFrame(ByteBuffer frame) throws IOException {
+        if (frame.hasArray()) {
+            rawOut.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            return;
+        }
+        if (copyBuffer == null) {
+            copyBuffer = new byte[BUFFER_SIZE];
+        }
+        ByteBuffer view = frame.duplicate();
+        while (view.hasRemaining()) {
+            int n = Math.min(copyBuffer.length, view.remaining());
+            view.get(copyBuffer, 0, n);
+            rawOut.write(copyBuffer, 0, n);
+        }
+    }
+
+    /**
+     * 发送队列已满且无法丢弃消息时断开慢速的接收方，对端的处理线程会在读取失败后完成登出清理
+     */
+    protected void onOverflow() {
+        System.err.println("[Connection] 发送队列已满，断开慢速连接: " + socket.getRemoteSocketAddress());
+        abort();
+    }
+
+    /**
+     * 立即关闭Socket，丢弃未写出的帧
+     */
+    private void abort() {
+        outbound.close();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("[Connection] 关闭Socket失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return 是否为服务端接受的连接
+     */
+    protected boolean isServerSide() {
+        return serverSide;
+    }
+
+    /**
+     * 服务端识别出客户端的线路格式，二进制格式回送握手标识；识别之前不能写出任何数据
+     * @param protocol 客户端使用的线路格式
+     * @throws IOException 如果回送握手标识失败
+     */
+    protected void negotiate(Protocol protocol) throws IOException {
+        try {
+            if (protocol == Protocol.BINARY) {
+                writeLock.lock();
+                try {
+                    ensureOutput();
+                    dataOut.writeInt(WireCodec.MAGIC);
+                    dataOut.flush();
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+            this.protocol = protocol;
+        } finally {
+            negotiated.countDown();
+        }
+    }
+
+    private void ensureOutput() throws IOException {
+        if (rawOut != null) {
+            return;
+        }
+        rawOut = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        dataOut = new DataOutputStream(rawOut);
+        if (!serverSide && protocol == Protocol.BINARY) {
+            dataOut.writeInt(WireCodec.MAGIC);
+            dataOut.flush();
+        }
+    }
+
+    private boolean awaitNegotiated() {
+        try {
+            negotiated.await();
+            return protocol != null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 关闭连接并释放映射
+     * 服务端连接不在调用线程中等待：已排队的消息（如“被踢下线”的通知）由写线程写完后关闭，
+     * 超过 CLOSE_DRAIN_MILLIS 仍未写完则直接关闭；之后不再接受新的消息
+     */
+    public void close() throws IOException {
+        negotiated.countDown();
+        if (outbound == null) {
+            closeNow();
+            return;
+        }
+        closing = true;
+        if (outbound.isEmpty() && !writing.get()) {
+            closeNow();
+            return;
+        }
+        CLOSER.schedule(this::closeQuietly, CLOSE_DRAIN_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void closeNow() throws IOException {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (outbound != null) {
+            outbound.close();
+        }
+        release(socket);
+        try {
+            if (!socket.isClosed()) {
+                socket.close();
+            }
+        } finally {
+            releaseCompression();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            closeNow();
+        } catch (IOException e) {
+            System.err.println("[Connection] 关闭Socket失败: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package io;
+
+import info.File_info;
+import info.encap_info;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 分块文件传输的公共参数和工具方法
+ * 发送方、服务器和接收方按OFFER中的块大小切分文件，块序号乘以块大小即为块在文件中的偏移，
+ * 任何一端同时只在内存中保存窗口内的少量数据块
+ */
+public final class FileChunks {
+    // 发送方使用的块大小，可以用 -Dchat.file.chunk 调整
+    public static final int CHUNK_SIZE = Integer.getInteger("chat.file.chunk", 256 * 1024);
+    // 接收方接受的最大块大小，限制单个数据块占用的内存
+    public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+    // 整个文件放在一条消息中发送（不分块的旧方式）时的最大大小，加上文件名等字段不超过 WireCodec.MAX_FRAME_LENGTH
+    public static final int MAX_WHOLE_FILE_SIZE = MAX_CHUNK_SIZE;
+    // 每个传输已发送但未确认的最大块数，可以用 -Dchat.file.window 调整
+    public static final int WINDOW = Integer.getInteger("chat.file.window", 8);
+
+    private FileChunks() {
+    }
+
+    /**
+     * @return 文件的块数，空文件也按一个空块传输
+     */
+    public static int chunkCount(long fileSize, int chunkSize) {
+        return (int) Math.max(1, (fileSize + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * @return 第index块的长度
+     */
+    public static int chunkLength(long fileSize, int chunkSize, int index) {
+        long offset = (long) index * chunkSize;
+        return (int) Math.max(0, Math.min(chunkSize, fileSize - offset));
+    }
+
+    /**
+     * 检查OFFER中的分块参数是否自洽
+     * @param offer 文件信息
+     * @return 参数是否有效
+     */
+    public static boolean isValidOffer(File_info offer) {
+        return offer.getFileId() != null
+                && offer.getFileSize() >= 0
+                && offer.getChunkSize() > 0
+                && offer.getChunkSize() <= MAX_CHUNK_SIZE
+                && offer.getChunkCount() == chunkCount(offer.getFileSize(), offer.getChunkSize())
+                && offer.getChecksum() != null;
+    }
+
+    /**
+     * 检查数据块的序号和长度是否与OFFER一致
+     * @param offer 文件信息
+     * @param chunk 收到的数据块
+     * @return 数据块是否有效
+     */
+    public static boolean isValidChunk(File_info offer, File_info chunk) {
+        int index = chunk.getChunkIndex();
+        byte[] data = chunk.getFileData();
+        return index >= 0 && index < offer.getChunkCount() && data != null
+                && data.length == chunkLength(offer.getFileSize(), offer.getChunkSize(), index);
+    }
+
+    /**
+     * 读取一个数据块
+     * @param channel 文件通道
+     * @param offer 文件信息，提供块大小和文件大小
+     * @param index 块序号
+     * @return 块内容
+     * @throws IOException 如果读取失败或文件被截断
+     */
+    public static byte[] readChunk(FileChannel channel, File_info offer, int index) throws IOException {
+        long offset = (long) index * offer.getChunkSize();
+        ByteBuffer buffer = ByteBuffer.allocate(chunkLength(offer.getFileSize(), offer.getChunkSize(), index));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("文件在传输过程中被截断");
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * 把数据块写到文件中对应的位置
+     * @param channel 文件通道
+     * @param offer 文件信息，提供块大小
+     * @param chunk 数据块
+     * @throws IOException 如果写入失败
+     */
+    public static void writeChunk(FileChannel channel, File_info offer, File_info chunk) throws IOException {
+        long offset = (long) chunk.getChunkIndex() * offer.getChunkSize();
+        ByteBuffer buffer = ByteBuffer.wrap(chunk.getFileData());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+    }
+
+    /**
+     * 流式计算文件的SHA-256
+     * @param path 文件路径
+     * @return 十六进制的摘要
+     * @throws IOException 如果读取失败
+     */
+    public static String sha256(Path path) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(path)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * 复制OFFER中的文件信息和分块参数，不包含文件数据
+     * @param offer 文件信息
+     * @param stage 新消息的阶段
+     * @return 新的文件信息
+     */
+    public static File_info copyOffer(File_info offer, File_info.TransferStage stage) {
+        File_info copy = new File_info();
+        copy.setFileId(offer.getFileId());
+        copy.setFileName(offer.getFileName());
+        copy.setFileSize(offer.getFileSize());
+        copy.setFromUsername(offer.getFromUsername());
+        copy.setToUsername(offer.getToUsername());
+        copy.setGroupId(offer.getGroupId());
+        copy.setGroupFile(offer.isGroupFile());
+        copy.setFileDescription(offer.getFileDescription());
+        copy.setImage(offer.isImage());
+        copy.setMimeType(offer.getMimeType());
+        copy.setChunkCount(offer.getChunkCount());
+        copy.setChunkSize(offer.getChunkSize());
+        copy.setChecksum(offer.getChecksum());
+        copy.setStage(stage);
+        return copy;
+    }
+
+    /**
+     * 构造分块传输的控制消息或数据块消息
+     * 只携带文件ID、文件名（用于判断是否值得压缩）和块序号
+     * @param fileId 文件ID
+     * @param fileName 文件名
+     * @param stage 传输阶段
+     * @param index 块序号
+     * @param data 块内容，控制消息为null
+     * @return 封装好的消息
+     */
+    public static encap_info message(String fileId, String fileName, File_info.TransferStage stage, int index, byte[] data) {
+        File_info fileInfo = new File_info();
+        fileInfo.setFileId(fileId);
+        fileInfo.setFileName(fileName);
+        fileInfo.setStage(stage);
+        fileInfo.setChunkIndex(index);
+        fileInfo.setFileData(data);
+        return wrap(fileInfo);
+    }
+
+    /**
+     * @return 类型为7的文件传输消息
+     */
+    public static encap_info wrap(File_info fileInfo) {
+        encap_info info = new encap_info();
+        info.set_type(7);
+        info.set_file_info(fileInfo);
+        return info;
+    }
+}
@@ -1,20 +1,27 @@
 package io;
 
 import info.Org_info;
+import io.history.HistoryPage;
+import io.history.HistoryStore;
+import io.history.SearchHit;
 
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class FileIO {
     // 默认文件路径
@@ -29,6 +36,8 @@ public class FileIO {
     private static final String SINGLE_CHAT_DIR = "chat_single_history";
     private static final DateTimeFormatter TIMESTAMP_FORMATTER =
             DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    // 已经确认存在的文件
+    private static final Set<String> initialized = ConcurrentHashMap.newKeySet();
     public FileIO() {
         this(DEFAULT_USERS_FILE, DEFAULT_GROUPS_FILE);
     }
@@ -37,7 +46,10 @@ public class FileIO {
         this.userFilePath = Paths.get(userFile);
         this.groupFilePath = Paths.get(groupFile);
 
-        // 确保文件存在
+        // 确保文件存在，每对文件只检查一次，登录等频繁创建实例的地方不再访问磁盘
+        if (!initialized.add(userFilePath.toAbsolutePath() + "|" + groupFilePath.toAbsolutePath())) {
+            return;
+        }
         try {
             ensureFilesExist();
             Files.createDirectories(Paths.get(GROUP_CHAT_DIR));
@@ -48,57 +60,33 @@ public class FileIO {
     }
 
     // region 用户相关操作
-    public boolean writeUser(String username, String password) throws IOException {
-        if (userExists(username)) {
-            return false;
-        }
+    // 用户数据由进程内共用的 UserStore 提供，只在第一次使用时读取用户文件
+    private UserStore users() {
+        return UserStore.open(userFilePath);
+    }
 
-        String record = username + "|" + password + "\n";
-        Files.write(userFilePath, record.getBytes(),
-                StandardOpenOption.CREATE,
-                StandardOpenOption.APPEND);
-        return true;
+    public boolean writeUser(String username, String password) throws IOException {
+        return users().register(username, password);
     }
 
     public boolean userExists(String username) throws IOException {
-        if (!Files.exists(userFilePath)) return false;
-
-        return Files.lines(userFilePath)
-                .anyMatch(line -> {
-                    String[] parts = line.split("\\|");
-                    return parts.length > 0 && parts[0].equals(username);
-                });
+        return users().exists(username);
     }
 
     public boolean validateUser(String username, String password) throws IOException {
-        if (!Files.exists(userFilePath)) return false;
-
-        return Files.lines(userFilePath)
-                .anyMatch(line -> {
-                    String[] parts = line.split("\\|");
-                    return parts.length >= 2
-                            && parts[0].equals(username)
-                            && parts[1].equals(password);
-                });
+        return users().validate(username, password);
     }
     // endregion
 
     // region 群聊相关操作
-    public void writeGroup(int groupId, String groupName, ArrayList<String> members) throws IOException {
-        // 移除旧记录（如果存在）
-        List<String> groups = Files.exists(groupFilePath) ?
-                Files.readAllLines(groupFilePath) :
-                new ArrayList<>();
-
-        groups.removeIf(line -> line.startsWith(groupId + "|"));
-
-        // 添加新记录，包含群组名称
-        String record = groupId + "|" + groupName + "|" + String.join(",", members);
-        groups.add(record);
+    // 群聊数据由进程内共用的 GroupCatalog 提供，只在第一次使用时读取群聊文件；指向小组文件的实例不能使用群聊方法
+    private GroupCatalog groups() {
+        return GroupCatalog.open(groupFilePath);
+    }
 
-        Files.write(groupFilePath, groups,
-                StandardOpenOption.CREATE,
-                StandardOpenOption.TRUNCATE_EXISTING);
+    public void writeGroup(int groupId, String groupName, ArrayList<String> members) throws IOException {
+        // 新建群组，或记录已有群组的名称和成员变化
+        groups().write(groupId, groupName, members);
     }
 
     public void writeGroup(int groupId, String groupName, String member) throws IOException {
@@ -114,54 +102,16 @@ public class FileIO {
     }
 
     public boolean groupExists(int groupId) throws IOException {
-        if (!Files.exists(groupFilePath)) return false;
-
-        return Files.lines(groupFilePath)
-                .anyMatch(line -> {
-                    String[] parts = line.split("\\|");
-                    return parts.length > 0 && parts[0].equals(String.valueOf(groupId));
-                });
+        return groups().exists(groupId);
     }
 
     public ArrayList<Integer> getGroupsByUser(String username) throws IOException {
-        ArrayList<Integer> groupIds = new ArrayList<>();
-
-        if (!Files.exists(groupFilePath)) {
-            return groupIds;
-        }
-
-        Files.lines(groupFilePath).forEach(line -> {
-            String[] parts = line.split("\\|");
-            if (parts.length >= 3) {  // 现在格式是 groupId|groupName|members
-                try {
-                    int groupId = Integer.parseInt(parts[0]);
-                    // 第三部分是成员列表
-                    List<String> members = Arrays.asList(parts[2].split(","));
-                    if (members.contains(username)) {
-                        groupIds.add(groupId);
-                    }
-                } catch (NumberFormatException e) {
-                    // 忽略格式错误的群组ID
-                }
-            }
-        });
-
-        return groupIds;
+        // 由倒排索引直接得到，不再逐行拆分成员列表
+        return groups().getGroupsByUser(username);
     }
+
     public ArrayList<String> getGroupMembers(int groupId) throws IOException {
-        if (!Files.exists(groupFilePath)) return null;
-
-        return Files.lines(groupFilePath)
-                .filter(line -> line.startsWith(groupId + "|"))
-                .findFirst()
-                .map(line -> {
-                    String[] parts = line.split("\\|");
-                    if (parts.length < 3 || parts[2].isEmpty()) {
-                        return new ArrayList<String>();
-                    }
-                    return new ArrayList<>(Arrays.asList(parts[2].split(",")));
-                })
-                .orElse(null);
+        return groups().getMembers(groupId);
     }
     
     /**
@@ -170,19 +120,8 @@ public class FileIO {
      * @return 群组名称，如果不存在则返回默认名称
      */
     public String getGroupName(int groupId) throws IOException {
-        if (!Files.exists(groupFilePath)) return "群聊 " + groupId;
-
-        return Files.lines(groupFilePath)
-                .filter(line -> line.startsWith(groupId + "|"))
-                .findFirst()
-                .map(line -> {
-                    String[] parts = line.split("\\|");
-                    if (parts.length < 2 || parts[1].isEmpty()) {
-                        return "群聊 " + groupId;
-                    }
-                    return parts[1];
-                })
-                .orElse("群聊 " + groupId);
+        String name = groups().getName(groupId);
+        return name != null && !name.isEmpty() ? name : "群聊 " + groupId;
     }
     
     /**
@@ -191,35 +130,14 @@ public class FileIO {
      * @return 包含名称和成员的Map，如果不存在则返回null
      */
     public Map<String, Object> getGroupInfo(int groupId) throws IOException {
-        if (!Files.exists(groupFilePath)) return null;
-
-        return Files.lines(groupFilePath)
-                .filter(line -> line.startsWith(groupId + "|"))
-                .findFirst()
-                .map(line -> {
-                    String[] parts = line.split("\\|");
-                    Map<String, Object> info = new HashMap<>();
-                    
-                    // 设置默认名称
-                    String name = "群聊 " + groupId;
-                    
-                    // 如果有名称部分，使用它
-                    if (parts.length >= 2) {
-                        name = parts[1];
-                    }
-                    
-                    info.put("name", name);
-                    
-                    // 处理成员列表
-                    ArrayList<String> members = new ArrayList<>();
-                    if (parts.length >= 3 && !parts[2].isEmpty()) {
-                        members = new ArrayList<>(Arrays.asList(parts[2].split(",")));
-                    }
-                    
-                    info.put("members", members);
-                    return info;
-                })
-                .orElse(null);
+        ArrayList<String> members = groups().getMembers(groupId);
+        if (members == null) {
+            return null;
+        }
+        Map<String, Object> info = new HashMap<>();
+        info.put("name", getGroupName(groupId));
+        info.put("members", members);
+        return info;
     }
     
     private void ensureFilesExist() throws IOException {
@@ -233,61 +151,22 @@ public class FileIO {
 
     // 在用户相关操作区域添加以下方法
     public boolean updatePassword(String username, String newPassword) throws IOException {
-        if (!Files.exists(userFilePath)) return false;
-
-        // 读取所有用户记录
-        List<String> lines = Files.readAllLines(userFilePath);
-        boolean found = false;
-
-        // 查找并更新密码
-        for (int i = 0; i < lines.size(); i++) {
-            String[] parts = lines.get(i).split("\\|");
-            if (parts.length > 0 && parts[0].equals(username)) {
-                lines.set(i, username + "|" + newPassword);
-                found = true;
-                break;
-            }
-        }
-
-        if (found) {
-            // 覆盖写入
-            Files.write(userFilePath, lines,
-                    StandardOpenOption.WRITE,
-                    StandardOpenOption.TRUNCATE_EXISTING);
-            return true;
-        }
-        return false;
+        return users().updatePassword(username, newPassword);
     }
     // region 统一聊天记录管理
     /**
      * 通用聊天记录保存方法
      * @param chatInfo 包含完整消息信息的对象
      */
-    public synchronized void saveChatMessage(info.Chat_info chatInfo) throws IOException {
+    public void saveChatMessage(info.Chat_info chatInfo) throws IOException {
         String timestamp = LocalDateTime.now().format(TIMESTAMP_FORMATTER);
         String record = String.join("|",
                 timestamp,
                 chatInfo.getFrom_username(),
                 chatInfo.getText()
         );
-
-        if (chatInfo.isType()) {
-            // 群聊消息
-            Path groupFile = Paths.get(GROUP_CHAT_DIR,
-                    chatInfo.getGroup_id() + ".dat");
-            Files.write(groupFile, (record + "\n").getBytes(),
-                    StandardOpenOption.CREATE,
-                    StandardOpenOption.APPEND);
-        } else {
-            // 私聊消息
-            String[] users = {chatInfo.getFrom_username(), chatInfo.getTo_username()};
-            Arrays.sort(users); // 保证文件名一致性
-            Path privateFile = Paths.get(SINGLE_CHAT_DIR,
-                    users[0] + "_" + users[1] + ".dat");
-            Files.write(privateFile, (record + "\n").getBytes(),
-                    StandardOpenOption.CREATE,
-                    StandardOpenOption.APPEND);
-        }
+        // 只放入待写队列，由后台线程成批写入，读取时会先写入队列中的记录
+        history(chatInfo).enqueue(record);
     }
 
     /**
@@ -296,25 +175,97 @@ public class FileIO {
      * @return 按时间排序的消息列表
      */
     public List<String> getChatHistory(info.Chat_info chatInfo) throws IOException {
-        Path chatFile;
+        return history(chatInfo).readAll();
+    }
 
+    /**
+     * 分页获取聊天历史记录
+     * @param chatInfo 包含查询条件的对象
+     * @param before 游标，只返回序号小于它的记录；读取最新的一页时传入 Long.MAX_VALUE
+     * @param limit 每页的条数
+     * @return 按时间排序的一页消息
+     */
+    public HistoryPage getChatHistory(info.Chat_info chatInfo, long before, int limit) throws IOException {
+        return history(chatInfo).readBefore(before, limit);
+    }
+
+    /**
+     * 在用户参与的会话的聊天记录中搜索
+     * @param username 当前用户，只搜索包含该用户的私聊
+     * @param groupIds 用户所在的群聊和小组的ID，只搜索这些群聊
+     * @param query 查询，以空白分隔的多个词语需要同时出现在消息内容中
+     * @param limit 最多返回的条数
+     * @return 搜索结果，按时间从新到旧排列；群聊结果的会话目录在 chat_group_history 下，私聊在 chat_single_history 下
+     */
+    public List<SearchHit> searchChatHistory(String username, Set<Integer> groupIds, String query, int limit) throws IOException {
+        List<SearchHit> hits = new ArrayList<>();
+        for (String root : new String[]{GROUP_CHAT_DIR, SINGLE_CHAT_DIR}) {
+            Path rootDir = Paths.get(root);
+            if (!Files.isDirectory(rootDir)) {
+                continue;
+            }
+            boolean group = root.equals(GROUP_CHAT_DIR);
+            Set<Path> conversations = new LinkedHashSet<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(rootDir)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    if (name.endsWith(".dat")) {
+                        // 还没有导入的旧格式记录，打开时导入
+                        name = name.substring(0, name.length() - 4);
+                    } else if (!Files.isDirectory(entry) || name.endsWith(".importing")) {
+                        // 中途退出留下的导入临时目录不是会话
+                        continue;
+                    }
+                    if (group ? isGroupOf(name, groupIds) : isPrivateOf(name, username)) {
+                        conversations.add(rootDir.resolve(name));
+                    }
+                }
+            }
+            for (Path chatDir : conversations) {
+                HistoryStore store = HistoryStore.open(chatDir, chatDir.resolveSibling(chatDir.getFileName() + ".dat"));
+                hits.addAll(store.search(query, limit));
+            }
+        }
+        // 记录以 yyyy-MM-dd HH:mm:ss 开头，按字符串倒序即按时间从新到旧
+        hits.sort(Comparator.comparing(SearchHit::getRecord).reversed());
+        return hits.size() > limit ? new ArrayList<>(hits.subList(0, limit)) : hits;
+    }
+
+    private static boolean isGroupOf(String name, Set<Integer> groupIds) {
+        try {
+            return groupIds.contains(Integer.parseInt(name));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 私聊目录名为排序后的两个用户名以下划线连接
+     */
+    private static boolean isPrivateOf(String name, String username) {
+        if (name.startsWith(username + "_") && username.compareTo(name.substring(username.length() + 1)) <= 0) {
+            return true;
+        }
+        return name.endsWith("_" + username)
+                && name.substring(0, name.length() - username.length() - 1).compareTo(username) <= 0;
+    }
+
+    /**
+     * 会话的记录目录：群聊为 chat_group_history/群ID/，私聊为 chat_single_history/用户A_用户B/，
+     * 旧版本的记录文件为目录名加 .dat
+     */
+    private HistoryStore history(info.Chat_info chatInfo) {
+        Path chatDir;
         if (chatInfo.isType()) {
             // 群聊记录路径
-            chatFile = Paths.get(GROUP_CHAT_DIR,
-                    chatInfo.getGroup_id() + ".dat");
+            chatDir = Paths.get(GROUP_CHAT_DIR, String.valueOf(chatInfo.getGroup_id()));
         } else {
             // 私聊记录路径
             String[] users = {chatInfo.getFrom_username(), chatInfo.getTo_username()};
-            Arrays.sort(users);
-            chatFile = Paths.get(SINGLE_CHAT_DIR,
-                    users[0] + "_" + users[1] + ".dat");
+            Arrays.sort(users); // 保证目录名一致性
+            chatDir = Paths.get(SINGLE_CHAT_DIR, users[0] + "_" + users[1]);
         }
-
-        if (!Files.exists(chatFile)) {
-            return Collections.emptyList();
-        }
-
-        return Files.readAllLines(chatFile);
+        return HistoryStore.open(chatDir, chatDir.resolveSibling(chatDir.getFileName() + ".dat"));
     }
 
     /**
@@ -323,26 +274,17 @@ public class FileIO {
      * @throws IOException 如果读取文件时出错
      */
     public ArrayList<String> getAllUsers() throws IOException {
-        ArrayList<String> users = new ArrayList<>();
-        
-        if (!Files.exists(userFilePath)) {
-            return users;
-        }
-        
-        Files.lines(userFilePath).forEach(line -> {
-            String[] parts = line.split("\\|");
-            if (parts.length > 0 && !parts[0].trim().isEmpty()) {
-                users.add(parts[0]);
-            }
-        });
-        
-        return users;
+        return users().getAllUsers();
+    }
+
+    // region 小组(Org)相关操作
+    // 小组数据由进程内共用的 OrgCatalog 提供，此时 groupFilePath 指向 orgs.dat
+    private OrgCatalog orgs() {
+        return OrgCatalog.open(groupFilePath);
     }
 
-    // --- NEW ---
-    // region 新增的小组(Org)相关操作，并添加了详细日志
     /**
-     * 将小组信息写入文件 (新格式: orgId|parentGroupId|orgName|members)
+     * 新建或替换小组 (格式: orgId|parentGroupId|orgName|members)
      * @param orgId 小组ID
      * @param parentGroupId 父群聊ID
      * @param orgName 小组名称
@@ -350,24 +292,7 @@ public class FileIO {
      * @throws IOException
      */
     public void writeOrg(int orgId, int parentGroupId, String orgName, ArrayList<String> members) throws IOException {
-        Path orgFilePath = this.groupFilePath;
-        // --- NEW LOGGING ---
-        System.out.println("[FileIO.writeOrg] 准备写入小组到文件: " + orgFilePath.toAbsolutePath());
-
-        List<String> orgs = Files.exists(orgFilePath) ?
-                Files.readAllLines(orgFilePath) :
-                new ArrayList<>();
-
-        orgs.removeIf(line -> line.startsWith(orgId + "|"));
-
-        String record = orgId + "|" + parentGroupId + "|" + orgName + "|" + String.join(",", members);
-        // --- NEW LOGGING ---
-        System.out.println("[FileIO.writeOrg] 待写入的记录: " + record);
-        orgs.add(record);
-
-        Files.write(orgFilePath, orgs, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-        // --- NEW LOGGING ---
-        System.out.println("[FileIO.writeOrg] 写入成功.");
+        orgs().write(orgId, parentGroupId, orgName, members);
     }
 
     /**
@@ -377,56 +302,7 @@ public class FileIO {
      * @throws IOException
      */
     public ArrayList<Org_info> getAllOrgsByUser(String username) throws IOException {
-        Path orgFilePath = this.groupFilePath;
-        // --- NEW LOGGING ---
-        System.out.println("[FileIO.getAllOrgsByUser] 为用户 '" + username + "' 读取小组信息，文件路径: " + orgFilePath.toAbsolutePath());
-
-        ArrayList<Org_info> userOrgs = new ArrayList<>();
-
-        if (!Files.exists(orgFilePath)) {
-            // --- NEW LOGGING ---
-            System.out.println("[FileIO.getAllOrgsByUser] 文件不存在: " + orgFilePath.toAbsolutePath());
-            return userOrgs;
-        }
-
-        List<String> lines = Files.readAllLines(orgFilePath);
-        // --- NEW LOGGING ---
-        System.out.println("[FileIO.getAllOrgsByUser] 文件存在，共 " + lines.size() + " 行。");
-
-        for (String line : lines) {
-            // --- NEW LOGGING ---
-            System.out.println("[FileIO.getAllOrgsByUser] 正在处理行: " + line);
-            String[] parts = line.split("\\|");
-            if (parts.length >= 4) { // 新格式: orgId|parentGroupId|orgName|members
-                List<String> members = Arrays.asList(parts[3].split(","));
-                // --- NEW LOGGING ---
-                System.out.println("[FileIO.getAllOrgsByUser] 解析出的成员: " + members);
-
-                if (members.contains(username)) {
-                    // --- NEW LOGGING ---
-                    System.out.println("[FileIO.getAllOrgsByUser] 成功：在此小组中找到用户 '" + username + "'。");
-                    try {
-                        Org_info org = new Org_info();
-                        org.setOrg_id(Integer.parseInt(parts[0]));
-                        org.setGroup_id(Integer.parseInt(parts[1]));
-                        org.setOrg_name(parts[2]);
-                        org.setMembers(new ArrayList<>(members));
-                        userOrgs.add(org);
-                    } catch (NumberFormatException e) {
-                        System.err.println("[FileIO.getAllOrgsByUser] 警告：无法解析行内数字: " + line);
-                    }
-                } else {
-                    // --- NEW LOGGING ---
-                    System.out.println("[FileIO.getAllOrgsByUser] 信息：用户 '" + username + "' 不在此小组成员列表中。");
-                }
-            } else {
-                // --- NEW LOGGING ---
-                System.err.println("[FileIO.getAllOrgsByUser] 警告：跳过格式错误的行 (字段数少于4): " + line);
-            }
-        }
-        // --- NEW LOGGING ---
-        System.out.println("[FileIO.getAllOrgsByUser] 处理完毕。为用户 '" + username + "' 找到 " + userOrgs.size() + " 个小组。");
-        return userOrgs;
+        return orgs().getByMember(username);
     }
 
     /**
@@ -436,102 +312,42 @@ public class FileIO {
      * @throws IOException
      */
     public Org_info getOrgInfo(int orgId) throws IOException {
-        Path orgFilePath = this.groupFilePath; // 假设此实例用于orgs.dat
-        if (!Files.exists(orgFilePath)) return null;
-
-        return Files.lines(orgFilePath)
-                .filter(line -> line.startsWith(orgId + "|"))
-                .findFirst()
-                .map(line -> {
-                    String[] parts = line.split("\\|");
-                    if (parts.length >= 4) { // 新格式
-                        try {
-                            Org_info org = new Org_info();
-                            org.setOrg_id(Integer.parseInt(parts[0]));
-                            org.setGroup_id(Integer.parseInt(parts[1]));
-                            org.setOrg_name(parts[2]);
-                            org.setMembers(new ArrayList<>(Arrays.asList(parts[3].split(","))));
-                            return org;
-                        } catch (NumberFormatException e) {
-                            return null;
-                        }
-                    }
-                    return null;
-                })
-                .orElse(null);
+        return orgs().get(orgId);
     }
 
     /**
-     * 获取指定小组的成员列表 (新方法，用于 orgs.dat)
+     * 获取指定小组的成员列表
      * @param orgId 小组ID
      * @return 成员列表
      * @throws IOException
      */
     public ArrayList<String> getOrgMembers(int orgId) throws IOException {
-        Path orgFilePath = this.groupFilePath; // 假设此实例用于orgs.dat
-        if (!Files.exists(orgFilePath)) return null;
-
-        return Files.lines(orgFilePath)
-                .filter(line -> line.startsWith(orgId + "|"))
-                .findFirst()
-                .map(line -> {
-                    String[] parts = line.split("\\|");
-                    if (parts.length < 4 || parts[3].isEmpty()) {
-                        return new ArrayList<String>();
-                    }
-                    return new ArrayList<>(Arrays.asList(parts[3].split(",")));
-                })
-                .orElse(null);
+        return orgs().getMembers(orgId);
+    }
+
+    public boolean orgExists(int orgId) throws IOException {
+        return orgs().exists(orgId);
+    }
+
+    /**
+     * 检查用户是否已在指定群聊的某个小组中
+     * @param username 用户名
+     * @param parentGroupId 父群聊ID
+     * @return 是否已在小组中
+     */
+    public boolean isInTeamOfGroup(String username, int parentGroupId) throws IOException {
+        return orgs().isInTeamOfGroup(username, parentGroupId);
     }
 
     /**
-     * 管理小组的成员（添加/删除），适配新文件格式
+     * 管理小组的成员（添加/删除）
      * @param orgId 小组ID
      * @param addUsers 要添加的用户列表
      * @param removeUsers 要删除的用户列表
      * @throws IOException
      */
     public void manageOrgMembers(int orgId, ArrayList<String> addUsers, ArrayList<String> removeUsers) throws IOException {
-        Path orgFilePath = this.groupFilePath;
-        List<String> orgs = Files.exists(orgFilePath) ?
-                Files.readAllLines(orgFilePath) :
-                new ArrayList<>();
-
-        boolean found = false;
-        for (int i = 0; i < orgs.size(); i++) {
-            String line = orgs.get(i);
-            if (line.startsWith(orgId + "|")) {
-                found = true;
-                String[] parts = line.split("\\|");
-                // 保持 parentGroupId 和 orgName
-                String parentGroupIdStr = parts[1];
-                String orgName = parts[2];
-                ArrayList<String> members = (parts.length < 4 || parts[3].isEmpty()) ? new ArrayList<>() : new ArrayList<>(Arrays.asList(parts[3].split(",")));
-
-                // 添加新成员 (去重)
-                if (addUsers != null) {
-                    for (String user : addUsers) {
-                        if (!members.contains(user)) {
-                            members.add(user);
-                        }
-                    }
-                }
-                // 移除成员
-                if (removeUsers != null) {
-                    members.removeAll(removeUsers);
-                }
-
-                // 更新行记录
-                orgs.set(i, orgId + "|" + parentGroupIdStr + "|" + orgName + "|" + String.join(",", members));
-                break;
-            }
-        }
-
-        if (!found) {
-            throw new IllegalArgumentException("小组 " + orgId + " 不存在，无法修改成员。");
-        }
-
-        Files.write(orgFilePath, orgs, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        orgs().updateMembers(orgId, addUsers, removeUsers);
     }
     // endregion
 }
@@ -0,0 +1,111 @@
+package io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 文件中的一段数据，作为发送队列中一帧的数据区
+ * 写出时才打开文件，用 FileChannel.transferTo 直接传输到连接，目标是Socket通道时由内核完成复制，数据不进入Java堆；
+ * 文件打开后即使被删除也能继续读完
+ */
+public final class FileRegion {
+    private final Path path;
+    private final long count;
+    private long position;
+    private long remaining;
+    private FileChannel file;
+
+    /**
+     * @param path 文件
+     * @param position 起始偏移
+     * @param count 字节数
+     */
+    public FileRegion(Path path, long position, long count) {
+        this.path = path;
+        this.position = position;
+        this.count = count;
+        this.remaining = count;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * 打开文件，已经打开时直接返回
+     * @return 文件是否存在，不存在说明传输已经结束，这一帧应当整帧丢弃
+     * @throws IOException 如果无法打开文件
+     */
+    public boolean open() throws IOException {
+        if (file == null) {
+            try {
+                file = FileChannel.open(path, StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 把剩余的数据传输到目标通道，调用前需要先打开文件
+     * @param target 目标通道，非阻塞通道可能只写出一部分
+     * @return 是否已全部写出，返回false时等待通道可写后再次调用
+     * @throws IOException 如果读写失败或文件被截断
+     */
+    public boolean transferTo(WritableByteChannel target) throws IOException {
+        while (remaining > 0) {
+            long n = file.transferTo(position, remaining, target);
+            if (n <= 0) {
+                if (position >= file.size()) {
+                    throw new EOFException("文件在传输过程中被截断");
+                }
+                return false;
+            }
+            position += n;
+            remaining -= n;
+        }
+        return true;
+    }
+
+    /**
+     * 把数据读入内存，用于不能直接传输的连接
+     * @return 数据，文件已不存在时返回null
+     * @throws IOException 如果读取失败
+     */
+    public byte[] read() throws IOException {
+        if (!open()) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate((int) count);
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("文件在传输过程中被截断");
+                }
+            }
+            return buffer.array();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * 关闭文件，可以重复调用
+     */
+    public void close() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+            file = null;
+        }
+    }
+}
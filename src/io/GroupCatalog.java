@@ -0,0 +1,134 @@
+package io;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 内存中的群聊表
+ * 第一次使用时把群聊文件（groupId|groupName|members，每行一个）读入内存并重放成员日志，
+ * 维护群ID到名称和成员的映射，以及用户名到所在群ID的倒排索引，登录时组装群聊信息不需要读文件。
+ * 修改时先把事件（新建、添加成员、移除成员、改名）追加到 MembershipLog，再更新内存，
+ * 群聊文件作为快照由后台线程定期重写，格式不变。
+ * 同一个群聊文件只加载一次，所有 FileIO 实例共用
+ */
+public class GroupCatalog extends MembershipCatalog<GroupCatalog.Group> {
+    // 日志达到多少条时重写群聊文件，可以用 -Dchat.server.groups.journal 调整
+    private static final int COMPACT_THRESHOLD = Integer.getInteger("chat.server.groups.journal", 1000);
+
+    private static final Map<Path, GroupCatalog> catalogs = new ConcurrentHashMap<>();
+
+    /**
+     * 一个群聊，成员列表不可修改
+     */
+    static final class Group extends MembershipCatalog.Entry {
+        Group(int id, String name, Collection<String> members) {
+            super(id, name, members);
+        }
+
+        @Override
+        String toRecord() {
+            return id + "|" + name + "|" + String.join(",", members);
+        }
+    }
+
+    private final Map<String, Set<Integer>> groupsByUser = new HashMap<>();
+
+    /**
+     * 获取群聊文件对应的群聊表，第一次使用时从磁盘加载
+     * @param groupFile 群聊文件
+     * @return 群聊表
+     * @throws IllegalStateException 如果该文件已经作为小组文件打开
+     */
+    public static GroupCatalog open(Path groupFile) {
+        Path file = groupFile.toAbsolutePath().normalize();
+        MembershipLog.claim(file, GroupCatalog.class);
+        return catalogs.computeIfAbsent(file, GroupCatalog::new);
+    }
+
+    private GroupCatalog(Path groupFile) {
+        super(groupFile, COMPACT_THRESHOLD, "群聊");
+        loadAll();
+    }
+
+    @Override
+    Group parse(String line) {
+        String[] parts = line.split("\\|");
+        int groupId;
+        try {
+            groupId = Integer.parseInt(parts[0]);
+        } catch (NumberFormatException e) {
+            // 忽略格式错误的群组ID
+            return null;
+        }
+        String name = parts.length >= 2 ? parts[1] : "";
+        return new Group(groupId, name, split(parts.length >= 3 ? parts[2] : ""));
+    }
+
+    @Override
+    Group copy(Group group, String name, Collection<String> members) {
+        return new Group(group.id, name, members);
+    }
+
+    @Override
+    void index(Group group) {
+        for (String member : group.members) {
+            groupsByUser.computeIfAbsent(member, k -> new LinkedHashSet<>()).add(group.id);
+        }
+    }
+
+    @Override
+    void unindex(Group group) {
+        for (String member : group.members) {
+            Set<Integer> ids = groupsByUser.get(member);
+            if (ids != null) {
+                ids.remove(group.id);
+                if (ids.isEmpty()) {
+                    groupsByUser.remove(member);
+                }
+            }
+        }
+    }
+
+    /**
+     * 新建或替换群聊
+     * 已有的群聊只记录名称和成员的变化，不重写整条记录
+     * @throws IOException 如果写入日志失败，此时内存中的群聊不变
+     */
+    public void write(int groupId, String groupName, List<String> members) throws IOException {
+        write(new Group(groupId, groupName, members));
+    }
+
+    /**
+     * @return 用户所在的群ID
+     */
+    public ArrayList<Integer> getGroupsByUser(String username) {
+        lock.readLock().lock();
+        try {
+            Set<Integer> ids = groupsByUser.get(username);
+            return ids == null ? new ArrayList<>() : new ArrayList<>(ids);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return 群名称，可能为空字符串；群聊不存在时返回null
+     */
+    public String getName(int groupId) {
+        lock.readLock().lock();
+        try {
+            Group group = entries.get(groupId);
+            return group == null ? null : group.name;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
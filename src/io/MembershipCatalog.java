@@ -0,0 +1,282 @@
+package io;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 群聊表和小组表共用的部分
+ * 第一次使用时读取快照并重放 MembershipLog 中的事件；修改时先把事件追加到日志再更新内存，
+ * 日志达到一定条数时在后台重写快照。子类负责解析自己的记录格式并维护额外的索引
+ * @param <E> 表中的记录类型
+ */
+abstract class MembershipCatalog<E extends MembershipCatalog.Entry> {
+
+    /**
+     * 一条记录：ID、名称和不可修改的成员列表
+     */
+    abstract static class Entry {
+        final int id;
+        final String name;
+        final List<String> members;
+
+        Entry(int id, String name, Collection<String> members) {
+            this.id = id;
+            this.name = name;
+            this.members = Collections.unmodifiableList(new ArrayList<>(members));
+        }
+
+        /**
+         * @return 快照格式的记录
+         */
+        abstract String toRecord();
+    }
+
+    // 出错信息中的名称，如“群聊”、“小组”
+    private final String kind;
+    private final MembershipLog log;
+    // 按文件中的顺序排列
+    final Map<Integer, E> entries = new LinkedHashMap<>();
+    // 查询共享读锁，写入时独占
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * @param file 快照文件
+     * @param threshold 日志达到多少条时合并
+     * @param kind 出错信息中的名称
+     */
+    MembershipCatalog(Path file, int threshold, String kind) {
+        this.log = new MembershipLog(file, threshold);
+        this.kind = kind;
+    }
+
+    /**
+     * 解析一条快照格式的记录
+     * @return 记录，格式错误时返回null
+     */
+    abstract E parse(String line);
+
+    /**
+     * @return 名称和成员替换后的新记录，其他字段不变
+     */
+    abstract E copy(E entry, String name, Collection<String> members);
+
+    /**
+     * 把记录加入子类的索引
+     */
+    abstract void index(E entry);
+
+    /**
+     * 把记录从子类的索引中移除
+     */
+    abstract void unindex(E entry);
+
+    /**
+     * @return 写入已有记录时是否需要写入整条记录，而不只是名称和成员的变化
+     */
+    boolean replaces(E existing, E updated) {
+        return false;
+    }
+
+    /**
+     * 读取快照并重放日志，子类的索引初始化之后在构造方法的最后调用
+     */
+    final void loadAll() {
+        try {
+            for (String line : log.readSnapshot()) {
+                load(line, false);
+            }
+            List<String> events = log.readEvents();
+            for (String event : events) {
+                load(event, true);
+            }
+            // 上次运行留下的日志在启动时合并
+            if (!events.isEmpty()) {
+                log.compact(records());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 加载一条快照记录或重放一个日志事件
+     * @param event 是否来自日志，日志中的整条记录替换已有的记录
+     */
+    private void load(String line, boolean event) {
+        if (event && MembershipLog.isEvent(line)) {
+            String[] parts = line.split("\\|", 3);
+            try {
+                replay(parts[0], Integer.parseInt(parts[1]), parts.length > 2 ? parts[2] : "");
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                System.err.println("[" + getClass().getSimpleName() + "] 跳过格式错误的事件: " + line);
+            }
+            return;
+        }
+        E entry = parse(line);
+        // 快照中ID重复时以第一条为准
+        if (entry != null && (event || !entries.containsKey(entry.id))) {
+            put(entry);
+        }
+    }
+
+    static List<String> split(String members) {
+        return members.isEmpty() ? Collections.emptyList() : Arrays.asList(members.split(","));
+    }
+
+    /**
+     * 在内存中应用一个成员事件，记录不存在时忽略
+     */
+    private void replay(String type, int id, String value) {
+        E entry = entries.get(id);
+        if (entry == null) {
+            return;
+        }
+        switch (type) {
+            case MembershipLog.ADD: {
+                Set<String> members = new LinkedHashSet<>(entry.members);
+                members.addAll(split(value));
+                put(copy(entry, entry.name, members));
+                break;
+            }
+            case MembershipLog.REMOVE: {
+                List<String> members = new ArrayList<>(entry.members);
+                members.removeAll(split(value));
+                put(copy(entry, entry.name, members));
+                break;
+            }
+            case MembershipLog.RENAME:
+                put(copy(entry, value, entry.members));
+                break;
+            default:
+                System.err.println("[" + getClass().getSimpleName() + "] 未知的事件类型: " + type);
+        }
+    }
+
+    private void put(E entry) {
+        E previous = entries.get(entry.id);
+        if (previous != null) {
+            unindex(previous);
+        }
+        // 已有的记录保持原来的位置
+        entries.put(entry.id, entry);
+        index(entry);
+    }
+
+    /**
+     * 新建或替换记录
+     * 已有的记录只记录名称和成员的变化，replaces 返回true时才写入整条记录
+     * @throws IOException 如果写入日志失败，此时内存中的记录不变
+     */
+    void write(E updated) throws IOException {
+        lock.writeLock().lock();
+        try {
+            E existing = entries.get(updated.id);
+            if (existing == null || replaces(existing, updated)) {
+                apply(updated.toRecord());
+                return;
+            }
+            if (!existing.name.equals(updated.name)) {
+                apply(MembershipLog.rename(updated.id, updated.name));
+            }
+            diffMembers(existing, updated.members);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 添加和移除成员
+     * @throws IOException 如果写入日志失败，此时内存中的记录不变
+     * @throws IllegalArgumentException 如果记录不存在
+     */
+    public void updateMembers(int id, List<String> addUsers, List<String> removeUsers) throws IOException {
+        lock.writeLock().lock();
+        try {
+            E entry = entries.get(id);
+            if (entry == null) {
+                throw new IllegalArgumentException(kind + " " + id + " 不存在，无法修改成员。");
+            }
+            // 添加新成员 (去重)，再移除成员
+            Set<String> members = new LinkedHashSet<>(entry.members);
+            if (addUsers != null) {
+                members.addAll(addUsers);
+            }
+            if (removeUsers != null) {
+                members.removeAll(removeUsers);
+            }
+            diffMembers(entry, new ArrayList<>(members));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 按新旧成员列表的差异写入移除和添加事件，调用方持有写锁
+     */
+    private void diffMembers(E entry, List<String> members) throws IOException {
+        List<String> removed = new ArrayList<>(entry.members);
+        removed.removeAll(members);
+        if (!removed.isEmpty()) {
+            apply(MembershipLog.remove(entry.id, removed));
+        }
+        List<String> added = new ArrayList<>(new LinkedHashSet<>(members));
+        added.removeAll(entry.members);
+        if (!added.isEmpty()) {
+            apply(MembershipLog.add(entry.id, added));
+        }
+    }
+
+    /**
+     * 先写日志再更新内存，调用方持有写锁
+     */
+    private void apply(String event) throws IOException {
+        log.append(event);
+        load(event, true);
+        if (log.needsCompaction()) {
+            log.compact(records());
+        }
+    }
+
+    public boolean exists(int id) {
+        lock.readLock().lock();
+        try {
+            return entries.containsKey(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return 成员的副本，记录不存在时返回null
+     */
+    public ArrayList<String> getMembers(int id) {
+        lock.readLock().lock();
+        try {
+            E entry = entries.get(id);
+            return entry == null ? null : new ArrayList<>(entry.members);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return 快照格式的全部记录
+     */
+    private List<String> records() {
+        List<String> records = new ArrayList<>();
+        for (E entry : entries.values()) {
+            records.add(entry.toRecord());
+        }
+        return records;
+    }
+}
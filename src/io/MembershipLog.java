@@ -0,0 +1,175 @@
+package io;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 群聊和小组成员变化的追加日志
+ * 快照就是原来的数据文件（groups.dat、orgs.dat），日志文件为数据文件名加 .journal，每行一个事件：
+ * 与快照格式相同的整条记录表示新建或替换，另外有 add|id|成员、remove|id|成员、rename|id|名称 三种事件。
+ * 每个事件都是对某个字段的赋值，在任何状态上重放同一段日志得到的结果相同，因此快照和日志之间不需要精确对齐。
+ * 日志达到一定条数时，把当前日志改名为 .compacting，在后台线程中写入新的快照后删除；
+ * 启动时先加载快照，再依次重放 .compacting 和日志
+ */
+final class MembershipLog {
+    // 所有日志共用一个后台合并线程
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "membership-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // 数据文件 -> 使用它的表，群聊文件和小组文件格式不同，同一个文件只能由一种表打开
+    private static final Map<Path, Class<?>> owners = new ConcurrentHashMap<>();
+
+    static final String ADD = "add";
+    static final String REMOVE = "remove";
+    static final String RENAME = "rename";
+
+    private final Path snapshotFile;
+    private final Path journalFile;
+    private final Path compactingFile;
+    private final int threshold;
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    // 当前日志中的事件数，只在持有所属表的写锁时修改
+    private int entries;
+
+    /**
+     * @param snapshotFile 快照文件
+     * @param threshold 日志达到多少条时合并
+     */
+    MembershipLog(Path snapshotFile, int threshold) {
+        this.snapshotFile = snapshotFile;
+        this.journalFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".journal");
+        this.compactingFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".compacting");
+        this.threshold = threshold;
+    }
+
+    /**
+     * 登记数据文件由哪种表使用
+     * @param snapshotFile 规范化的数据文件路径
+     * @param owner 打开该文件的表
+     * @throws IllegalStateException 如果该文件已经由另一种表打开
+     */
+    static void claim(Path snapshotFile, Class<?> owner) {
+        Class<?> existing = owners.putIfAbsent(snapshotFile, owner);
+        if (existing != null && existing != owner) {
+            throw new IllegalStateException(snapshotFile + " 已由 " + existing.getSimpleName()
+                    + " 打开，不能作为 " + owner.getSimpleName() + " 使用");
+        }
+    }
+
+    /**
+     * @return 快照中的记录，快照不存在时返回空列表
+     */
+    List<String> readSnapshot() throws IOException {
+        return Files.exists(snapshotFile) ? Files.readAllLines(snapshotFile, StandardCharsets.UTF_8) : new ArrayList<>();
+    }
+
+    /**
+     * @return 需要在快照之后重放的事件，按写入顺序排列
+     */
+    List<String> readEvents() throws IOException {
+        List<String> events = new ArrayList<>();
+        if (Files.exists(compactingFile)) {
+            events.addAll(Files.readAllLines(compactingFile, StandardCharsets.UTF_8));
+        }
+        if (Files.exists(journalFile)) {
+            List<String> journal = Files.readAllLines(journalFile, StandardCharsets.UTF_8);
+            entries = journal.size();
+            events.addAll(journal);
+        }
+        return events;
+    }
+
+    /**
+     * 追加一个事件，调用方持有所属表的写锁
+     */
+    void append(String event) throws IOException {
+        Files.write(journalFile, (event + "\n").getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        entries++;
+    }
+
+    /**
+     * @return 日志是否已经达到合并的条数
+     */
+    boolean needsCompaction() {
+        return entries >= threshold && !compacting.get();
+    }
+
+    /**
+     * 开始合并，调用方持有所属表的写锁，保证快照内容包含了被改名的日志中的所有事件。
+     * 改名在锁内完成，写快照在后台线程中进行
+     * @param snapshot 当前的全部记录
+     */
+    void compact(List<String> snapshot) {
+        if (!compacting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            // 上次合并失败时 .compacting 还在，这次不改名，日志保留到下次合并
+            if (!Files.exists(compactingFile) && Files.exists(journalFile)) {
+                Files.move(journalFile, compactingFile, StandardCopyOption.ATOMIC_MOVE);
+                entries = 0;
+            }
+        } catch (IOException e) {
+            System.err.println("合并成员日志失败: " + e.getMessage());
+            compacting.set(false);
+            return;
+        }
+        compactor.execute(() -> {
+            try {
+                writeSnapshot(snapshot);
+                Files.deleteIfExists(compactingFile);
+            } catch (IOException e) {
+                // .compacting 保留，启动时仍然会重放
+                System.err.println("写入快照失败: " + e.getMessage());
+            } finally {
+                compacting.set(false);
+            }
+        });
+    }
+
+    private void writeSnapshot(List<String> records) throws IOException {
+        Path temp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (String record : records) {
+                writer.write(record + "\n");
+            }
+        }
+        Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return 是否为 add、remove、rename 事件；整条记录以ID开头，ID可能为负数
+     */
+    static boolean isEvent(String line) {
+        return !line.isEmpty() && Character.isLetter(line.charAt(0));
+    }
+
+    static String add(int id, List<String> members) {
+        return ADD + "|" + id + "|" + String.join(",", members);
+    }
+
+    static String remove(int id, List<String> members) {
+        return REMOVE + "|" + id + "|" + String.join(",", members);
+    }
+
+    static String rename(int id, String name) {
+        return RENAME + "|" + id + "|" + name;
+    }
+}
@@ -0,0 +1,192 @@
+package io;
+
+import info.Org_info;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 内存中的小组表
+ * 第一次使用时读取小组文件（orgId|parentGroupId|orgName|members，每行一个）并重放成员日志，
+ * 按小组ID以及（成员，父群聊ID）建立索引，"成员是否已在某个群聊的小组中"只需要一次哈希查找。
+ * 创建小组和修改成员只把事件（新建、添加成员、移除成员、改名）追加到 MembershipLog 并更新内存，
+ * 小组文件作为快照由后台线程定期重写。
+ * 同一个小组文件只加载一次，所有 FileIO 实例共用
+ */
+public class OrgCatalog extends MembershipCatalog<OrgCatalog.Org> {
+    // 日志达到多少条时合并到小组文件，可以用 -Dchat.server.orgs.journal 调整
+    private static final int COMPACT_THRESHOLD = Integer.getInteger("chat.server.orgs.journal", 1000);
+
+    private static final Map<Path, OrgCatalog> catalogs = new ConcurrentHashMap<>();
+
+    /**
+     * 一个小组，成员列表不可修改
+     */
+    static final class Org extends MembershipCatalog.Entry {
+        final int parentGroupId;
+
+        Org(int id, int parentGroupId, String name, Collection<String> members) {
+            super(id, name, members);
+            this.parentGroupId = parentGroupId;
+        }
+
+        @Override
+        String toRecord() {
+            return id + "|" + parentGroupId + "|" + name + "|" + String.join(",", members);
+        }
+
+        Org_info toInfo() {
+            Org_info info = new Org_info();
+            info.setOrg_id(id);
+            info.setGroup_id(parentGroupId);
+            info.setOrg_name(name);
+            info.setMembers(new ArrayList<>(members));
+            return info;
+        }
+    }
+
+    // 成员 -> 父群聊ID -> 小组ID
+    private final Map<String, Map<Integer, Set<Integer>>> orgsByMember = new HashMap<>();
+
+    /**
+     * 获取小组文件对应的小组表，第一次使用时从磁盘加载
+     * @param orgFile 小组文件
+     * @return 小组表
+     * @throws IllegalStateException 如果该文件已经作为群聊文件打开
+     */
+    public static OrgCatalog open(Path orgFile) {
+        Path file = orgFile.toAbsolutePath().normalize();
+        MembershipLog.claim(file, OrgCatalog.class);
+        return catalogs.computeIfAbsent(file, OrgCatalog::new);
+    }
+
+    private OrgCatalog(Path orgFile) {
+        super(orgFile, COMPACT_THRESHOLD, "小组");
+        loadAll();
+    }
+
+    @Override
+    Org parse(String line) {
+        String[] parts = line.split("\\|");
+        if (parts.length < 3) {
+            if (!line.trim().isEmpty()) {
+                System.err.println("[OrgCatalog] 跳过格式错误的行 (字段数少于3): " + line);
+            }
+            return null;
+        }
+        try {
+            int orgId = Integer.parseInt(parts[0]);
+            int parentGroupId = Integer.parseInt(parts[1]);
+            return new Org(orgId, parentGroupId, parts[2], split(parts.length >= 4 ? parts[3] : ""));
+        } catch (NumberFormatException e) {
+            System.err.println("[OrgCatalog] 无法解析行内数字: " + line);
+            return null;
+        }
+    }
+
+    @Override
+    Org copy(Org org, String name, Collection<String> members) {
+        return new Org(org.id, org.parentGroupId, name, members);
+    }
+
+    @Override
+    void index(Org org) {
+        for (String member : org.members) {
+            orgsByMember.computeIfAbsent(member, k -> new HashMap<>())
+                    .computeIfAbsent(org.parentGroupId, k -> new LinkedHashSet<>())
+                    .add(org.id);
+        }
+    }
+
+    @Override
+    void unindex(Org org) {
+        for (String member : org.members) {
+            Map<Integer, Set<Integer>> byGroup = orgsByMember.get(member);
+            if (byGroup == null) {
+                continue;
+            }
+            Set<Integer> memberOrgs = byGroup.get(org.parentGroupId);
+            if (memberOrgs != null) {
+                memberOrgs.remove(org.id);
+                if (memberOrgs.isEmpty()) {
+                    byGroup.remove(org.parentGroupId);
+                }
+            }
+            if (byGroup.isEmpty()) {
+                orgsByMember.remove(member);
+            }
+        }
+    }
+
+    /**
+     * 父群聊改变时写入整条记录
+     */
+    @Override
+    boolean replaces(Org existing, Org updated) {
+        return existing.parentGroupId != updated.parentGroupId;
+    }
+
+    /**
+     * 新建或替换小组
+     * 已有的小组只记录名称和成员的变化，父群聊改变时才写入整条记录
+     * @throws IOException 如果写入日志失败，此时内存中的小组不变
+     */
+    public void write(int orgId, int parentGroupId, String orgName, List<String> members) throws IOException {
+        write(new Org(orgId, parentGroupId, orgName, new LinkedHashSet<>(members)));
+    }
+
+    /**
+     * @return 小组信息的副本，小组不存在时返回null
+     */
+    public Org_info get(int orgId) {
+        lock.readLock().lock();
+        try {
+            Org org = entries.get(orgId);
+            return org == null ? null : org.toInfo();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return 用户所在的所有小组
+     */
+    public ArrayList<Org_info> getByMember(String username) {
+        lock.readLock().lock();
+        try {
+            ArrayList<Org_info> result = new ArrayList<>();
+            Map<Integer, Set<Integer>> byGroup = orgsByMember.get(username);
+            if (byGroup != null) {
+                for (Set<Integer> ids : byGroup.values()) {
+                    for (Integer id : ids) {
+                        result.add(entries.get(id).toInfo());
+                    }
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return 用户是否已在指定群聊的某个小组中
+     */
+    public boolean isInTeamOfGroup(String username, int parentGroupId) {
+        lock.readLock().lock();
+        try {
+            Map<Integer, Set<Integer>> byGroup = orgsByMember.get(username);
+            return byGroup != null && byGroup.containsKey(parentGroupId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 服务端连接的有界发送队列
+ * 队列中保存已经编码好的帧，由写线程或NIO事件循环依次写出，发送方只负责入队；
+ * 帧的数据区可以是一段文件（FileRegion），写出帧头后直接从文件传输；
+ * 队列满时按 OverflowPolicy 处理，慢速的接收方不会拖住发送方和其他接收方
+ */
+public class OutboundQueue {
+    /**
+     * 队列满时的处理策略，启动时用 -Dchat.server.overflow 选择
+     */
+    public enum OverflowPolicy {
+        DROP_PRESENCE, // 丢弃在线状态通知（后续通知会带上完整的在线列表），队列中全是其他消息时断开
+        DISCONNECT,    // 直接断开慢速的接收方
+        BLOCK          // 阻塞发送方直到队列有空位
+    }
+
+    /**
+     * 入队结果
+     */
+    public enum Result {
+        QUEUED,   // 已入队
+        DROPPED,  // 消息被丢弃，连接保持
+        OVERFLOW  // 队列已满且无法丢弃，调用方应断开连接
+    }
+
+    // 默认容量（帧数），可以用 -Dchat.server.outbound.limit 调整
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("chat.server.outbound.limit", 256);
+    public static final OverflowPolicy DEFAULT_POLICY = parsePolicy(System.getProperty("chat.server.overflow"));
+
+    private static final class Entry {
+        final ByteBuffer frame;
+        final FileRegion region;
+        final boolean droppable;
+
+        Entry(ByteBuffer frame, FileRegion region, boolean droppable) {
+            this.frame = frame;
+            this.region = region;
+            this.droppable = droppable;
+        }
+    }
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private boolean closed = false;
+
+    public OutboundQueue() {
+        this(DEFAULT_CAPACITY, DEFAULT_POLICY);
+    }
+
+    /**
+     * @param capacity 最多排队的帧数
+     * @param policy 队列满时的处理策略
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    private static OverflowPolicy parsePolicy(String value) {
+        if (value == null) {
+            return OverflowPolicy.DROP_PRESENCE;
+        }
+        try {
+            return OverflowPolicy.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("[OutboundQueue] 未知的溢出策略: " + value + "，使用 DROP_PRESENCE");
+            return OverflowPolicy.DROP_PRESENCE;
+        }
+    }
+
+    /**
+     * 帧入队
+     * @param frame 编码好的完整帧
+     * @param droppable 是否允许在队列满时丢弃（在线状态通知）
+     * @return 入队结果
+     */
+    public Result offer(ByteBuffer frame, boolean droppable) {
+        return offer(frame, null, droppable);
+    }
+
+    /**
+     * 帧头和文件中的数据区一起入队
+     * @param header 编码好的帧头，长度前缀已包含数据区
+     * @param region 紧接在帧头之后写出的文件数据，可以为null
+     * @param droppable 是否允许在队列满时丢弃
+     * @return 入队结果
+     */
+    public Result offer(ByteBuffer header, FileRegion region, boolean droppable) {
+        lock.lock();
+        try {
+            if (closed) {
+                return Result.DROPPED;
+            }
+            while (entries.size() >= capacity) {
+                switch (policy) {
+                    case BLOCK:
+                        notFull.await();
+                        if (closed) {
+                            return Result.DROPPED;
+                        }
+                        continue;
+                    case DROP_PRESENCE:
+                        if (droppable) {
+                            return Result.DROPPED;
+                        }
+                        if (evictDroppable()) {
+                            continue;
+                        }
+                        return Result.OVERFLOW;
+                    default:
+                        return Result.OVERFLOW;
+                }
+            }
+            entries.addLast(new Entry(header, region, droppable));
+            return Result.QUEUED;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.DROPPED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 移除最早的一个可丢弃帧，队首可能正在写出，不能移除
+     */
+    private boolean evictDroppable() {
+        Iterator<Entry> it = entries.iterator();
+        if (it.hasNext()) {
+            it.next();
+        }
+        while (it.hasNext()) {
+            if (it.next().droppable) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return 队首的帧，写完后调用 remove 移除；队列为空时返回null
+     */
+    public ByteBuffer peek() {
+        lock.lock();
+        try {
+            Entry head = entries.peekFirst();
+            return head == null ? null : head.frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 队首帧在帧头之后的文件数据区，没有时返回null
+     */
+    public FileRegion peekRegion() {
+        lock.lock();
+        try {
+            Entry head = entries.peekFirst();
+            return head == null ? null : head.region;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 移除已经写完的队首帧
+     */
+    public void remove() {
+        lock.lock();
+        try {
+            entries.pollFirst();
+            notFull.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return entries.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 关闭队列并丢弃未写出的帧，唤醒所有等待的发送方
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (Entry entry : entries) {
+                if (entry.region != null) {
+                    entry.region.close();
+                }
+            }
+            entries.clear();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
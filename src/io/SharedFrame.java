@@ -0,0 +1,52 @@
+package io;
+
+import info.encap_info;
+import io.codec.WireCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * 发送给多个连接的同一条消息
+ * 二进制帧只编码一次（需要时再压缩一次），保存为只读缓冲区，每个接收方的发送队列持有它的一个视图；
+ * Java序列化连接的对象流带有各自的状态，仍然按连接单独编码
+ */
+public final class SharedFrame {
+    private final encap_info message;
+    private ByteBuffer binary; // 第一次发给二进制连接时编码
+    private ByteBuffer compressed; // 第一次发给协商了压缩的连接时压缩
+
+    public SharedFrame(encap_info message) {
+        this.message = message;
+    }
+
+    public encap_info getMessage() {
+        return message;
+    }
+
+    /**
+     * @param compress 接收方是否协商了压缩
+     * @return 编码好的二进制帧的只读视图，位置独立，可以放入任意连接的发送队列
+     * @throws IOException 如果编码失败
+     */
+    public synchronized ByteBuffer binaryFrame(boolean compress) throws IOException {
+        if (binary == null) {
+            binary = ByteBuffer.wrap(WireCodec.encode(message)).asReadOnlyBuffer();
+        }
+        if (!compress || !WireCodec.isCompressible(message, binary.remaining())) {
+            return binary.duplicate();
+        }
+        if (compressed == null) {
+            byte[] frame = new byte[binary.remaining()];
+            binary.duplicate().get(frame);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                compressed = ByteBuffer.wrap(WireCodec.compress(frame, deflater)).asReadOnlyBuffer();
+            } finally {
+                deflater.end();
+            }
+        }
+        return compressed.duplicate();
+    }
+}
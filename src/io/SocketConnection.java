@@ -0,0 +1,108 @@
+package io;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.codec.WireCodec;
+
+/**
+ * 在阻塞Socket上读取消息的连接，客户端和经典服务端核心的每个连接各一个
+ * 第一次读取时完成握手，之后按协商出的线路格式读取
+ */
+public class SocketConnection extends Connection {
+    // 缓冲区大小
+    private static final int BUFFER_SIZE = 8192;
+
+    // 读取时会阻塞在Socket上，使用 ReentrantLock 而不是 synchronized，避免虚拟线程固定在载体线程上
+    private final ReentrantLock readLock = new ReentrantLock();
+    private InputStream rawIn;
+    private DataInputStream dataIn;
+
+    SocketConnection(Socket socket, boolean serverSide) {
+        super(socket, serverSide);
+    }
+
+    /**
+     * 获取客户端Socket上用于读取的连接
+     * @param socket 已连接的Socket
+     * @return 该Socket唯一的连接对象
+     */
+    public static SocketConnection of(Socket socket) {
+        return reader(Connection.of(socket));
+    }
+
+    /**
+     * 获取服务端accept得到的Socket上用于读取的连接
+     * @param socket 服务端accept得到的Socket
+     * @return 该Socket唯一的连接对象
+     */
+    public static SocketConnection accept(Socket socket) {
+        return reader(Connection.accept(socket));
+    }
+
+    private static SocketConnection reader(Connection connection) {
+        if (!(connection instanceof SocketConnection)) {
+            throw new IllegalStateException("该Socket由事件循环读取，不能阻塞读取: " + connection.getSocket());
+        }
+        return (SocketConnection) connection;
+    }
+
+    /**
+     * 读取一条消息
+     * @return 读到的对象，连接关闭或出错时返回null
+     */
+    public Object readMessage() {
+        readLock.lock();
+        try {
+            if (rawIn == null) {
+                rawIn = new BufferedInputStream(getSocket().getInputStream(), BUFFER_SIZE);
+                dataIn = new DataInputStream(rawIn);
+                handshake();
+            }
+            if (getProtocol() == Protocol.BINARY) {
+                byte[] body = WireCodec.readFrameBody(dataIn, maxInboundFrameLength());
+                return decodeBinary(body, 0, body.length);
+            }
+            // 旧客户端每条消息都新建对象流，流头和完整的类描述符随每条消息发送
+            return new ObjectInputStream(rawIn).readObject();
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            readLock.unlock();
+        }
+        return null;
+    }
+
+    /**
+     * 在第一次读取时完成握手
+     * 客户端：二进制格式下等待服务端回送的握手标识
+     * 服务端：查看前4个字节，是握手标识则回送并使用二进制帧，否则回退为Java序列化
+     */
+    private void handshake() throws IOException {
+        if (!isServerSide()) {
+            if (getProtocol() == Protocol.BINARY) {
+                int ack = dataIn.readInt();
+                if (ack != WireCodec.MAGIC) {
+                    throw new StreamCorruptedException("服务端不支持二进制协议，请使用 -Dchat.wire.codec=serial");
+                }
+            }
+            return;
+        }
+        rawIn.mark(4);
+        int head = dataIn.readInt();
+        if (head == WireCodec.MAGIC) {
+            negotiate(Protocol.BINARY);
+        } else {
+            rawIn.reset(); // 旧客户端的Java序列化流头，交给对象流读取
+            negotiate(Protocol.SERIAL);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package io;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 内存中的用户表
+ * 启动时把用户文件（username|password，每行一个）读入哈希表，登录校验和查询不再读文件；
+ * 注册和修改密码追加到同目录下的日志文件（用户文件名加 .journal），格式与用户文件相同，
+ * 读取时后出现的记录覆盖前面的记录。日志超过一定条数时把整个表写回用户文件并清空日志。
+ * 同一个用户文件只加载一次，所有 FileIO 实例共用
+ */
+public class UserStore {
+    // 日志达到多少条时合并到用户文件，可以用 -Dchat.server.users.journal 调整
+    private static final int COMPACT_THRESHOLD = Integer.getInteger("chat.server.users.journal", 1000);
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    private static final Map<Path, UserStore> stores = new ConcurrentHashMap<>();
+
+    private final Path userFile;
+    private final Path journalFile;
+    private final Map<String, String> passwords = new ConcurrentHashMap<>();
+    // 按注册顺序排列的用户名，只在持有锁时修改
+    private final List<String> usernames = new ArrayList<>();
+    // 用户名列表的只读副本，注册新用户后重新生成
+    private volatile List<String> usernameSnapshot = Collections.emptyList();
+    // 写日志和合并时持有；使用 ReentrantLock 以免写文件时把虚拟线程固定在载体线程上
+    private final ReentrantLock lock = new ReentrantLock();
+    private int journalEntries;
+
+    /**
+     * 获取用户文件对应的用户表，第一次使用时从磁盘加载
+     * @param userFile 用户文件
+     * @return 用户表
+     */
+    public static UserStore open(Path userFile) {
+        return stores.computeIfAbsent(userFile.toAbsolutePath().normalize(), UserStore::new);
+    }
+
+    private UserStore(Path userFile) {
+        this.userFile = userFile;
+        this.journalFile = userFile.resolveSibling(userFile.getFileName() + JOURNAL_SUFFIX);
+        try {
+            load();
+            // 上次运行留下的日志在启动时合并，之后的日志只包含本次运行的修改
+            if (journalEntries > 0) {
+                compact();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        usernameSnapshot = Collections.unmodifiableList(new ArrayList<>(usernames));
+    }
+
+    private void load() throws IOException {
+        if (Files.exists(userFile)) {
+            for (String line : Files.readAllLines(userFile, StandardCharsets.UTF_8)) {
+                String[] parts = line.split("\\|");
+                if (parts.length > 0 && !parts[0].trim().isEmpty() && !passwords.containsKey(parts[0])) {
+                    passwords.put(parts[0], parts.length >= 2 ? parts[1] : "");
+                    usernames.add(parts[0]);
+                }
+            }
+        }
+        if (Files.exists(journalFile)) {
+            for (String line : Files.readAllLines(journalFile, StandardCharsets.UTF_8)) {
+                String[] parts = line.split("\\|");
+                if (parts.length < 2 || parts[0].trim().isEmpty()) {
+                    continue;
+                }
+                if (passwords.put(parts[0], parts[1]) == null) {
+                    usernames.add(parts[0]);
+                }
+                journalEntries++;
+            }
+        }
+    }
+
+    public boolean exists(String username) {
+        return username != null && passwords.containsKey(username);
+    }
+
+    public boolean validate(String username, String password) {
+        if (username == null || password == null) {
+            return false;
+        }
+        String stored = passwords.get(username);
+        // 没有密码字段的旧记录不能登录
+        return stored != null && !stored.isEmpty() && stored.equals(password);
+    }
+
+    /**
+     * 注册新用户
+     * @return 是否注册成功，用户名已存在时返回false
+     * @throws IOException 如果写入日志失败，此时用户不会加入内存
+     */
+    public boolean register(String username, String password) throws IOException {
+        lock.lock();
+        try {
+            if (passwords.containsKey(username)) {
+                return false;
+            }
+            append(username, password);
+            passwords.put(username, password);
+            usernames.add(username);
+            usernameSnapshot = Collections.unmodifiableList(new ArrayList<>(usernames));
+            compactIfNeeded();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 修改已有用户的密码
+     * @return 是否修改成功，用户不存在时返回false
+     * @throws IOException 如果写入日志失败，此时密码不变
+     */
+    public boolean updatePassword(String username, String password) throws IOException {
+        lock.lock();
+        try {
+            if (!passwords.containsKey(username)) {
+                return false;
+            }
+            append(username, password);
+            passwords.put(username, password);
+            compactIfNeeded();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 所有用户名，按注册顺序排列
+     */
+    public ArrayList<String> getAllUsers() {
+        return new ArrayList<>(usernameSnapshot);
+    }
+
+    private void append(String username, String password) throws IOException {
+        Files.write(journalFile, (username + "|" + password + "\n").getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        journalEntries++;
+    }
+
+    private void compactIfNeeded() {
+        if (journalEntries < COMPACT_THRESHOLD) {
+            return;
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            // 合并失败不影响已经写入日志的修改，下次达到阈值时重试
+            System.err.println("合并用户日志失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 把整个用户表写入临时文件后替换用户文件，再清空日志。
+     * 替换后、清空前中断时，下次启动重放日志得到的结果相同
+     */
+    private void compact() throws IOException {
+        lock.lock();
+        try {
+            Path temp = userFile.resolveSibling(userFile.getFileName() + ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (String username : usernames) {
+                    writer.write(username + "|" + passwords.get(username) + "\n");
+                }
+            }
+            Files.move(temp, userFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.write(journalFile, new byte[0],
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            journalEntries = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package io.codec;
+
+import info.Chat_info;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import static io.codec.CodecSupport.*;
+
+/**
+ * 聊天消息编解码器
+ */
+public class ChatInfoCodec implements InfoCodec<Chat_info> {
+    private static final int FLAG_GROUP = 1;
+    private static final int FLAG_ORG = 1 << 1;
+    private static final int FLAG_TRANSFERRED = 1 << 2;
+    private static final int FLAG_IMAGE = 1 << 3;
+    private static final int FLAG_REJECTED = 1 << 4;
+
+    @Override
+    public void encode(Chat_info info, DataOutput out) throws IOException {
+        int flags = 0;
+        if (info.isType()) flags |= FLAG_GROUP;
+        if (info.isOrg()) flags |= FLAG_ORG;
+        if (info.getTransfer_status()) flags |= FLAG_TRANSFERRED;
+        if (info.getImageData() != null) flags |= FLAG_IMAGE;
+        if (info.isRejected()) flags |= FLAG_REJECTED;
+        out.writeByte(flags);
+        writeString(out, info.getFrom_username());
+        writeString(out, info.getTo_username());
+        out.writeInt(info.getGroup_id());
+        writeString(out, info.getText());
+        if ((flags & FLAG_IMAGE) != 0) {
+            writeString(out, info.getImageName());
+            writeBytes(out, info.getImageData());
+        }
+    }
+
+    @Override
+    public Chat_info decode(DataInput in) throws IOException {
+        Chat_info info = new Chat_info();
+        int flags = in.readUnsignedByte();
+        info.setType((flags & FLAG_GROUP) != 0);
+        info.setIsOrg((flags & FLAG_ORG) != 0);
+        info.setTransfer_status((flags & FLAG_TRANSFERRED) != 0);
+        info.setRejected((flags & FLAG_REJECTED) != 0);
+        info.setFrom_username(readString(in));
+        info.setTo_username(readString(in));
+        info.setGroup_id(in.readInt());
+        info.setText(readString(in));
+        if ((flags & FLAG_IMAGE) != 0) {
+            String imageName = readString(in);
+            info.setImageData(readBytes(in), imageName);
+        }
+        return info;
+    }
+}
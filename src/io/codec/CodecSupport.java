@@ -0,0 +1,215 @@
+package io.codec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 编解码器共用的基础读写方法
+ * 长度和数量都用变长整数编码，null 编码为 0，其余值编码为 长度+1
+ */
+public final class CodecSupport {
+    // 单个字段允许的最大长度，不超过一帧，防止错误数据导致超大分配
+    private static final int MAX_LENGTH = WireCodec.MAX_FRAME_LENGTH;
+
+    private CodecSupport() {
+    }
+
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("变长整数格式错误");
+    }
+
+    /**
+     * 读取 长度+1 形式的长度字段
+     * @return 实际长度，null 时返回 -1
+     */
+    private static int readLength(DataInput in) throws IOException {
+        int length = readVarInt(in) - 1;
+        if (length < -1 || length > MAX_LENGTH) {
+            throw new StreamCorruptedException("长度字段错误: " + length);
+        }
+        return length;
+    }
+
+    public static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        int length = readLength(in);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static void writeBytes(DataOutput out, byte[] value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        writeVarInt(out, value.length + 1);
+        out.write(value);
+    }
+
+    public static byte[] readBytes(DataInput in) throws IOException {
+        int length = readLength(in);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    public static void writeStringList(DataOutput out, List<String> values) throws IOException {
+        if (values == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        writeVarInt(out, values.size() + 1);
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    public static ArrayList<String> readStringList(DataInput in) throws IOException {
+        int size = readLength(in);
+        if (size < 0) {
+            return null;
+        }
+        ArrayList<String> values = new ArrayList<>(Math.min(size, 1024));
+        for (int i = 0; i < size; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    public static void writeIntList(DataOutput out, List<Integer> values) throws IOException {
+        if (values == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        writeVarInt(out, values.size() + 1);
+        for (Integer value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    public static ArrayList<Integer> readIntList(DataInput in) throws IOException {
+        int size = readLength(in);
+        if (size < 0) {
+            return null;
+        }
+        ArrayList<Integer> values = new ArrayList<>(Math.min(size, 1024));
+        for (int i = 0; i < size; i++) {
+            values.add(in.readInt());
+        }
+        return values;
+    }
+
+    /**
+     * 写出 ID -> 成员列表 的映射（群聊、小组同步用）
+     */
+    public static void writeMemberMap(DataOutput out, Map<Integer, ArrayList<String>> map) throws IOException {
+        if (map == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        writeVarInt(out, map.size() + 1);
+        for (Map.Entry<Integer, ArrayList<String>> entry : map.entrySet()) {
+            out.writeInt(entry.getKey());
+            writeStringList(out, entry.getValue());
+        }
+    }
+
+    public static Map<Integer, ArrayList<String>> readMemberMap(DataInput in) throws IOException {
+        int size = readLength(in);
+        if (size < 0) {
+            return null;
+        }
+        Map<Integer, ArrayList<String>> map = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            int key = in.readInt();
+            map.put(key, readStringList(in));
+        }
+        return map;
+    }
+
+    /**
+     * 写出 ID -> 名称 的映射
+     */
+    public static void writeNameMap(DataOutput out, Map<Integer, String> map) throws IOException {
+        if (map == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        writeVarInt(out, map.size() + 1);
+        for (Map.Entry<Integer, String> entry : map.entrySet()) {
+            out.writeInt(entry.getKey());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    public static Map<Integer, String> readNameMap(DataInput in) throws IOException {
+        int size = readLength(in);
+        if (size < 0) {
+            return null;
+        }
+        Map<Integer, String> map = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            int key = in.readInt();
+            map.put(key, readString(in));
+        }
+        return map;
+    }
+
+    /**
+     * 枚举按 ordinal+1 写成一个字节，null 写 0
+     */
+    public static void writeEnum(DataOutput out, Enum<?> value) throws IOException {
+        out.writeByte(value == null ? 0 : value.ordinal() + 1);
+    }
+
+    public static <E extends Enum<E>> E readEnum(DataInput in, Class<E> type) throws IOException {
+        int ordinal = in.readUnsignedByte() - 1;
+        if (ordinal < 0) {
+            return null;
+        }
+        E[] values = type.getEnumConstants();
+        if (ordinal >= values.length) {
+            throw new StreamCorruptedException("未知的枚举值: " + type.getSimpleName() + "#" + ordinal);
+        }
+        return values[ordinal];
+    }
+}
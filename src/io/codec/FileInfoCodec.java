@@ -0,0 +1,68 @@
+package io.codec;
+
+import info.File_info;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import static io.codec.CodecSupport.*;
+
+/**
+ * 文件传输消息编解码器
+ * 文件数据固定写在最后，便于以后直接把数据区流式写入连接
+ */
+public class FileInfoCodec implements InfoCodec<File_info> {
+    private static final int FLAG_GROUP = 1;
+    private static final int FLAG_INFO_ONLY = 1 << 1;
+    private static final int FLAG_IMAGE = 1 << 2;
+
+    @Override
+    public void encode(File_info info, DataOutput out) throws IOException {
+        int flags = 0;
+        if (info.isGroupFile()) flags |= FLAG_GROUP;
+        if (info.isInfoOnly()) flags |= FLAG_INFO_ONLY;
+        if (info.isImage()) flags |= FLAG_IMAGE;
+        out.writeByte(flags);
+        writeString(out, info.getFileId());
+        writeString(out, info.getFileName());
+        out.writeLong(info.getFileSize());
+        writeString(out, info.getFromUsername());
+        writeString(out, info.getToUsername());
+        out.writeInt(info.getGroupId());
+        writeString(out, info.getFileDescription());
+        writeString(out, info.getMimeType());
+        writeEnum(out, info.getStage());
+        writeVarInt(out, info.getChunkIndex());
+        writeVarInt(out, info.getChunkCount());
+        writeVarInt(out, info.getChunkSize());
+        writeString(out, info.getChecksum());
+        writeBytes(out, info.getChunkBitmap());
+        writeBytes(out, info.getFileData());
+    }
+
+    @Override
+    public File_info decode(DataInput in) throws IOException {
+        File_info info = new File_info();
+        int flags = in.readUnsignedByte();
+        info.setFileId(readString(in));
+        info.setFileName(readString(in)); // 会根据文件名推断图片类型，下面再用原值覆盖
+        info.setFileSize(in.readLong());
+        info.setFromUsername(readString(in));
+        info.setToUsername(readString(in));
+        info.setGroupId(in.readInt());
+        info.setFileDescription(readString(in));
+        info.setMimeType(readString(in));
+        info.setStage(readEnum(in, File_info.TransferStage.class));
+        info.setChunkIndex(readVarInt(in));
+        info.setChunkCount(readVarInt(in));
+        info.setChunkSize(readVarInt(in));
+        info.setChecksum(readString(in));
+        info.setChunkBitmap(readBytes(in));
+        info.setGroupFile((flags & FLAG_GROUP) != 0);
+        info.setInfoOnly((flags & FLAG_INFO_ONLY) != 0);
+        info.setImage((flags & FLAG_IMAGE) != 0);
+        info.setFileData(readBytes(in));
+        return info;
+    }
+}
@@ -0,0 +1,44 @@
+package io.codec;
+
+import info.Group_info;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import static io.codec.CodecSupport.*;
+
+/**
+ * 群聊管理消息编解码器
+ */
+public class GroupInfoCodec implements InfoCodec<Group_info> {
+    private static final int FLAG_ESTABLISH = 1;
+    private static final int FLAG_EXIST = 1 << 1;
+
+    @Override
+    public void encode(Group_info info, DataOutput out) throws IOException {
+        int flags = 0;
+        if (info.isEstablish()) flags |= FLAG_ESTABLISH;
+        if (info.isExist()) flags |= FLAG_EXIST;
+        out.writeByte(flags);
+        out.writeInt(info.get_Group_id());
+        writeString(out, info.get_Group_name());
+        writeStringList(out, info.getMembers());
+        writeStringList(out, info.get_added_people());
+        writeStringList(out, info.get_removed_people());
+    }
+
+    @Override
+    public Group_info decode(DataInput in) throws IOException {
+        Group_info info = new Group_info();
+        int flags = in.readUnsignedByte();
+        info.setEstablish((flags & FLAG_ESTABLISH) != 0);
+        info.setExist((flags & FLAG_EXIST) != 0);
+        info.set_Group_id(in.readInt());
+        info.set_Group_name(readString(in));
+        info.setMembers(readStringList(in));
+        info.set_added_people(readStringList(in));
+        info.set_removed_people(readStringList(in));
+        return info;
+    }
+}
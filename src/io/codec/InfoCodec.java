@@ -0,0 +1,28 @@
+package io.codec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * 消息体编解码器接口
+ * 每种info类对应一个实现，负责把对象写成紧凑的二进制格式并读回
+ * @param <T> 要编解码的info类型
+ */
+public interface InfoCodec<T> {
+    /**
+     * 编码
+     * @param info 要编码的对象，不为null
+     * @param out 输出
+     * @throws IOException 如果写入失败
+     */
+    void encode(T info, DataOutput out) throws IOException;
+
+    /**
+     * 解码
+     * @param in 输入
+     * @return 解码得到的对象
+     * @throws IOException 如果读取失败或数据格式错误
+     */
+    T decode(DataInput in) throws IOException;
+}
@@ -0,0 +1,65 @@
+package io.codec;
+
+import info.Login_info;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import static io.codec.CodecSupport.*;
+
+/**
+ * 登录消息编解码器，包括登录时同步的群聊和小组快照
+ */
+public class LoginInfoCodec implements InfoCodec<Login_info> {
+    private static final int FLAG_KICKED = 1;
+    private static final int FLAG_SUCCESS_PRESENT = 1 << 1;
+    private static final int FLAG_SUCCESS = 1 << 2;
+    private static final int FLAG_COMPRESSION = 1 << 3;
+    private static final int FLAG_CHUNKED = 1 << 4;
+
+    @Override
+    public void encode(Login_info info, DataOutput out) throws IOException {
+        int flags = 0;
+        if (info.isKicked()) flags |= FLAG_KICKED;
+        if (info.isCompression()) flags |= FLAG_COMPRESSION;
+        if (info.isChunkedTransfer()) flags |= FLAG_CHUNKED;
+        Boolean success = info.getLoginSuccessFlag();
+        if (success != null) {
+            flags |= FLAG_SUCCESS_PRESENT;
+            if (success) flags |= FLAG_SUCCESS;
+        }
+        out.writeByte(flags);
+        writeString(out, info.getUserName());
+        writeString(out, info.getPassword());
+        writeStringList(out, info.getOnlineUsers());
+        writeStringList(out, info.getAllUsers());
+        writeIntList(out, info.getGroupIDList());
+        writeMemberMap(out, info.getGroupMap());
+        writeNameMap(out, info.getGroupNameMap());
+        writeIntList(out, info.getOrgIDList());
+        writeMemberMap(out, info.getOrgMap());
+        writeNameMap(out, info.getOrgNameMap());
+    }
+
+    @Override
+    public Login_info decode(DataInput in) throws IOException {
+        Login_info info = new Login_info();
+        int flags = in.readUnsignedByte();
+        info.setKicked((flags & FLAG_KICKED) != 0);
+        info.setCompression((flags & FLAG_COMPRESSION) != 0);
+        info.setChunkedTransfer((flags & FLAG_CHUNKED) != 0);
+        info.setLoginSuccessFlag((flags & FLAG_SUCCESS_PRESENT) != 0 ? (flags & FLAG_SUCCESS) != 0 : null);
+        info.setUserName(readString(in));
+        info.setPassword(readString(in));
+        info.setOnlineUsers(readStringList(in));
+        info.setAllUsers(readStringList(in));
+        info.setGroupIDList(readIntList(in));
+        info.setGroupMap(readMemberMap(in));
+        info.setGroupNameMap(readNameMap(in));
+        info.setOrgIDList(readIntList(in));
+        info.setOrgMap(readMemberMap(in));
+        info.setOrgNameMap(readNameMap(in));
+        return info;
+    }
+}
@@ -0,0 +1,50 @@
+package io.codec;
+
+import info.Org_info;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import static io.codec.CodecSupport.*;
+
+/**
+ * 小组消息编解码器
+ */
+public class OrgInfoCodec implements InfoCodec<Org_info> {
+    private static final int FLAG_EXIST = 1;
+    private static final int FLAG_SUCCESS = 1 << 1;
+
+    @Override
+    public void encode(Org_info info, DataOutput out) throws IOException {
+        int flags = 0;
+        if (info.isExist()) flags |= FLAG_EXIST;
+        if (info.isSuccess()) flags |= FLAG_SUCCESS;
+        out.writeByte(flags);
+        out.writeByte(info.getType());
+        out.writeInt(info.getGroup_id());
+        out.writeInt(info.getOrg_id());
+        writeString(out, info.getOrg_name());
+        writeString(out, info.getFromUser());
+        writeStringList(out, info.getMembers());
+        writeStringList(out, info.getAdded_people());
+        writeStringList(out, info.getRemoved_people());
+    }
+
+    @Override
+    public Org_info decode(DataInput in) throws IOException {
+        Org_info info = new Org_info();
+        int flags = in.readUnsignedByte();
+        info.setExist((flags & FLAG_EXIST) != 0);
+        info.setSuccess((flags & FLAG_SUCCESS) != 0);
+        info.setType(in.readByte());
+        info.setGroup_id(in.readInt());
+        info.setOrg_id(in.readInt());
+        info.setOrg_name(readString(in));
+        info.setFromUser(readString(in));
+        info.setMembers(readStringList(in));
+        info.setAdded_people(readStringList(in));
+        info.setRemoved_people(readStringList(in));
+        return info;
+    }
+}
@@ -0,0 +1,30 @@
+package io.codec;
+
+import info.Reg_info;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import static io.codec.CodecSupport.*;
+
+/**
+ * 注册消息编解码器
+ */
+public class RegInfoCodec implements InfoCodec<Reg_info> {
+    @Override
+    public void encode(Reg_info info, DataOutput out) throws IOException {
+        writeString(out, info.getUsername());
+        writeString(out, info.getPassword());
+        writeVarInt(out, info.getReg_status());
+    }
+
+    @Override
+    public Reg_info decode(DataInput in) throws IOException {
+        Reg_info info = new Reg_info();
+        info.setUsername(readString(in));
+        info.setPassword(readString(in));
+        info.setReg_status(readVarInt(in));
+        return info;
+    }
+}
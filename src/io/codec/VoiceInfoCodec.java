@@ -0,0 +1,46 @@
+package io.codec;
+
+import info.Voice_info;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import static io.codec.CodecSupport.*;
+
+/**
+ * 语音通话信令编解码器
+ */
+public class VoiceInfoCodec implements InfoCodec<Voice_info> {
+    @Override
+    public void encode(Voice_info info, DataOutput out) throws IOException {
+        out.writeInt(info.getCall_id());
+        out.writeInt(info.getConference_id());
+        out.writeBoolean(info.isIs_conference());
+        writeEnum(out, info.getStatus());
+        writeEnum(out, info.getCallType());
+        writeString(out, info.getFrom_username());
+        writeStringList(out, info.getParticipants());
+        writeString(out, info.getHost());
+        writeString(out, info.getServerDetectedHost());
+        out.writeInt(info.getPort());
+        writeString(out, info.getError_message());
+    }
+
+    @Override
+    public Voice_info decode(DataInput in) throws IOException {
+        Voice_info info = new Voice_info();
+        info.setCall_id(in.readInt());
+        info.setConference_id(in.readInt());
+        info.setIs_conference(in.readBoolean());
+        info.setStatus(readEnum(in, Voice_info.CallStatus.class));
+        info.setCallType(readEnum(in, Voice_info.CallType.class));
+        info.setFrom_username(readString(in));
+        info.setParticipants(readStringList(in));
+        info.setHost(readString(in));
+        info.setServerDetectedHost(readString(in));
+        info.setPort(in.readInt());
+        info.setError_message(readString(in));
+        return info;
+    }
+}
@@ -0,0 +1,379 @@
+package io.codec;
+
+import info.File_info;
+import info.encap_info;
+import io.FileChunks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * encap_info 的二进制帧编解码
+ * 帧格式：[int 长度][byte 消息类型][byte 内容掩码][各info的消息体...]
+ * 长度不包含自身的4个字节；掩码标记封装中哪些info非空，消息体按固定顺序排列，
+ * 文件信息总是最后一个。
+ * 压缩帧：[int 长度][byte 消息类型|0x80][int 原始长度][Deflate 压缩的 掩码+消息体]
+ */
+public final class WireCodec {
+    // 二进制协议握手标识 "CHB1"，客户端连接后首先发送，服务端原样回送表示接受
+    public static final int MAGIC = 0x43484231;
+    // 单帧最大长度：最大的文件数据块加上帧头的余量。长度前缀在登录前就会被读取，不能信任对端声明的长度
+    public static final int MAX_FRAME_LENGTH = FileChunks.MAX_CHUNK_SIZE + 64 * 1024;
+    // 登录消息（登录回执、上下线通知）带有全部注册用户，用户很多时会超过 MAX_FRAME_LENGTH，单独限制，
+    // 可以用 -Dchat.wire.maxLoginFrameMB 调整。只有客户端接受这样的大帧，服务端读取的帧仍然受 MAX_FRAME_LENGTH 限制
+    public static final int MAX_LOGIN_FRAME_LENGTH = Math.max(MAX_FRAME_LENGTH,
+            Math.min(1024, Integer.getInteger("chat.wire.maxLoginFrameMB", 64)) * 1024 * 1024);
+    // 登录消息的消息类型
+    private static final int LOGIN_TYPE = 3;
+
+    private static final int HAS_CHAT = 1;
+    private static final int HAS_GROUP = 1 << 1;
+    private static final int HAS_LOGIN = 1 << 2;
+    private static final int HAS_REG = 1 << 3;
+    private static final int HAS_ORG = 1 << 4;
+    private static final int HAS_VOICE = 1 << 5;
+    private static final int HAS_FILE = 1 << 6;
+
+    // 消息类型字节的最高位，标记帧内容经过压缩
+    private static final int COMPRESSED = 0x80;
+    // 超过该长度的帧才尝试压缩，可以用 -Dchat.wire.compress.threshold 调整
+    public static final int COMPRESSION_THRESHOLD = Integer.getInteger("chat.wire.compress.threshold", 1024);
+    // deflate 的压缩比不超过约 1032:1，声明的原始长度超过这个比例的帧一定是伪造的
+    private static final int MAX_DEFLATE_RATIO = 1032;
+    // 本身已经压缩过的文件类型，压缩只会浪费CPU
+    private static final Set<String> INCOMPRESSIBLE_TYPES = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "webp", "zip", "rar", "7z", "gz", "bz2", "xz",
+            "mp3", "mp4", "avi", "mkv", "mov", "flac", "aac", "ogg", "docx", "xlsx", "pptx", "jar"));
+
+    private static final ChatInfoCodec CHAT_CODEC = new ChatInfoCodec();
+    private static final GroupInfoCodec GROUP_CODEC = new GroupInfoCodec();
+    private static final LoginInfoCodec LOGIN_CODEC = new LoginInfoCodec();
+    private static final RegInfoCodec REG_CODEC = new RegInfoCodec();
+    private static final OrgInfoCodec ORG_CODEC = new OrgInfoCodec();
+    private static final VoiceInfoCodec VOICE_CODEC = new VoiceInfoCodec();
+    private static final FileInfoCodec FILE_CODEC = new FileInfoCodec();
+
+    private WireCodec() {
+    }
+
+    /**
+     * @param type 消息类型
+     * @return 该类型的消息编码后允许的最大帧长度（不含长度前缀）
+     */
+    public static int maxFrameLength(int type) {
+        return type == LOGIN_TYPE ? MAX_LOGIN_FRAME_LENGTH : MAX_FRAME_LENGTH;
+    }
+
+    /**
+     * 把消息编码为完整的帧（包含长度前缀）
+     * @param info 要编码的消息
+     * @return 帧字节
+     * @throws IOException 如果编码失败，或帧长度超过接收方接受的上限
+     */
+    public static byte[] encode(encap_info info) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(0); // 长度占位
+        writeBody(info, out);
+        out.flush();
+        byte[] frame = buffer.toByteArray();
+        int length = frame.length - 4;
+        checkLength(info.get_type(), length);
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+
+    /**
+     * 编码文件数据放在帧外的文件消息
+     * 返回的帧头包含除文件数据以外的全部内容，长度前缀已经计入数据区，调用方紧接着写出dataLength字节的文件数据，
+     * 对端按普通帧解码。文件数据是帧的最后一个字段，因此可以直接从磁盘传输到连接
+     * @param info 文件数据为空的文件消息
+     * @param dataLength 文件数据的长度
+     * @return 帧头字节
+     * @throws IOException 如果编码失败，或帧长度超过接收方接受的上限
+     */
+    public static byte[] encodeWithTrailingData(encap_info info, int dataLength) throws IOException {
+        File_info file = info.get_file_info();
+        if (file == null || file.getFileData() != null) {
+            throw new IllegalArgumentException("只有文件数据为空的文件消息可以把数据放在帧外");
+        }
+        byte[] frame = encode(info);
+        // 最后一个字节是空文件数据的长度标记0，换成实际长度
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(frame.length + 4);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.write(frame, 0, frame.length - 1);
+        CodecSupport.writeVarInt(out, dataLength + 1);
+        out.flush();
+        byte[] header = buffer.toByteArray();
+        long length = header.length - 4L + dataLength;
+        checkLength(info.get_type(), length);
+        header[0] = (byte) (length >>> 24);
+        header[1] = (byte) (length >>> 16);
+        header[2] = (byte) (length >>> 8);
+        header[3] = (byte) length;
+        return header;
+    }
+
+    /**
+     * 发送前检查帧长度，超过上限的帧接收方会当作错误数据断开连接，不能发出
+     */
+    private static void checkLength(int type, long length) throws IOException {
+        if (length > maxFrameLength(type)) {
+            throw new IOException("消息过大，无法发送: 帧长度 " + length + " 超过上限 " + maxFrameLength(type));
+        }
+    }
+
+    /**
+     * 判断消息是否值得压缩：帧足够大，且携带的文件不是已压缩的格式
+     * @param info 消息
+     * @param frameLength 未压缩的帧长度
+     * @return 是否尝试压缩
+     */
+    public static boolean isCompressible(encap_info info, int frameLength) {
+        if (frameLength < COMPRESSION_THRESHOLD) {
+            return false;
+        }
+        File_info file = info.get_file_info();
+        if (file == null || file.getFileData() == null || file.getFileName() == null) {
+            return true;
+        }
+        String name = file.getFileName();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 || !INCOMPRESSIBLE_TYPES.contains(name.substring(dot + 1).toLowerCase());
+    }
+
+    /**
+     * 压缩一个完整的帧
+     * @param frame encode 得到的帧
+     * @param deflater 连接持有的压缩器，调用方负责并发控制
+     * @return 压缩后的帧，压缩没有收益时返回原帧
+     */
+    public static byte[] compress(byte[] frame, Deflater deflater) {
+        int rawLength = frame.length - 5; // 掩码和消息体的长度
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(rawLength / 2 + 16);
+        buffer.write(0);
+        buffer.write(0);
+        buffer.write(0);
+        buffer.write(0);
+        buffer.write(frame[4] | COMPRESSED);
+        buffer.write(rawLength >>> 24);
+        buffer.write(rawLength >>> 16);
+        buffer.write(rawLength >>> 8);
+        buffer.write(rawLength);
+        deflater.reset();
+        deflater.setInput(frame, 5, rawLength);
+        deflater.finish();
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(chunk);
+            buffer.write(chunk, 0, n);
+            if (buffer.size() >= frame.length) {
+                return frame; // 压缩后不会更小
+            }
+        }
+        byte[] compressed = buffer.toByteArray();
+        int length = compressed.length - 4;
+        compressed[0] = (byte) (length >>> 24);
+        compressed[1] = (byte) (length >>> 16);
+        compressed[2] = (byte) (length >>> 8);
+        compressed[3] = (byte) length;
+        return compressed;
+    }
+
+    /**
+     * 写出一帧
+     * @param out 输出流
+     * @param info 要写出的消息
+     * @throws IOException 如果写入失败
+     */
+    public static void writeFrame(DataOutputStream out, encap_info info) throws IOException {
+        out.write(encode(info));
+    }
+
+    /**
+     * 读取一帧，阻塞直到整帧到达
+     * @param in 输入流
+     * @return 解码后的消息
+     * @throws IOException 如果读取失败或帧格式错误
+     */
+    public static encap_info readFrame(DataInputStream in) throws IOException {
+        byte[] body = readFrameBody(in);
+        return decode(body, 0, body.length);
+    }
+
+    /**
+     * 读取一帧的内容（不含长度前缀），不解码
+     * @param in 输入流
+     * @return 帧内容
+     * @throws IOException 如果读取失败或帧长度错误
+     */
+    public static byte[] readFrameBody(DataInputStream in) throws IOException {
+        return readFrameBody(in, MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * 读取一帧的内容（不含长度前缀），不解码
+     * @param in 输入流
+     * @param maxLength 本端接受的最大帧长度，超过 MAX_FRAME_LENGTH 的帧只能是登录消息
+     * @return 帧内容
+     * @throws IOException 如果读取失败或帧长度错误
+     */
+    public static byte[] readFrameBody(DataInputStream in, int maxLength) throws IOException {
+        int length = in.readInt();
+        if (length < 2 || length > maxLength) {
+            throw new StreamCorruptedException("帧长度错误: " + length);
+        }
+        byte[] body;
+        if (length > MAX_FRAME_LENGTH) {
+            // 先读消息类型，不是登录消息时不分配整帧
+            int type = in.readUnsignedByte();
+            if (length > maxFrameLength(type & ~COMPRESSED)) {
+                throw new StreamCorruptedException("帧长度错误: " + length);
+            }
+            body = new byte[length];
+            body[0] = (byte) type;
+            in.readFully(body, 1, length - 1);
+        } else {
+            body = new byte[length];
+            in.readFully(body);
+        }
+        return body;
+    }
+
+    /**
+     * @param body 缓冲区
+     * @param offset 帧内容起始位置（不含长度前缀）
+     * @return 该帧是否经过压缩
+     */
+    public static boolean isCompressed(byte[] body, int offset) {
+        return (body[offset] & COMPRESSED) != 0;
+    }
+
+    /**
+     * 解码不含长度前缀的帧内容
+     * @param body 缓冲区
+     * @param offset 起始位置
+     * @param length 帧内容长度
+     * @return 解码后的消息
+     * @throws IOException 如果帧格式错误
+     */
+    public static encap_info decode(byte[] body, int offset, int length) throws IOException {
+        return decode(body, offset, length, null);
+    }
+
+    /**
+     * 解码不含长度前缀的帧内容，支持压缩帧
+     * @param body 缓冲区
+     * @param offset 起始位置
+     * @param length 帧内容长度
+     * @param inflater 连接持有的解压器，为null时不接受压缩帧
+     * @return 解码后的消息
+     * @throws IOException 如果帧格式错误
+     */
+    public static encap_info decode(byte[] body, int offset, int length, Inflater inflater) throws IOException {
+        return decode(body, offset, length, inflater, MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * 解码不含长度前缀的帧内容，支持压缩帧
+     * @param body 缓冲区
+     * @param offset 起始位置
+     * @param length 帧内容长度
+     * @param inflater 连接持有的解压器，为null时不接受压缩帧
+     * @param maxLength 本端接受的最大帧长度，限制压缩帧解压后的长度，超过 MAX_FRAME_LENGTH 的只能是登录消息
+     * @return 解码后的消息
+     * @throws IOException 如果帧格式错误
+     */
+    public static encap_info decode(byte[] body, int offset, int length, Inflater inflater, int maxLength) throws IOException {
+        int type = body[offset] & 0xFF;
+        if ((type & COMPRESSED) != 0) {
+            if (inflater == null || length < 5) {
+                throw new StreamCorruptedException("收到未协商的压缩帧");
+            }
+            int rawLength = ((body[offset + 1] & 0xFF) << 24) | ((body[offset + 2] & 0xFF) << 16)
+                    | ((body[offset + 3] & 0xFF) << 8) | (body[offset + 4] & 0xFF);
+            if (rawLength < 1 || rawLength > Math.min(maxLength, maxFrameLength(type & ~COMPRESSED)) - 1
+                    || rawLength > (long) (length - 5) * MAX_DEFLATE_RATIO) {
+                throw new StreamCorruptedException("压缩帧原始长度错误: " + rawLength);
+            }
+            byte[] raw = new byte[rawLength + 1];
+            raw[0] = (byte) (type & ~COMPRESSED);
+            inflater.reset();
+            inflater.setInput(body, offset + 5, length - 5);
+            try {
+                int n = 1;
+                while (n < raw.length && !inflater.finished()) {
+                    int read = inflater.inflate(raw, n, raw.length - n);
+                    if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    n += read;
+                }
+                if (n != raw.length || !inflater.finished()) {
+                    throw new StreamCorruptedException("压缩帧长度不符");
+                }
+            } catch (DataFormatException e) {
+                throw new StreamCorruptedException("压缩帧格式错误: " + e.getMessage());
+            }
+            body = raw;
+            offset = 0;
+            length = raw.length;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, offset, length));
+        encap_info info = readBody(in);
+        if (in.available() > 0) {
+            throw new StreamCorruptedException("帧尾部存在多余数据: " + in.available() + " 字节");
+        }
+        return info;
+    }
+
+    private static void writeBody(encap_info info, DataOutput out) throws IOException {
+        int mask = 0;
+        if (info.get_chat_info() != null) mask |= HAS_CHAT;
+        if (info.get_group_info() != null) mask |= HAS_GROUP;
+        if (info.get_login_info() != null) mask |= HAS_LOGIN;
+        if (info.get_reg_info() != null) mask |= HAS_REG;
+        if (info.get_org_info() != null) mask |= HAS_ORG;
+        if (info.get_voice_info() != null) mask |= HAS_VOICE;
+        if (info.get_file_info() != null) mask |= HAS_FILE;
+
+        out.writeByte(info.get_type());
+        out.writeByte(mask);
+        if ((mask & HAS_CHAT) != 0) CHAT_CODEC.encode(info.get_chat_info(), out);
+        if ((mask & HAS_GROUP) != 0) GROUP_CODEC.encode(info.get_group_info(), out);
+        if ((mask & HAS_LOGIN) != 0) LOGIN_CODEC.encode(info.get_login_info(), out);
+        if ((mask & HAS_REG) != 0) REG_CODEC.encode(info.get_reg_info(), out);
+        if ((mask & HAS_ORG) != 0) ORG_CODEC.encode(info.get_org_info(), out);
+        if ((mask & HAS_VOICE) != 0) VOICE_CODEC.encode(info.get_voice_info(), out);
+        if ((mask & HAS_FILE) != 0) FILE_CODEC.encode(info.get_file_info(), out);
+    }
+
+    private static encap_info readBody(DataInput in) throws IOException {
+        encap_info info = new encap_info();
+        info.set_type(in.readUnsignedByte());
+        int mask = in.readUnsignedByte();
+        if ((mask & HAS_CHAT) != 0) info.set_chat_info(CHAT_CODEC.decode(in));
+        if ((mask & HAS_GROUP) != 0) info.set_group_info(GROUP_CODEC.decode(in));
+        if ((mask & HAS_LOGIN) != 0) info.set_login_info(LOGIN_CODEC.decode(in));
+        if ((mask & HAS_REG) != 0) info.set_reg_info(REG_CODEC.decode(in));
+        if ((mask & HAS_ORG) != 0) info.set_org_info(ORG_CODEC.decode(in));
+        if ((mask & HAS_VOICE) != 0) info.set_voice_info(VOICE_CODEC.decode(in));
+        if ((mask & HAS_FILE) != 0) info.set_file_info(FILE_CODEC.decode(in));
+        return info;
+    }
+}
@@ -0,0 +1,403 @@
+package io.history;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 一个会话的全文索引，词项到记录序号的倒排表
+ * 消息内容中连续的汉字（以及假名、韩文）按相邻两个字切成词项，只有一个字时单独作为词项；
+ * 连续的字母和数字作为一个词项，统一小写。
+ * 索引文件（会话目录下的 search.idx）只追加：每批记录写入若干行"词项\t序号 序号 ..."，再写一行"\t下一条未索引的序号"。
+ * 追加新记录只需要文件末尾的"下一条未索引的序号"，不加载倒排表；搜索时才加载并合并同一词项的各行，
+ * 加载后行数远多于词项数时重写
+ */
+final class HistoryIndex {
+    private static final String INDEX_FILE = "search.idx";
+    // 每批索引的记录数
+    private static final int BATCH = 4096;
+    // 文件行数超过词项数的多少倍时重写
+    private static final int COMPACT_FACTOR = 4;
+    // 从文件末尾向前查找序号行时每次读取的字节数
+    private static final int TAIL_BLOCK = 8192;
+
+    /**
+     * 一个词项的倒排表，序号递增
+     */
+    private static final class Postings {
+        long[] seqs = new long[4];
+        int size;
+
+        void add(long seq) {
+            // 重新索引上次没有写完的一批时跳过已有的序号
+            if (size > 0 && seqs[size - 1] >= seq) {
+                return;
+            }
+            if (size == seqs.length) {
+                seqs = Arrays.copyOf(seqs, size * 2);
+            }
+            seqs[size++] = seq;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(seqs, size);
+        }
+    }
+
+    private final Path file;
+    // 倒排表，搜索时才加载，release 后为null
+    private Map<String, Postings> terms;
+    // 下一条未索引的记录序号
+    private long next;
+    // 文件行数，只在倒排表已加载时有效
+    private long lines;
+    // 使用 ReentrantLock 以免写文件时把虚拟线程固定在载体线程上
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 只读取索引文件末尾的序号，倒排表在第一次搜索时加载
+     */
+    HistoryIndex(Path dir) throws IOException {
+        this.file = dir.resolve(INDEX_FILE);
+        if (Files.exists(file)) {
+            next = readNext(file);
+        }
+    }
+
+    /**
+     * 从文件末尾向前查找最后一个完整的"\t序号"行，异常退出时写了一半的行和没有写完的一批跳过，这一批会重新索引
+     * @return 下一条未索引的序号，没有序号行时返回0
+     */
+    private static long readNext(Path file) throws IOException {
+        try (SeekableByteChannel channel = Files.newByteChannel(file, StandardOpenOption.READ)) {
+            long pos = channel.size();
+            // 后面一块开头的行，行首在前面的块中
+            byte[] rest = new byte[0];
+            boolean trimmed = false;
+            while (pos > 0) {
+                int n = (int) Math.min(TAIL_BLOCK, pos);
+                pos -= n;
+                byte[] buf = new byte[n + rest.length];
+                ByteBuffer buffer = ByteBuffer.wrap(buf, 0, n);
+                channel.position(pos);
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // 读满这一块
+                }
+                System.arraycopy(rest, 0, buf, n, rest.length);
+                int end = buf.length;
+                if (!trimmed) {
+                    // 最后一行没有换行符时是写了一半的行
+                    while (end > 0 && buf[end - 1] != '\n') {
+                        end--;
+                    }
+                    if (end == 0) {
+                        rest = new byte[0];
+                        continue;
+                    }
+                    trimmed = true;
+                }
+                // buf[end - 1] 是一行末尾的换行符
+                while (end > 0) {
+                    int start = end - 1;
+                    while (start > 0 && buf[start - 1] != '\n') {
+                        start--;
+                    }
+                    if (start == 0 && pos > 0) {
+                        break;
+                    }
+                    long seq = parseNext(buf, start, end - 1);
+                    if (seq >= 0) {
+                        return seq;
+                    }
+                    end = start;
+                }
+                rest = Arrays.copyOf(buf, end);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return buf[from, to) 是"\t序号"行时返回序号，否则返回-1
+     */
+    private static long parseNext(byte[] buf, int from, int to) {
+        if (to - from < 2 || to - from > 20 || buf[from] != '\t') {
+            return -1;
+        }
+        long seq = 0;
+        for (int i = from + 1; i < to; i++) {
+            if (buf[i] < '0' || buf[i] > '9') {
+                return -1;
+            }
+            seq = seq * 10 + (buf[i] - '0');
+        }
+        return seq;
+    }
+
+    /**
+     * 加载倒排表，调用方持有 lock；失败时保持未加载
+     */
+    private void load() throws IOException {
+        Map<String, Postings> loaded = new HashMap<>();
+        long count = 0;
+        if (Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    count++;
+                    // 序号行已经在构造时读取，这里只合并词项行
+                    int tab = line.indexOf('\t');
+                    if (tab <= 0) {
+                        continue;
+                    }
+                    try {
+                        Postings postings = loaded.computeIfAbsent(line.substring(0, tab), k -> new Postings());
+                        for (String seq : line.substring(tab + 1).split(" ")) {
+                            postings.add(Long.parseLong(seq));
+                        }
+                    } catch (NumberFormatException e) {
+                        // 异常退出时写了一半的行，这一批会重新索引
+                    }
+                }
+            }
+        }
+        terms = loaded;
+        lines = count;
+    }
+
+    /**
+     * 索引会话中还没有索引的记录，只追加索引文件；倒排表已加载时同时更新内存
+     * @throws IOException 如果读取记录或写入索引文件失败，下次从失败的一批开始重新索引
+     */
+    void update(HistoryStore store) throws IOException {
+        lock.lock();
+        try {
+            long end = store.getNextSequence();
+            while (next < end) {
+                List<String> records = store.readRange(next, Math.min(end, next + BATCH));
+                if (records.isEmpty()) {
+                    break;
+                }
+                Map<String, List<Long>> batch = new LinkedHashMap<>();
+                long seq = next;
+                for (String record : records) {
+                    for (String term : tokenize(text(record))) {
+                        batch.computeIfAbsent(term, k -> new ArrayList<>()).add(seq);
+                    }
+                    seq++;
+                }
+                StringBuilder out = new StringBuilder();
+                for (Map.Entry<String, List<Long>> entry : batch.entrySet()) {
+                    out.append(entry.getKey()).append('\t');
+                    Postings postings = terms == null ? null : terms.computeIfAbsent(entry.getKey(), k -> new Postings());
+                    for (int i = 0; i < entry.getValue().size(); i++) {
+                        long posting = entry.getValue().get(i);
+                        out.append(i == 0 ? "" : " ").append(posting);
+                        if (postings != null) {
+                            postings.add(posting);
+                        }
+                    }
+                    out.append('\n');
+                }
+                out.append('\t').append(seq).append('\n');
+                Files.write(file, out.toString().getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND);
+                lines += batch.size() + 1;
+                next = seq;
+            }
+            compactIfNeeded();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 倒排表已加载且文件行数远多于词项数时重写，调用方持有 lock
+     */
+    private void compactIfNeeded() throws IOException {
+        if (terms != null && lines > 1024 && lines > (long) COMPACT_FACTOR * (terms.size() + 1)) {
+            compact();
+        }
+    }
+
+    /**
+     * 释放倒排表，下次搜索时从索引文件重新加载；继续追加不受影响
+     */
+    void release() {
+        lock.lock();
+        try {
+            terms = null;
+            lines = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 每个词项写成一行，写入临时文件后替换索引文件
+     */
+    private void compact() throws IOException {
+        Path temp = file.resolveSibling(INDEX_FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+                Postings postings = entry.getValue();
+                writer.write(entry.getKey());
+                writer.write('\t');
+                for (int i = 0; i < postings.size; i++) {
+                    if (i > 0) {
+                        writer.write(' ');
+                    }
+                    writer.write(Long.toString(postings.seqs[i]));
+                }
+                writer.write('\n');
+            }
+            writer.write("\t" + next + "\n");
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lines = terms.size() + 1;
+    }
+
+    /**
+     * 查找包含全部词项的记录。由于按两字切分，结果可能包含词项不相邻的记录，调用方需要再核对原文
+     * @return 候选记录的序号，从新到旧
+     * @throws IOException 如果加载倒排表失败
+     */
+    long[] candidates(Set<String> queryTerms) throws IOException {
+        lock.lock();
+        try {
+            if (terms == null) {
+                load();
+                compactIfNeeded();
+            }
+            long[] result = null;
+            for (String term : queryTerms) {
+                long[] seqs = term.length() == 1 && isCjk(term.charAt(0)) ? containing(term.charAt(0)) : exact(term);
+                result = result == null ? seqs : intersect(result, seqs);
+                if (result.length == 0) {
+                    break;
+                }
+            }
+            if (result == null) {
+                return new long[0];
+            }
+            // 反转为从新到旧
+            for (int i = 0, j = result.length - 1; i < j; i++, j--) {
+                long t = result[i];
+                result[i] = result[j];
+                result[j] = t;
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long[] exact(String term) {
+        Postings postings = terms.get(term);
+        return postings == null ? new long[0] : postings.toArray();
+    }
+
+    /**
+     * 查询只有一个汉字时，合并所有包含这个字的词项
+     */
+    private long[] containing(char c) {
+        TreeSet<Long> seqs = new TreeSet<>();
+        for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+            if (entry.getKey().indexOf(c) >= 0) {
+                Postings postings = entry.getValue();
+                for (int i = 0; i < postings.size; i++) {
+                    seqs.add(postings.seqs[i]);
+                }
+            }
+        }
+        long[] result = new long[seqs.size()];
+        int i = 0;
+        for (long seq : seqs) {
+            result[i++] = seq;
+        }
+        return result;
+    }
+
+    private static long[] intersect(long[] a, long[] b) {
+        long[] result = new long[Math.min(a.length, b.length)];
+        int n = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * @return 记录中的消息内容（时间戳|发送者|消息内容），格式不符时返回整条记录
+     */
+    static String text(String record) {
+        String[] parts = record.split("\\|", 3);
+        return parts.length >= 3 ? parts[2] : record;
+    }
+
+    /**
+     * 把文本切分为词项
+     */
+    static Set<String> tokenize(String text) {
+        Set<String> result = new LinkedHashSet<>();
+        int n = text.length();
+        int i = 0;
+        while (i < n) {
+            char c = text.charAt(i);
+            int start = i;
+            if (isCjk(c)) {
+                while (i < n && isCjk(text.charAt(i))) {
+                    i++;
+                }
+                if (i - start == 1) {
+                    result.add(String.valueOf(c));
+                }
+                for (int j = start; j + 1 < i; j++) {
+                    result.add(text.substring(j, j + 2));
+                }
+            } else if (Character.isLetterOrDigit(c)) {
+                while (i < n && Character.isLetterOrDigit(text.charAt(i)) && !isCjk(text.charAt(i))) {
+                    i++;
+                }
+                result.add(text.substring(start, i).toLowerCase());
+            } else {
+                i++;
+            }
+        }
+        return result;
+    }
+
+    private static boolean isCjk(char c) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(c);
+        return script == Character.UnicodeScript.HAN
+                || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA
+                || script == Character.UnicodeScript.HANGUL;
+    }
+}
@@ -0,0 +1,45 @@
+package io.history;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 一页聊天记录，按时间顺序排列
+ */
+public final class HistoryPage {
+    private final List<String> records;
+    private final long cursor;
+
+    HistoryPage(List<String> records, long cursor) {
+        this.records = Collections.unmodifiableList(records);
+        this.cursor = cursor;
+    }
+
+    /**
+     * @return 没有记录的一页，读取失败时使用
+     */
+    public static HistoryPage empty() {
+        return new HistoryPage(Collections.emptyList(), 0);
+    }
+
+    /**
+     * @return 本页的记录，格式与写入时相同
+     */
+    public List<String> getRecords() {
+        return records;
+    }
+
+    /**
+     * @return 本页第一条记录的序号，读取更早的记录时作为游标传入
+     */
+    public long getCursor() {
+        return cursor;
+    }
+
+    /**
+     * @return 是否还有更早的记录
+     */
+    public boolean hasMore() {
+        return cursor > 0;
+    }
+}
@@ -0,0 +1,322 @@
+package io.history;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 聊天记录的一个段
+ * 记录文件（<首条序号>.log）每行一条记录；索引文件（<首条序号>.idx）每隔 INDEX_INTERVAL 条记录保存一次
+ * （序号，字节偏移），每项16字节。读取某个序号时从不大于它的最近索引项开始向后跳过最多 INDEX_INTERVAL-1 行
+ */
+final class HistorySegment {
+    // 索引间隔（条），可以用 -Dchat.history.indexInterval 调整
+    static final int INDEX_INTERVAL = Math.max(1, Integer.getInteger("chat.history.indexInterval", 64));
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    // 从末尾向前查找时每次映射的字节数
+    private static final int TAIL_WINDOW = 64 * 1024;
+
+    final long baseSeq;
+    private final Path logFile;
+    private final Path indexFile;
+    private long bytes;
+    private long count;
+    // 稀疏索引，按序号递增
+    private long[] indexSeqs = new long[16];
+    private long[] indexOffsets = new long[16];
+    private int indexSize;
+    // 追加用的文件通道，第一次写入时打开，由 HistoryStore 按最近使用情况关闭
+    private FileChannel logChannel;
+
+    private HistorySegment(Path dir, long baseSeq) {
+        this.baseSeq = baseSeq;
+        String name = String.format("%020d", baseSeq);
+        this.logFile = dir.resolve(name + LOG_SUFFIX);
+        this.indexFile = dir.resolve(name + INDEX_SUFFIX);
+    }
+
+    /**
+     * @return 段的首条序号，不是段文件时返回-1
+     */
+    static long parseBase(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.endsWith(LOG_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static HistorySegment create(Path dir, long baseSeq) {
+        return new HistorySegment(dir, baseSeq);
+    }
+
+    /**
+     * 加载已有的段
+     * @param count 记录数，小于0表示未知（最后一个段），此时从最后一个索引项向后扫描，补全索引并去掉不完整的最后一行
+     */
+    static HistorySegment load(Path dir, long baseSeq, long count) throws IOException {
+        HistorySegment segment = new HistorySegment(dir, baseSeq);
+        segment.bytes = Files.size(segment.logFile);
+        segment.loadIndex();
+        if (count >= 0) {
+            segment.count = count;
+        } else {
+            segment.recover();
+        }
+        return segment;
+    }
+
+    private void loadIndex() throws IOException {
+        if (!Files.exists(indexFile)) {
+            return;
+        }
+        long entries = Files.size(indexFile) / 16;
+        try (DataInputStream in = new DataInputStream(Channels.newInputStream(FileChannel.open(indexFile)))) {
+            for (long i = 0; i < entries; i++) {
+                long seq = in.readLong();
+                long offset = in.readLong();
+                // 只信任指向已写入数据的索引项
+                if (offset > bytes || (indexSize > 0 && seq <= indexSeqs[indexSize - 1])) {
+                    break;
+                }
+                addIndex(seq, offset);
+            }
+        }
+    }
+
+    /**
+     * 从最后一个索引项开始扫描到文件末尾，得到记录数并补全索引；异常退出时写了一半的最后一行被截掉
+     */
+    private void recover() throws IOException {
+        long seq = indexSize == 0 ? baseSeq : indexSeqs[indexSize - 1];
+        long offset = indexSize == 0 ? 0 : indexOffsets[indexSize - 1];
+        long indexed = indexSize == 0 ? baseSeq - 1 : seq;
+        long lineStart = offset;
+        ByteArrayOutputStream missing = new ByteArrayOutputStream();
+        DataOutputStream indexOut = new DataOutputStream(missing);
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            long position = offset;
+            while (channel.read(buffer, position) > 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    if (buffer.get() == '\n') {
+                        long next = position + buffer.position();
+                        if (seq > indexed && (seq - baseSeq) % INDEX_INTERVAL == 0) {
+                            addIndex(seq, lineStart);
+                            indexOut.writeLong(seq);
+                            indexOut.writeLong(lineStart);
+                        }
+                        seq++;
+                        lineStart = next;
+                    }
+                }
+                position += buffer.limit();
+                buffer.clear();
+            }
+            if (lineStart < channel.size()) {
+                channel.truncate(lineStart);
+            }
+        }
+        bytes = lineStart;
+        count = seq - baseSeq;
+        if (missing.size() > 0) {
+            Files.write(indexFile, missing.toByteArray(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+    }
+
+    private void addIndex(long seq, long offset) {
+        if (indexSize == indexSeqs.length) {
+            indexSeqs = Arrays.copyOf(indexSeqs, indexSize * 2);
+            indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+        }
+        indexSeqs[indexSize] = seq;
+        indexOffsets[indexSize] = offset;
+        indexSize++;
+    }
+
+    /**
+     * 追加记录，每条记录不含换行符
+     * @throws IOException 如果写入失败，此时段的状态不变
+     */
+    void append(List<String> records) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        DataOutputStream indexOut = new DataOutputStream(index);
+        List<long[]> entries = new ArrayList<>();
+        long seq = nextSeq();
+        long offset = bytes;
+        for (String record : records) {
+            if ((seq - baseSeq) % INDEX_INTERVAL == 0) {
+                entries.add(new long[]{seq, offset});
+                indexOut.writeLong(seq);
+                indexOut.writeLong(offset);
+            }
+            byte[] line = (record + "\n").getBytes(StandardCharsets.UTF_8);
+            data.write(line, 0, line.length);
+            offset += line.length;
+            seq++;
+        }
+        // 先写记录再写索引，异常退出时由 recover 补全索引
+        if (logChannel == null) {
+            logChannel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data.toByteArray());
+        try {
+            while (buffer.hasRemaining()) {
+                logChannel.write(buffer);
+            }
+            if (index.size() > 0) {
+                Files.write(indexFile, index.toByteArray(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+        } catch (IOException e) {
+            // 去掉已经写入的数据，保证文件长度与 bytes 一致，调用方可以重新写入这些记录
+            try {
+                logChannel.truncate(bytes);
+                close();
+            } catch (IOException ignored) {
+                // 下次启动时由 recover 处理
+            }
+            throw e;
+        }
+        for (long[] entry : entries) {
+            addIndex(entry[0], entry[1]);
+        }
+        bytes = offset;
+        count = seq - baseSeq;
+    }
+
+    /**
+     * 读取序号在 [from, to) 内的记录
+     */
+    List<String> read(long from, long to) throws IOException {
+        List<String> records = new ArrayList<>((int) Math.max(0, Math.min(to - from, 4096)));
+        if (from >= to || indexSize == 0) {
+            return records;
+        }
+        int i = floorIndex(from);
+        long seq = indexSeqs[i];
+        FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ);
+        channel.position(indexOffsets[i]);
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8), 64 * 1024)) {
+            for (; seq < from; seq++) {
+                if (reader.readLine() == null) {
+                    return records;
+                }
+            }
+            for (; seq < to; seq++) {
+                String line = reader.readLine();
+                if (line == null) {
+                    break;
+                }
+                records.add(line);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * 读取段末尾的 limit 条记录
+     * 从文件末尾开始映射一个窗口向前查找换行符，不够时再映射前一个窗口，找到起点后只解码这几条记录，
+     * 不经过索引，也不读取前面的数据
+     */
+    List<String> readTail(int limit) throws IOException {
+        List<String> records = new ArrayList<>(Math.max(0, Math.min(limit, 4096)));
+        if (limit <= 0 || bytes == 0) {
+            return records;
+        }
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ)) {
+            long start = 0;
+            if (limit < count) {
+                // 最后一个字节是最后一条记录的换行符，向前第 limit 个换行符之后就是起点
+                int found = 0;
+                long windowEnd = bytes - 1;
+                search:
+                while (windowEnd > 0) {
+                    long windowStart = Math.max(0, windowEnd - TAIL_WINDOW);
+                    MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+                    for (int i = (int) (windowEnd - windowStart) - 1; i >= 0; i--) {
+                        if (window.get(i) == '\n' && ++found == limit) {
+                            start = windowStart + i + 1;
+                            break search;
+                        }
+                    }
+                    windowEnd = windowStart;
+                }
+            }
+            MappedByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY, start, bytes - start);
+            String text = StandardCharsets.UTF_8.decode(tail).toString();
+            int lineStart = 0;
+            for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', lineStart)) {
+                records.add(text.substring(lineStart, i));
+                lineStart = i + 1;
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return 序号不大于 seq 的最后一个索引项的位置
+     */
+    private int floorIndex(long seq) {
+        int low = 0;
+        int high = indexSize - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (indexSeqs[mid] <= seq) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 把已追加的记录刷到磁盘
+     */
+    void force() throws IOException {
+        if (logChannel != null) {
+            logChannel.force(false);
+        }
+    }
+
+    /**
+     * 关闭追加用的文件通道，下次追加时重新打开
+     */
+    void close() throws IOException {
+        if (logChannel != null) {
+            FileChannel channel = logChannel;
+            logChannel = null;
+            channel.close();
+        }
+    }
+
+    long nextSeq() {
+        return baseSeq + count;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,558 @@
+package io.history;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 一个会话的聊天记录
+ * 记录按写入顺序从0开始编号，保存在会话目录下的多个段中（见 HistorySegment），最后一个段达到一定大小后新建下一个段。
+ * 按序号读取时先定位段，读到段末尾的一页（包括最新的一页）从文件末尾向前查找，其他的用段内的稀疏索引定位行，
+ * 只需要读这一页附近的数据，与记录总数无关。
+ * 段在第一次读写时加载，旧版本的单文件记录（<会话>.dat）也在这时导入，都在 HistoryWriter 或读记录的线程上进行，
+ * 不占用收消息的线程；导入失败时每次读写前重试，成功之前不写入新记录。
+ * 收消息时用 enqueue 把记录放入待写队列，由 HistoryWriter 成批写入；最近写过的会话保持文件打开，
+ * 超过 chat.history.openFiles 个时关闭最久未写的。
+ * 每批写入后由 HistoryWriter 更新会话的全文索引（见 HistoryIndex），search 按词项查找记录；
+ * 追加索引只需要各会话索引文件末尾的序号，倒排表在搜索时才加载；内存中最多保留 chat.history.indexes 个会话的倒排表，
+ * 释放的倒排表下次搜索时从索引文件重新加载。
+ * 同一个目录只打开一次，所有 FileIO 实例共用
+ */
+public final class HistoryStore {
+    // 段达到多少字节时新建下一个段，可以用 -Dchat.history.segmentBytes 调整
+    private static final long SEGMENT_BYTES = Long.getLong("chat.history.segmentBytes", 4L * 1024 * 1024);
+
+    // 最多同时打开的会话记录文件数，可以用 -Dchat.history.openFiles 调整
+    private static final int MAX_OPEN = Math.max(1, Integer.getInteger("chat.history.openFiles", 64));
+    // 每批写入后是否刷到磁盘，可以用 -Dchat.history.fsync=true 打开
+    private static final boolean FSYNC = Boolean.getBoolean("chat.history.fsync");
+
+    private static final Map<Path, HistoryStore> stores = new ConcurrentHashMap<>();
+    // 打开着文件的会话，按最近写入排序，只在持有 OPEN_LOCK 时访问
+    private static final LinkedHashMap<HistoryStore, Boolean> openStores = new LinkedHashMap<>(16, 0.75f, true);
+    private static final ReentrantLock OPEN_LOCK = new ReentrantLock();
+    // 最多同时加载倒排表的会话数，可以用 -Dchat.history.indexes 调整
+    private static final int MAX_INDEXES = Math.max(1, Integer.getInteger("chat.history.indexes", 16));
+    // 加载了全文索引的会话，按最近使用排序，只在持有 INDEX_LOCK 时访问
+    private static final LinkedHashMap<HistoryStore, Boolean> indexedStores = new LinkedHashMap<>(16, 0.75f, true);
+    private static final ReentrantLock INDEX_LOCK = new ReentrantLock();
+
+    private final Path dir;
+    private final Path legacyFile;
+    // 段是否已经加载（包括导入旧格式的记录），失败时每次读写前重试，成功之前不创建会话目录
+    private volatile boolean loaded;
+    // 首条序号 -> 段
+    private final TreeMap<Long, HistorySegment> segments = new TreeMap<>();
+    // 读取共享读锁，追加时独占；使用 ReentrantReadWriteLock 以免写文件时把虚拟线程固定在载体线程上
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // 等待 HistoryWriter 写入的记录，只在持有 pendingLock 时访问
+    private List<String> pending = new ArrayList<>();
+    private final ReentrantLock pendingLock = new ReentrantLock();
+    // 全文索引，第一次使用时创建；倒排表搜索时加载，超过 chat.history.indexes 个会话时释放最久未用的
+    private volatile HistoryIndex index;
+
+    /**
+     * 获取会话目录对应的聊天记录，只记录目录，第一次读写时才加载段并导入旧格式的记录文件
+     * @param dir 会话目录
+     * @param legacyFile 旧格式的记录文件，不存在时忽略
+     * @return 聊天记录
+     */
+    public static HistoryStore open(Path dir, Path legacyFile) {
+        return stores.computeIfAbsent(dir.toAbsolutePath().normalize(), key -> new HistoryStore(key, legacyFile));
+    }
+
+    private HistoryStore(Path dir, Path legacyFile) {
+        this.dir = dir;
+        this.legacyFile = legacyFile;
+    }
+
+    private void init() throws IOException {
+        if (!Files.isDirectory(dir) && legacyFile != null && Files.exists(legacyFile)) {
+            importLegacy(legacyFile);
+        }
+        if (Files.isDirectory(dir)) {
+            load();
+        }
+        loaded = true;
+    }
+
+    /**
+     * 第一次读写前加载段，上次加载或导入失败时重新加载
+     * @throws IOException 如果加载失败，此时不能读写这个会话
+     */
+    private void ensureLoaded() throws IOException {
+        if (loaded) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (!loaded) {
+                for (HistorySegment segment : segments.values()) {
+                    segment.close();
+                }
+                segments.clear();
+                init();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 把旧格式的记录逐行写入临时目录，完成后改名为会话目录并删除旧文件；中途退出时下次启动重新导入
+     */
+    private void importLegacy(Path legacyFile) throws IOException {
+        Path temp = dir.resolveSibling(dir.getFileName() + ".importing");
+        if (Files.isDirectory(temp)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(temp)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+        }
+        Files.createDirectories(temp);
+        HistorySegment segment = HistorySegment.create(temp, 0);
+        List<String> batch = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(legacyFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                batch.add(line);
+                if (batch.size() == 1024) {
+                    segment = appendTo(temp, segment, batch);
+                    batch.clear();
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            segment = appendTo(temp, segment, batch);
+        }
+        segment.close();
+        Files.move(temp, dir, StandardCopyOption.ATOMIC_MOVE);
+        Files.delete(legacyFile);
+    }
+
+    private void load() throws IOException {
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                long base = HistorySegment.parseBase(file);
+                if (base >= 0) {
+                    bases.add(base);
+                }
+            }
+        }
+        Collections.sort(bases);
+        for (int i = 0; i < bases.size(); i++) {
+            long base = bases.get(i);
+            // 前面的段已经写满，记录数由下一个段的首条序号得出；只扫描最后一个段
+            long count = i + 1 < bases.size() ? bases.get(i + 1) - base : -1;
+            segments.put(base, HistorySegment.load(dir, base, count));
+        }
+    }
+
+    /**
+     * 把记录放入待写队列后立即返回，由 HistoryWriter 在后台成批写入；读取前会先写入队列中的记录
+     */
+    public void enqueue(String record) {
+        pendingLock.lock();
+        try {
+            pending.add(record);
+        } finally {
+            pendingLock.unlock();
+        }
+        HistoryWriter.submitted(this);
+    }
+
+    /**
+     * 写入待写队列中的全部记录
+     * @throws IOException 如果写入失败，此时没有写入的记录放回队列头部，由 HistoryWriter 稍后重试
+     */
+    public void flush() throws IOException {
+        lock.writeLock().lock();
+        try {
+            // 加载失败时记录留在队列中，不能在旧记录导入之前创建会话目录
+            ensureLoaded();
+            // 在写锁内取出队列，保证先入队的记录先写入
+            List<String> batch = takePending();
+            if (batch.isEmpty()) {
+                return;
+            }
+            List<String> lines = split(batch);
+            long first = nextSequence();
+            try {
+                appendLines(lines);
+            } catch (IOException e) {
+                // 写满的段中的记录已经保留，只放回之后的记录
+                requeue(lines.subList((int) (nextSequence() - first), lines.size()));
+                throw e;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 读取前写入待写队列中的记录；写入失败时记录留在队列中，仍然可以读取已经写入的记录
+     */
+    private void flushBeforeRead() {
+        if (!hasPending()) {
+            return;
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            System.err.println("写入聊天记录失败，稍后重试: " + e.getMessage());
+        }
+    }
+
+    private List<String> takePending() {
+        pendingLock.lock();
+        try {
+            if (pending.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<String> batch = pending;
+            pending = new ArrayList<>();
+            return batch;
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    private void requeue(List<String> lines) {
+        pendingLock.lock();
+        try {
+            List<String> restored = new ArrayList<>(lines.size() + pending.size());
+            restored.addAll(lines);
+            restored.addAll(pending);
+            pending = restored;
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    private boolean hasPending() {
+        pendingLock.lock();
+        try {
+            return !pending.isEmpty();
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    /**
+     * 追加一条记录，记录中的换行符把它分成多条
+     * @return 第一条记录的序号
+     * @throws IOException 如果写入失败
+     */
+    public long append(String record) throws IOException {
+        return appendAll(Collections.singletonList(record));
+    }
+
+    /**
+     * 按顺序追加多条记录
+     * @return 第一条记录的序号
+     * @throws IOException 如果写入失败，此时已经写满的段中的记录保留
+     */
+    public long appendAll(List<String> records) throws IOException {
+        return appendLines(split(records));
+    }
+
+    /**
+     * 记录中的换行符把它分成多条
+     */
+    private static List<String> split(List<String> records) {
+        List<String> lines = new ArrayList<>(records.size());
+        for (String record : records) {
+            lines.addAll(Arrays.asList(record.split("\n", -1)));
+        }
+        return lines;
+    }
+
+    private long appendLines(List<String> lines) throws IOException {
+        lock.writeLock().lock();
+        try {
+            ensureLoaded();
+            long first = nextSequence();
+            if (segments.isEmpty()) {
+                Files.createDirectories(dir);
+            }
+            HistorySegment last = segments.isEmpty() ? HistorySegment.create(dir, 0) : segments.lastEntry().getValue();
+            segments.put(last.baseSeq, last);
+            HistorySegment segment = appendTo(dir, last, lines);
+            if (FSYNC) {
+                segment.force();
+            }
+            opened();
+            return first;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 记录本会话最近写过，打开的会话过多时关闭最久未写的；调用方持有本会话的写锁
+     */
+    private void opened() {
+        List<HistoryStore> evicted = new ArrayList<>();
+        OPEN_LOCK.lock();
+        try {
+            openStores.put(this, Boolean.TRUE);
+            Iterator<HistoryStore> it = openStores.keySet().iterator();
+            while (openStores.size() - evicted.size() > MAX_OPEN && it.hasNext()) {
+                HistoryStore eldest = it.next();
+                if (eldest != this) {
+                    evicted.add(eldest);
+                }
+            }
+        } finally {
+            OPEN_LOCK.unlock();
+        }
+        for (HistoryStore store : evicted) {
+            store.closeFiles();
+        }
+    }
+
+    /**
+     * 关闭追加用的文件；正在写入的会话跳过，留到下次
+     */
+    private void closeFiles() {
+        // 已经持有本会话写锁的线程正在写入，用 tryLock 避免两个会话互相等待
+        if (!lock.writeLock().tryLock()) {
+            return;
+        }
+        try {
+            for (HistorySegment segment : segments.values()) {
+                segment.close();
+            }
+            OPEN_LOCK.lock();
+            try {
+                openStores.remove(this);
+            } finally {
+                OPEN_LOCK.unlock();
+            }
+        } catch (IOException e) {
+            System.err.println("关闭聊天记录文件失败: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 把记录追加到 segment，写满时新建下一个段
+     * @return 最后写入的段
+     */
+    private HistorySegment appendTo(Path target, HistorySegment segment, List<String> lines) throws IOException {
+        int start = 0;
+        while (start < lines.size()) {
+            if (segment.getBytes() >= SEGMENT_BYTES) {
+                // 写满的段不再追加
+                segment.close();
+                segment = HistorySegment.create(target, segment.nextSeq());
+                if (target == dir) {
+                    segments.put(segment.baseSeq, segment);
+                }
+            }
+            // 按剩余空间估计本次写入的条数，至少一条
+            int end = start;
+            long bytes = segment.getBytes();
+            while (end < lines.size() && (end == start || bytes < SEGMENT_BYTES)) {
+                bytes += lines.get(end).length() + 1;
+                end++;
+            }
+            segment.append(lines.subList(start, end));
+            start = end;
+        }
+        return segment;
+    }
+
+    /**
+     * @return 下一条记录的序号，即当前的记录总数
+     */
+    public long getNextSequence() throws IOException {
+        flushBeforeRead();
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            return nextSequence();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private long nextSequence() {
+        return segments.isEmpty() ? 0 : segments.lastEntry().getValue().nextSeq();
+    }
+
+    /**
+     * 读取序号小于 cursor 的最后 limit 条记录
+     * @param cursor 游标，传入 Long.MAX_VALUE 读取最新的一页，之后传入上一页的 getCursor()
+     * @param limit 每页的条数
+     * @return 按时间顺序排列的一页记录
+     * @throws IOException 如果读取失败
+     */
+    public HistoryPage readBefore(long cursor, int limit) throws IOException {
+        flushBeforeRead();
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            long to = Math.min(cursor, nextSequence());
+            long from = Math.max(0, to - Math.max(0, limit));
+            return new HistoryPage(read(from, to), from);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return 全部记录，按时间顺序排列
+     * @throws IOException 如果读取失败
+     */
+    public List<String> readAll() throws IOException {
+        flushBeforeRead();
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            return read(0, nextSequence());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 读取序号在 [from, to) 内的记录，不写入待写队列
+     */
+    List<String> readRange(long from, long to) throws IOException {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            return read(from, Math.min(to, nextSequence()));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 搜索消息内容包含查询中全部词语（以空白分隔）的记录
+     * @param query 查询
+     * @param limit 最多返回的条数
+     * @return 搜索结果，从新到旧
+     * @throws IOException 如果读取记录或更新索引失败
+     */
+    public List<SearchHit> search(String query, int limit) throws IOException {
+        List<SearchHit> hits = new ArrayList<>();
+        Set<String> terms = HistoryIndex.tokenize(query);
+        if (terms.isEmpty() || limit <= 0) {
+            return hits;
+        }
+        HistoryIndex current = index();
+        current.update(this);
+        indexUsed();
+        String[] words = query.trim().toLowerCase().split("\\s+");
+        for (long seq : current.candidates(terms)) {
+            List<String> records = readRange(seq, seq + 1);
+            // 索引按两个字切分，核对原文去掉词语不相邻的记录
+            if (!records.isEmpty() && containsAll(HistoryIndex.text(records.get(0)).toLowerCase(), words)) {
+                hits.add(new SearchHit(dir, seq, records.get(0)));
+                if (hits.size() >= limit) {
+                    break;
+                }
+            }
+        }
+        return hits;
+    }
+
+    private static boolean containsAll(String text, String[] words) {
+        for (String word : words) {
+            if (!text.contains(word)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 索引还没有索引的记录，只追加索引文件，不加载倒排表
+     */
+    void updateIndex() throws IOException {
+        index().update(this);
+    }
+
+    private HistoryIndex index() throws IOException {
+        HistoryIndex current = index;
+        if (current == null) {
+            lock.writeLock().lock();
+            try {
+                if (index == null) {
+                    index = new HistoryIndex(dir);
+                }
+                current = index;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        return current;
+    }
+
+    /**
+     * 记录本会话的倒排表最近用过，加载的倒排表过多时释放最久未用的
+     */
+    private void indexUsed() {
+        List<HistoryStore> evicted = new ArrayList<>();
+        INDEX_LOCK.lock();
+        try {
+            indexedStores.put(this, Boolean.TRUE);
+            Iterator<HistoryStore> it = indexedStores.keySet().iterator();
+            while (indexedStores.size() > MAX_INDEXES && it.hasNext()) {
+                HistoryStore eldest = it.next();
+                if (eldest != this) {
+                    evicted.add(eldest);
+                    it.remove();
+                }
+            }
+        } finally {
+            INDEX_LOCK.unlock();
+        }
+        for (HistoryStore store : evicted) {
+            store.index.release();
+        }
+    }
+
+    private List<String> read(long from, long to) throws IOException {
+        List<String> records = new ArrayList<>((int) Math.min(Math.max(0, to - from), 4096));
+        if (from >= to) {
+            return records;
+        }
+        Long start = segments.floorKey(from);
+        for (HistorySegment segment : segments.tailMap(start == null ? from : start).values()) {
+            if (segment.baseSeq >= to) {
+                break;
+            }
+            long segmentFrom = Math.max(from, segment.baseSeq);
+            long segmentTo = Math.min(to, segment.nextSeq());
+            if (segmentTo == segment.nextSeq() && segmentFrom > segment.baseSeq) {
+                // 读到段末尾时（打开聊天窗口读取最新的一页就是这种情况）从末尾向前查找
+                records.addAll(segment.readTail((int) (segmentTo - segmentFrom)));
+            } else {
+                records.addAll(segment.read(segmentFrom, segmentTo));
+            }
+        }
+        return records;
+    }
+}
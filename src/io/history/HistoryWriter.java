@@ -0,0 +1,162 @@
+package io.history;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 聊天记录的后台写入线程
+ * HistoryStore.enqueue 只把记录放入会话的待写队列并通知这里，收消息的线程不等待磁盘。
+ * 待写记录达到 chat.history.batchSize 条，或最早的一条等待超过 chat.history.flushMillis 毫秒时，
+ * 把有待写记录的会话逐个写入，每个会话的一批记录只写一次文件，写入后更新会话的全文索引。
+ * 写入失败的会话记录仍在队列中，等待一段时间后重试，连续失败时等待时间加倍。进程退出时写入剩余的记录
+ */
+final class HistoryWriter {
+    // 攒够多少条立即写入，可以用 -Dchat.history.batchSize 调整
+    private static final int BATCH_SIZE = Math.max(1, Integer.getInteger("chat.history.batchSize", 256));
+    // 记录最多等待多久写入（毫秒），可以用 -Dchat.history.flushMillis 调整
+    private static final long FLUSH_MILLIS = Math.max(1, Long.getLong("chat.history.flushMillis", 200L));
+    // 写入失败后第一次重试前等待的时间和最长等待时间（毫秒）
+    private static final long RETRY_MIN_MILLIS = 500;
+    private static final long RETRY_MAX_MILLIS = 30_000;
+
+    // 使用 ReentrantLock 以免入队时把虚拟线程固定在载体线程上
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final Condition ready = lock.newCondition();
+    // 有待写记录的会话，按第一次入队的顺序排列
+    private static final Set<HistoryStore> dirty = new LinkedHashSet<>();
+    private static int queued;
+    private static long firstQueuedAt;
+    // 写入失败后的重试等待，没有失败时为0
+    private static long retryMillis;
+    private static long retryAt;
+
+    static {
+        Thread writer = new Thread(HistoryWriter::run, "history-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(takeDirty()), "history-writer-shutdown"));
+    }
+
+    private HistoryWriter() {
+    }
+
+    /**
+     * 会话有新的待写记录
+     */
+    static void submitted(HistoryStore store) {
+        lock.lock();
+        try {
+            if (dirty.isEmpty()) {
+                firstQueuedAt = System.nanoTime();
+                ready.signal();
+            }
+            dirty.add(store);
+            if (++queued == BATCH_SIZE) {
+                ready.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void run() {
+        while (true) {
+            List<HistoryStore> batch;
+            lock.lock();
+            try {
+                while (dirty.isEmpty()) {
+                    ready.await();
+                }
+                long deadline = firstQueuedAt + TimeUnit.MILLISECONDS.toNanos(FLUSH_MILLIS);
+                long wait;
+                while ((wait = waitNanos(deadline)) > 0) {
+                    ready.awaitNanos(wait);
+                }
+                batch = takeDirtyLocked();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            retry(flush(batch));
+        }
+    }
+
+    /**
+     * @return 距离下次写入还要等待的纳秒数；重试等待期间即使攒够一批也不写入
+     */
+    private static long waitNanos(long deadline) {
+        long now = System.nanoTime();
+        long wait = queued < BATCH_SIZE ? deadline - now : 0;
+        if (retryMillis > 0) {
+            wait = Math.max(wait, retryAt - now);
+        }
+        return wait;
+    }
+
+    /**
+     * 把写入失败的会话放回，等待一段时间后重试
+     */
+    private static void retry(List<HistoryStore> failed) {
+        lock.lock();
+        try {
+            if (failed.isEmpty()) {
+                retryMillis = 0;
+                return;
+            }
+            retryMillis = retryMillis == 0 ? RETRY_MIN_MILLIS : Math.min(retryMillis * 2, RETRY_MAX_MILLIS);
+            retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryMillis);
+            if (dirty.isEmpty()) {
+                firstQueuedAt = System.nanoTime();
+            }
+            dirty.addAll(failed);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static List<HistoryStore> takeDirty() {
+        lock.lock();
+        try {
+            return takeDirtyLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static List<HistoryStore> takeDirtyLocked() {
+        List<HistoryStore> batch = new ArrayList<>(dirty);
+        dirty.clear();
+        queued = 0;
+        return batch;
+    }
+
+    /**
+     * @return 写入失败的会话
+     */
+    private static List<HistoryStore> flush(List<HistoryStore> batch) {
+        List<HistoryStore> failed = new ArrayList<>();
+        for (HistoryStore store : batch) {
+            try {
+                store.flush();
+            } catch (IOException e) {
+                System.err.println("写入聊天记录失败，稍后重试: " + e.getMessage());
+                failed.add(store);
+                continue;
+            }
+            try {
+                store.updateIndex();
+            } catch (IOException e) {
+                // 下次写入或搜索时重新索引
+                System.err.println("更新聊天记录索引失败: " + e.getMessage());
+            }
+        }
+        return failed;
+    }
+}
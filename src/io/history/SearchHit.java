@@ -0,0 +1,39 @@
+package io.history;
+
+import java.nio.file.Path;
+
+/**
+ * 一条搜索结果
+ */
+public final class SearchHit {
+    private final Path conversation;
+    private final long sequence;
+    private final String record;
+
+    SearchHit(Path conversation, long sequence, String record) {
+        this.conversation = conversation;
+        this.sequence = sequence;
+        this.record = record;
+    }
+
+    /**
+     * @return 记录所在会话目录的绝对路径
+     */
+    public Path getConversation() {
+        return conversation;
+    }
+
+    /**
+     * @return 记录在会话中的序号，可以作为游标读取前后的记录
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return 记录，格式与写入时相同
+     */
+    public String getRecord() {
+        return record;
+    }
+}